@@ -17,13 +17,14 @@ import org.rsna.util.*;
 /**
  * A JPanel for managing Authorization parameters. This class provides
  * a user interface allowing for enabling and disabling the Authorization
- * header in HTTP client connections.
+ * header in HTTP client connections, with the Basic or Digest scheme.
  */
 public class Authorization extends JPanel {
 
 	private static JCheckBox enabled;
 	private static JTextField user;
 	private static JTextField password;
+	private static JComboBox<String> scheme;
 
 	/**
 	 * Class constructor; creates an instance of the Authorization class
@@ -40,12 +41,16 @@ public class Authorization extends JPanel {
 		user = new JTextField(10);
 		JLabel passwordLabel = new JLabel("Password:");
 		password = new JTextField(10);
+		JLabel schemeLabel = new JLabel("Scheme:");
+		scheme = new JComboBox<String>(new String[] {"Basic", "Digest"});
 
 		this.add(enabled);
 		this.add(userLabel);
 		this.add(user);
 		this.add(passwordLabel);
 		this.add(password);
+		this.add(schemeLabel);
+		this.add(scheme);
 	}
 
 	/**
@@ -82,6 +87,14 @@ public class Authorization extends JPanel {
 		return false;
 	}
 
+	/**
+	 * Determine whether the Digest scheme is selected.
+	 * @return true if Digest is selected; false if Basic is selected.
+	 */
+	public static boolean isDigest() {
+		return "Digest".equals(scheme.getSelectedItem());
+	}
+
 	/**
 	 * Get the base-64 encoded value of the credentials
 	 * in the form required for an HTTP Authorization header:
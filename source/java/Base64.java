@@ -16,6 +16,13 @@
 
 package org.rsna.util;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * Provides Base64 encoding and decoding as defined by RFC 2045.
  *
@@ -23,6 +30,13 @@ package org.rsna.util;
  * from RFC 2045 <cite>Multipurpose Internet Mail Extensions (MIME) Part One:
  * Format of Internet Message Bodies</cite> by Freed and Borenstein.</p>
  *
+ * <p>The static methods work on whole arrays. For large data, the
+ * {@link Encoder} and {@link Decoder} classes work on data in pieces,
+ * between ByteBuffers or through the {@link EncodingOutputStream} and
+ * {@link DecodingInputStream} wrappers, without allocating memory for
+ * each call. They support the MIME line length and the URL and filename
+ * safe alphabet of RFC 4648.</p>
+ *
  * @see <a href="http://www.ietf.org/rfc/rfc2045.txt">RFC 2045</a>
  * @author Apache Software Foundation
  * @since 1.0-dev
@@ -50,7 +64,7 @@ public class Base64 {
     /**
      * The base length.
      */
-    static final int BASELENGTH = 255;
+    static final int BASELENGTH = 256;
 
     /**
      * Lookup length.
@@ -87,11 +101,27 @@ public class Base64 {
      */
     static final byte PAD = (byte) '=';
 
+    /**
+     * The size of the buffers of the streams.
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The number of groups that an encoder or decoder converts at a time
+     * between buffers whose arrays are not accessible.
+     */
+    static final int SCRATCH_GROUPS = 256;
+
     // Create arrays to hold the base64 characters and a
     // lookup for base64 chars
     private static byte[] base64Alphabet = new byte[BASELENGTH];
     private static byte[] lookUpBase64Alphabet = new byte[LOOKUPLENGTH];
 
+    // The same for the URL and filename safe alphabet of RFC 4648,
+    // which has '-' and '_' in place of '+' and '/'
+    private static byte[] urlSafeBase64Alphabet = new byte[BASELENGTH];
+    private static byte[] lookUpUrlSafeBase64Alphabet = new byte[LOOKUPLENGTH];
+
     // Populating the lookup and character arrays
     static {
         for (int i = 0; i < BASELENGTH; i++) {
@@ -124,16 +154,16 @@ public class Base64 {
 
         lookUpBase64Alphabet[62] = (byte) '+';
         lookUpBase64Alphabet[63] = (byte) '/';
-    }
 
-    private static boolean isBase64(byte octect) {
-        if (octect == PAD) {
-            return true;
-        } else if (base64Alphabet[octect] == -1) {
-            return false;
-        } else {
-            return true;
-        }
+        System.arraycopy(base64Alphabet, 0, urlSafeBase64Alphabet, 0, BASELENGTH);
+        urlSafeBase64Alphabet['+'] = (byte) -1;
+        urlSafeBase64Alphabet['/'] = (byte) -1;
+        urlSafeBase64Alphabet['-'] = 62;
+        urlSafeBase64Alphabet['_'] = 63;
+
+        System.arraycopy(lookUpBase64Alphabet, 0, lookUpUrlSafeBase64Alphabet, 0, LOOKUPLENGTH);
+        lookUpUrlSafeBase64Alphabet[62] = (byte) '-';
+        lookUpUrlSafeBase64Alphabet[63] = (byte) '_';
     }
 
     /**
@@ -265,71 +295,23 @@ public class Base64 {
 	}
 
     /**
-     * Decodes base64 data into octects
+     * Decodes base64 data into octects. Characters outside the base64
+     * alphabet, including whitespace, are skipped as the data is decoded.
      *
      * @param base64Data Byte array containing Base64 data
      * @return Array containing decoded data.
      */
     public static byte[] decode(byte[] base64Data) {
-        // RFC 2045 requires that we discard ALL non-Base64 characters
-        base64Data = discardNonBase64(base64Data);
-
-        // handle the edge case, so we don't have to worry about it later
-        if (base64Data.length == 0) {
-            return new byte[0];
-        }
-
-        int numberQuadruple = base64Data.length / FOURBYTE;
-        byte decodedData[] = null;
-        byte b1 = 0, b2 = 0, b3 = 0, b4 = 0, marker0 = 0, marker1 = 0;
-
-        // Throw away anything not in base64Data
-
-        int encodedIndex = 0;
-        int dataIndex = 0;
-        {
-            // this sizes the output array properly - rlw
-            int lastData = base64Data.length;
-            // ignore the '=' padding
-            while (base64Data[lastData - 1] == PAD) {
-                if (--lastData == 0) {
-                    return new byte[0];
-                }
-            }
-            decodedData = new byte[lastData - numberQuadruple];
-        }
-
-        for (int i = 0; i < numberQuadruple; i++) {
-            dataIndex = i * 4;
-            marker0 = base64Data[dataIndex + 2];
-            marker1 = base64Data[dataIndex + 3];
-
-            b1 = base64Alphabet[base64Data[dataIndex]];
-            b2 = base64Alphabet[base64Data[dataIndex + 1]];
-
-            if (marker0 != PAD && marker1 != PAD) {
-                //No PAD e.g 3cQl
-                b3 = base64Alphabet[marker0];
-                b4 = base64Alphabet[marker1];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] =
-                    (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-                decodedData[encodedIndex + 2] = (byte) (b3 << 6 | b4);
-            } else if (marker0 == PAD) {
-                //Two PAD e.g. 3c[Pad][Pad]
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-            } else if (marker1 == PAD) {
-                //One PAD e.g. 3cQ[Pad]
-                b3 = base64Alphabet[marker0];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] =
-                    (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-            }
-            encodedIndex += 3;
+        Decoder decoder = new Decoder(false);
+        byte[] decodedData = new byte[decoder.getMaxLength(base64Data.length)];
+        int decodedIndex = decoder.decode(base64Data, 0, base64Data.length, decodedData, 0);
+        decodedIndex = decoder.finish(decodedData, decodedIndex);
+        if (decodedIndex == decodedData.length) {
+            return decodedData;
         }
-        return decodedData;
+        byte packedData[] = new byte[decodedIndex];
+        System.arraycopy(decodedData, 0, packedData, 0, decodedIndex);
+        return packedData;
     }
 
     /**
@@ -363,29 +345,576 @@ public class Base64 {
     }
 
     /**
-     * Discards any characters outside of the base64 alphabet, per
-     * the requirements on page 25 of RFC 2045 - "Any characters
-     * outside of the base64 alphabet are to be ignored in base64
-     * encoded data."
-     *
-     * @param data The base-64 encoded data to groom
-     * @return The data, less non-base64 characters (see RFC 2045).
+     * A streaming Base64 encoder. The encoder keeps the bytes of an
+     * incomplete group and the position in the current line between
+     * calls, so data can be encoded in pieces of any size. It allocates
+     * nothing after it is constructed. An encoder is not thread-safe.
      */
-    static byte[] discardNonBase64(byte[] data) {
-        byte groomedData[] = new byte[data.length];
-        int bytesCopied = 0;
+    public static class Encoder {
+        final byte[] alphabet;
+        final boolean padding;
+        final int lineLength;
+        final byte[] group = new byte[4];
+        byte[] scratchIn = null;
+        byte[] scratchOut = null;
+        int bits = 0;
+        int count = 0;
+        int linePosition = 0;
+
+        /**
+         * Creates an encoder.
+         *
+         * @param urlSafe true to use the URL and filename safe alphabet of
+         * RFC 4648 section 5, without padding; false to use the standard
+         * alphabet, with padding.
+         * @param chunked true to break the output into lines of
+         * {@value Base64#CHUNK_SIZE} characters separated by CRLF, as
+         * RFC 2045 requires; false for a single line.
+         */
+        public Encoder(boolean urlSafe, boolean chunked) {
+            alphabet = urlSafe ? lookUpUrlSafeBase64Alphabet : lookUpBase64Alphabet;
+            padding = !urlSafe;
+            lineLength = chunked ? CHUNK_SIZE : 0;
+        }
 
-        for (int i = 0; i < data.length; i++) {
-            if (isBase64(data[i])) {
-                groomedData[bytesCopied++] = data[i];
+        /**
+         * Encodes bytes from one buffer into another. Only complete groups
+         * of three bytes are encoded until the end of the input; the bytes
+         * of an incomplete group are kept by the encoder for the next call.
+         * The output is written in whole groups of four characters (with
+         * any line separator before them), and the method returns when the
+         * source is empty or the destination has no room for the next group.
+         * When the end of the input has been reached, the encoding is complete
+         * when the source is empty and {@link #hasRemaining()} returns false;
+         * the encoder can then be used for new data.
+         *
+         * @param src The bytes to encode.
+         * @param dst The buffer for the encoded data.
+         * @param endOfInput true if src contains the end of the data.
+         * @return the number of bytes written to dst.
+         */
+        public int encode(ByteBuffer src, ByteBuffer dst, boolean endOfInput) {
+            int start = dst.position();
+            while (true) {
+                if (count == 0) {
+                    int groupLength = FOURBYTE + ((lineLength > 0) ? CHUNK_SEPARATOR.length : 0);
+                    int groups = Math.min(src.remaining() / 3, dst.remaining() / groupLength);
+                    if (groups > 0) {
+                        encodeGroups(src, dst, groups);
+                        continue;
+                    }
+                }
+                while ((count < 3) && src.hasRemaining()) {
+                    bits = (bits << EIGHTBIT) | (src.get() & 0xff);
+                    count++;
+                }
+                if ((count == 0) || ((count < 3) && !endOfInput)) {
+                    break;
+                }
+                int n = ((count < 3) && !padding) ? count + 1 : FOURBYTE;
+                boolean lineBreak = (lineLength > 0) && (linePosition >= lineLength);
+                if (dst.remaining() < n + (lineBreak ? CHUNK_SEPARATOR.length : 0)) {
+                    break;
+                }
+                if (lineBreak) {
+                    dst.put(CHUNK_SEPARATOR);
+                    linePosition = 0;
+                }
+                dst.put(group, 0, format());
+                linePosition += n;
             }
+            if (endOfInput && (count == 0) && !src.hasRemaining()) {
+                linePosition = 0;
+            }
+            return dst.position() - start;
         }
 
-        byte packedData[] = new byte[bytesCopied];
+        /**
+         * Gets the maximum number of bytes that encoding some more data
+         * can produce, including the end of the data.
+         *
+         * @param length The number of bytes to be encoded.
+         * @return the maximum number of bytes of encoded data.
+         */
+        public int getMaxLength(int length) {
+            int chars = (count + length + 2) / 3 * FOURBYTE;
+            if (lineLength == 0) {
+                return chars;
+            }
+            return chars + (linePosition + chars) / lineLength * CHUNK_SEPARATOR.length;
+        }
 
-        System.arraycopy(groomedData, 0, packedData, 0, bytesCopied);
+        /**
+         * Determines whether the encoder holds bytes of an incomplete group.
+         *
+         * @return true if bytes are waiting to be encoded.
+         */
+        public boolean hasRemaining() {
+            return count > 0;
+        }
 
-        return packedData;
+        /**
+         * Discards any bytes waiting to be encoded and starts a new line,
+         * so the encoder can be used for new data.
+         */
+        public void reset() {
+            bits = 0;
+            count = 0;
+            linePosition = 0;
+        }
+
+        // Encodes whole groups from one buffer into another that has room for
+        // them and their line separators. Buffers without accessible arrays
+        // are copied through scratch arrays, which are created once.
+        private void encodeGroups(ByteBuffer src, ByteBuffer dst, int groups) {
+            if (src.hasArray() && dst.hasArray()) {
+                int end = encode(src.array(), src.arrayOffset() + src.position(), groups,
+                                 dst.array(), dst.arrayOffset() + dst.position());
+                src.position(src.position() + groups * 3);
+                dst.position(end - dst.arrayOffset());
+                return;
+            }
+            if (scratchIn == null) {
+                scratchIn = new byte[SCRATCH_GROUPS * 3];
+                scratchOut = new byte[SCRATCH_GROUPS * (FOURBYTE + CHUNK_SEPARATOR.length)];
+            }
+            groups = Math.min(groups, SCRATCH_GROUPS);
+            src.get(scratchIn, 0, groups * 3);
+            dst.put(scratchOut, 0, encode(scratchIn, 0, groups, scratchOut, 0));
+        }
+
+        // Encodes whole groups from an array into an array that has room for
+        // them and their line separators; returns the new position in dst.
+        int encode(byte[] src, int off, int groups, byte[] dst, int position) {
+            byte[] a = alphabet;
+            for (int g = 0; g < groups; g++) {
+                if ((lineLength > 0) && (linePosition >= lineLength)) {
+                    for (int i = 0; i < CHUNK_SEPARATOR.length; i++) {
+                        dst[position++] = CHUNK_SEPARATOR[i];
+                    }
+                    linePosition = 0;
+                }
+                int b = ((src[off] & 0xff) << SIXTEENBIT) | ((src[off + 1] & 0xff) << EIGHTBIT) | (src[off + 2] & 0xff);
+                off += 3;
+                dst[position] = a[b >>> 18];
+                dst[position + 1] = a[(b >>> 12) & 0x3f];
+                dst[position + 2] = a[(b >>> 6) & 0x3f];
+                dst[position + 3] = a[b & 0x3f];
+                position += FOURBYTE;
+                linePosition += FOURBYTE;
+            }
+            return position;
+        }
+
+        // Adds a byte to the group, returning true if the group is complete.
+        boolean add(int b) {
+            bits = (bits << EIGHTBIT) | (b & 0xff);
+            return ++count == 3;
+        }
+
+        // Writes the group, with a line separator before it if one is due,
+        // to an array that has room for 6 bytes; returns the new position.
+        int put(byte[] dst, int position) {
+            if ((lineLength > 0) && (linePosition >= lineLength)) {
+                for (int i = 0; i < CHUNK_SEPARATOR.length; i++) {
+                    dst[position++] = CHUNK_SEPARATOR[i];
+                }
+                linePosition = 0;
+            }
+            int n = format();
+            System.arraycopy(group, 0, dst, position, n);
+            linePosition += n;
+            return position + n;
+        }
+
+        // Encodes the bytes of the group (one, two, or three) into the
+        // group array and clears them; returns the number of characters.
+        private int format() {
+            int n = count;
+            int b = bits << (EIGHTBIT * (3 - n));
+            group[0] = alphabet[(b >> 18) & 0x3f];
+            group[1] = alphabet[(b >> 12) & 0x3f];
+            group[2] = (n > 1) ? alphabet[(b >> 6) & 0x3f] : PAD;
+            group[3] = (n > 2) ? alphabet[b & 0x3f] : PAD;
+            bits = 0;
+            count = 0;
+            return ((n < 3) && !padding) ? n + 1 : FOURBYTE;
+        }
+    }
+
+    /**
+     * A streaming Base64 decoder. As RFC 2045 requires, characters
+     * outside the alphabet, including the whitespace and line separators
+     * of MIME data, are skipped as the data is decoded. Padding is
+     * optional; a pad character ends a group. The decoder keeps the
+     * characters of an incomplete group between calls, so data can be
+     * decoded in pieces of any size. It allocates nothing after it is
+     * constructed. A decoder is not thread-safe.
+     */
+    public static class Decoder {
+        final byte[] alphabet;
+        final byte[] group = new byte[3];
+        byte[] scratchIn = null;
+        byte[] scratchOut = null;
+        int bits = 0;
+        int count = 0;
+
+        /**
+         * Creates a decoder.
+         *
+         * @param urlSafe true to decode the URL and filename safe alphabet
+         * of RFC 4648 section 5; false to decode the standard alphabet.
+         */
+        public Decoder(boolean urlSafe) {
+            alphabet = urlSafe ? urlSafeBase64Alphabet : base64Alphabet;
+        }
+
+        /**
+         * Decodes characters from one buffer into another. The method
+         * returns when the source is empty or the destination has no room
+         * for the bytes of the next group. The characters of an incomplete
+         * group are kept by the decoder for the next call, until the end of
+         * the input, when they are decoded as an unpadded group. When the end
+         * of the input has been reached, the decoding is complete when the
+         * source is empty and {@link #hasRemaining()} returns false; the
+         * decoder can then be used for new data.
+         *
+         * @param src The characters to decode.
+         * @param dst The buffer for the decoded data.
+         * @param endOfInput true if src contains the end of the data.
+         * @return the number of bytes written to dst.
+         */
+        public int decode(ByteBuffer src, ByteBuffer dst, boolean endOfInput) {
+            int start = dst.position();
+            while (src.hasRemaining()) {
+                //Decode as many characters at once as the destination has room for.
+                int chars = Math.min(src.remaining(), (dst.remaining() - 2) / 3 * FOURBYTE - count);
+                if (chars > 0) {
+                    decodeChars(src, dst, chars);
+                    continue;
+                }
+                int c = src.get(src.position()) & 0xff;
+                int needed = 0;
+                if (c == PAD) {
+                    needed = Math.max(count - 1, 0);
+                } else if ((count == 3) && (alphabet[c] != -1)) {
+                    needed = 3;
+                }
+                if (dst.remaining() < needed) {
+                    return dst.position() - start;
+                }
+                src.get();
+                dst.put(group, 0, add(c));
+            }
+            if (endOfInput && (count > 0) && (dst.remaining() >= count - 1)) {
+                dst.put(group, 0, finish(group, 0));
+            }
+            return dst.position() - start;
+        }
+
+        // Decodes characters from one buffer into another that has room for
+        // their bytes. Buffers without accessible arrays are copied through
+        // scratch arrays, which are created once.
+        private void decodeChars(ByteBuffer src, ByteBuffer dst, int chars) {
+            if (src.hasArray() && dst.hasArray()) {
+                int off = src.arrayOffset() + src.position();
+                int end = decode(src.array(), off, off + chars, dst.array(), dst.arrayOffset() + dst.position());
+                src.position(src.position() + chars);
+                dst.position(end - dst.arrayOffset());
+                return;
+            }
+            if (scratchIn == null) {
+                scratchIn = new byte[SCRATCH_GROUPS * FOURBYTE];
+                scratchOut = new byte[SCRATCH_GROUPS * 3 + 3];
+            }
+            chars = Math.min(chars, scratchIn.length);
+            src.get(scratchIn, 0, chars);
+            dst.put(scratchOut, 0, decode(scratchIn, 0, chars, scratchOut, 0));
+        }
+
+        // Decodes characters from an array into an array that has room for
+        // getMaxLength(end - off) bytes; returns the new position in dst.
+        int decode(byte[] src, int off, int end, byte[] dst, int position) {
+            byte[] a = alphabet;
+            for (int i = off; i < end; i++) {
+                int c = src[i] & 0xff;
+                int value = a[c];
+                if (value == -1) {
+                    if (c == PAD) {
+                        position = finish(dst, position);
+                    }
+                    continue;
+                }
+                bits = (bits << 6) | value;
+                if (++count == FOURBYTE) {
+                    dst[position] = (byte) (bits >> SIXTEENBIT);
+                    dst[position + 1] = (byte) (bits >> EIGHTBIT);
+                    dst[position + 2] = (byte) bits;
+                    position += 3;
+                    bits = 0;
+                    count = 0;
+                }
+            }
+            return position;
+        }
+
+        /**
+         * Gets the maximum number of bytes that decoding some more
+         * characters can produce, including the end of the data.
+         *
+         * @param length The number of characters to be decoded.
+         * @return the maximum number of bytes of decoded data.
+         */
+        public int getMaxLength(int length) {
+            return (count + length) / FOURBYTE * 3 + 2;
+        }
+
+        /**
+         * Determines whether the decoder holds characters of an incomplete group.
+         *
+         * @return true if characters are waiting to be decoded.
+         */
+        public boolean hasRemaining() {
+            return count > 0;
+        }
+
+        /**
+         * Discards any characters waiting to be decoded, so the decoder
+         * can be used for new data.
+         */
+        public void reset() {
+            bits = 0;
+            count = 0;
+        }
+
+        // Adds a character to the group; returns the number of decoded
+        // bytes that are ready in the group array.
+        int add(int c) {
+            c &= 0xff;
+            if (c == PAD) {
+                return finish(group, 0);
+            }
+            int value = alphabet[c];
+            if (value == -1) {
+                return 0;
+            }
+            bits = (bits << 6) | value;
+            if (++count < FOURBYTE) {
+                return 0;
+            }
+            group[0] = (byte) (bits >> SIXTEENBIT);
+            group[1] = (byte) (bits >> EIGHTBIT);
+            group[2] = (byte) bits;
+            bits = 0;
+            count = 0;
+            return 3;
+        }
+
+        // Ends the group, writing its decoded bytes to an array that has
+        // room for 2 bytes; returns the new position. A single character
+        // has too few bits for a byte, and is discarded.
+        int finish(byte[] dst, int position) {
+            int b = bits << (6 * (FOURBYTE - count));
+            if (count > 1) {
+                dst[position++] = (byte) (b >> SIXTEENBIT);
+            }
+            if (count > 2) {
+                dst[position++] = (byte) (b >> EIGHTBIT);
+            }
+            bits = 0;
+            count = 0;
+            return position;
+        }
+    }
+
+    /**
+     * An OutputStream that encodes the data written to it and writes the
+     * encoded data to another stream. Closing the stream encodes the last
+     * group, with its padding, and closes the other stream. The stream has
+     * a fixed buffer; writing to it allocates nothing.
+     */
+    public static class EncodingOutputStream extends FilterOutputStream {
+        final Encoder encoder;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int position = 0;
+        boolean closed = false;
+
+        /**
+         * Creates an encoding stream.
+         *
+         * @param out The stream to which the encoded data is written.
+         * @param encoder The encoder, which is reset for the new data.
+         */
+        public EncodingOutputStream(OutputStream out, Encoder encoder) {
+            super(out);
+            this.encoder = encoder;
+            encoder.reset();
+        }
+
+        public void write(int b) throws IOException {
+            if (encoder.add(b)) {
+                put();
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if ((off < 0) || (len < 0) || (len > b.length - off)) {
+                throw new IndexOutOfBoundsException();
+            }
+            int end = off + len;
+            while ((off < end) && encoder.hasRemaining()) {
+                if (encoder.add(b[off++])) {
+                    put();
+                }
+            }
+            while (end - off >= 3) {
+                if (position > buffer.length - 6) {
+                    flushBuffer();
+                }
+                int groups = Math.min((end - off) / 3, (buffer.length - position) / 6);
+                position = encoder.encode(b, off, groups, buffer, position);
+                off += groups * 3;
+            }
+            while (off < end) {
+                encoder.add(b[off++]);
+            }
+        }
+
+        /**
+         * Writes the encoded data of the complete groups and flushes the
+         * other stream. The bytes of an incomplete group are not written
+         * until more data completes the group or the stream is closed.
+         */
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (encoder.hasRemaining()) {
+                    put();
+                }
+                flushBuffer();
+                encoder.reset();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void put() throws IOException {
+            if (position > buffer.length - 6) {
+                flushBuffer();
+            }
+            position = encoder.put(buffer, position);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (position > 0) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+    }
+
+    /**
+     * An InputStream that reads Base64 data from another stream and
+     * supplies the decoded data. The stream has fixed buffers; reading
+     * from it allocates nothing. Mark and reset are not supported.
+     */
+    public static class DecodingInputStream extends FilterInputStream {
+        final Decoder decoder;
+        final byte[] input = new byte[BUFFER_SIZE];
+        final byte[] buffer = new byte[BUFFER_SIZE / FOURBYTE * 3 + 3];
+        int position = 0;
+        int limit = 0;
+        boolean eof = false;
+
+        /**
+         * Creates a decoding stream.
+         *
+         * @param in The stream from which the Base64 data is read.
+         * @param decoder The decoder, which is reset for the new data.
+         */
+        public DecodingInputStream(InputStream in, Decoder decoder) {
+            super(in);
+            this.decoder = decoder;
+            decoder.reset();
+        }
+
+        public int read() throws IOException {
+            if ((position == limit) && !fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if ((off < 0) || (len < 0) || (len > b.length - off)) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if ((position == limit) && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                if ((position == limit) && !fill()) {
+                    break;
+                }
+                int k = (int) Math.min(n - skipped, limit - position);
+                position += k;
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return limit - position;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void mark(int readlimit) { }
+
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        // Reads and decodes data until some decoded bytes are available;
+        // returns false at the end of the data.
+        private boolean fill() throws IOException {
+            position = 0;
+            limit = 0;
+            while (limit == 0) {
+                if (eof) {
+                    return false;
+                }
+                int n = in.read(input, 0, input.length);
+                if (n == -1) {
+                    eof = true;
+                    limit = decoder.finish(buffer, 0);
+                } else {
+                    limit = decoder.decode(input, 0, n, buffer, 0);
+                }
+            }
+            return true;
+        }
     }
 
 }
@@ -0,0 +1,233 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.List;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import org.rsna.ui.RowLayout;
+
+/**
+ * A JPanel providing a user interface for probing a list of URLs in
+ * parallel, with the method, engine, authentication, and proxy settings
+ * of the HTTP Client, Authentication, and Proxy tabs. The results are
+ * shown in a table that can be sorted on any column.
+ */
+public class BatchClient extends JPanel {
+
+	static Color bg = HttpClient.bg;
+
+	HttpClient client;
+	Header header;
+	JTextArea urls;
+	JTable table;
+	ResultsModel model;
+	JLabel summary;
+	Font font;
+	BatchProber prober = null;
+	javax.swing.Timer timer = null;
+	JFileChooser chooser = null;
+
+	//The interval at which the table is refreshed while a batch runs.
+	static final int REFRESH_INTERVAL = 250;
+
+	/**
+	 * Class constructor.
+	 * @param client the HTTP Client tab, whose settings are used for the probes.
+	 */
+	public BatchClient(HttpClient client) {
+		super(new BorderLayout());
+		this.client = client;
+		font = new Font("Monospaced", Font.PLAIN, 12);
+		header = new Header();
+		this.add(header, BorderLayout.NORTH);
+
+		urls = new JTextArea(8, 80);
+		urls.setFont(font);
+		urls.setText("# One URL per line, optionally followed by direct or proxy HOST:PORT\n");
+		model = new ResultsModel();
+		table = new JTable(model);
+		table.setAutoCreateRowSorter(true);
+		table.setFont(font);
+		table.getColumnModel().getColumn(1).setPreferredWidth(300);
+		table.getColumnModel().getColumn(9).setPreferredWidth(200);
+		JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+										  new JScrollPane(urls),
+										  new JScrollPane(table));
+		split.setResizeWeight(0.25);
+		this.add(split, BorderLayout.CENTER);
+		summary = new JLabel(" ");
+		this.add(summary, BorderLayout.SOUTH);
+	}
+
+	//Start a batch of probes of the URLs in the text area.
+	void start() {
+		List<String> list = BatchProber.parse(urls.getText());
+		if (list.isEmpty()) {
+			HttpTest.message.setText("No URLs to probe");
+			return;
+		}
+		HttpProbe template;
+		int threads;
+		try {
+			threads = Integer.parseInt(header.threads.getText().trim());
+			template = client.getProbe(list.get(0));
+			template.setTimeout(Integer.parseInt(header.timeout.getText().trim()) * 1000);
+		}
+		catch (Exception ex) {
+			HttpTest.message.setText("Invalid batch settings: " + ex.getMessage());
+			return;
+		}
+		HttpTest.message.setText(" ");
+		final BatchProber batch = new BatchProber(template, list, threads);
+		prober = batch;
+		model.fireTableDataChanged();
+		header.run.setText("Stop");
+		timer = new javax.swing.Timer(REFRESH_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		timer.start();
+		new Thread("BatchProbe") {
+			public void run() {
+				batch.run();
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						timer.stop();
+						refresh();
+						header.run.setText("Run");
+					}
+				});
+			}
+		}.start();
+	}
+
+	//Update the table and the summary.
+	private void refresh() {
+		if (prober == null) return;
+		model.fireTableRowsUpdated(0, prober.size() - 1);
+		summary.setText(prober.getSummary());
+	}
+
+	//Load the list of URLs from a file.
+	void load() {
+		if (chooser == null) chooser = new JFileChooser();
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File file = chooser.getSelectedFile();
+		try {
+			List<String> list = BatchProber.read(file);
+			StringBuffer sb = new StringBuffer("# " + file.getName() + "\n");
+			for (String url : list) sb.append(url + "\n");
+			urls.setText(sb.toString());
+			urls.setCaretPosition(0);
+		}
+		catch (Exception ex) {
+			HttpTest.message.setText("Unable to read " + file + ": " + ex.getMessage());
+		}
+	}
+
+	//The table of results, one row per URL of the current batch.
+	class ResultsModel extends AbstractTableModel {
+		String[] names = {
+			"#", "URL", "Route", "Status", "Message", "Protocol",
+			"Connect (ms)", "Total (ms)", "Bytes", "Error"
+		};
+		Class<?>[] classes = {
+			Integer.class, String.class, String.class, Integer.class, String.class, String.class,
+			Double.class, Double.class, Long.class, String.class
+		};
+
+		public int getRowCount() {
+			return (prober != null) ? prober.size() : 0;
+		}
+
+		public int getColumnCount() {
+			return names.length;
+		}
+
+		public String getColumnName(int column) {
+			return names[column];
+		}
+
+		public Class<?> getColumnClass(int column) {
+			return classes[column];
+		}
+
+		public Object getValueAt(int row, int column) {
+			if (column == 0) return Integer.valueOf(row + 1);
+			if (column == 1) return prober.getURL(row);
+			if (column == 2) return prober.getRoute(row);
+			HttpProbe probe = prober.getResult(row);
+			if (probe == null) return null;
+			boolean ok = (probe.getError() == null);
+			switch (column) {
+				case 3: return ok ? Integer.valueOf(probe.getResponseCode()) : null;
+				case 4: return ok ? probe.getResponseMessage() : null;
+				case 5: return probe.getProtocol();
+				case 6: return (ok && (probe.getConnectTime() >= 0)) ? Double.valueOf(round(probe.getConnectTime())) : null;
+				case 7: return Double.valueOf(round(probe.getTotalTime()));
+				case 8: return ok ? Long.valueOf(probe.getBytes()) : null;
+				case 9: return probe.getError();
+			}
+			return null;
+		}
+
+		private double round(double ms) {
+			return Math.round(ms * 10) / 10.0;
+		}
+	}
+
+	//Class to provide the buttons and settings
+	class Header extends JPanel implements ActionListener {
+		public JTextField threads;
+		public JTextField timeout;
+		JButton run;
+		JButton load;
+
+		public Header() {
+			super();
+			this.setLayout(new RowLayout());
+			setBackground(bg);
+			add(RowLayout.crlf());
+
+			run = new JButton("Run");
+			run.addActionListener(this);
+			load = new JButton("Load URLs...");
+			load.addActionListener(this);
+			threads = new JTextField(Integer.toString(BatchProber.DEFAULT_THREADS), 5);
+			threads.setFont(font);
+			timeout = new JTextField("10", 5);
+			timeout.setFont(font);
+			JPanel p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(load);
+			p.add(new JLabel("    Threads:"));
+			p.add(threads);
+			p.add(new JLabel("    Timeout (s):"));
+			p.add(timeout);
+			p.add(RowLayout.crlf());
+			add(run);
+			add(p);
+			add(RowLayout.crlf());
+			add(new JLabel("The probes use the method, engine, authentication, and proxy settings of the other tabs."));
+			add(RowLayout.crlf());
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			if (e.getSource().equals(load)) load();
+			else if (e.getSource().equals(run)) {
+				if ((prober != null) && !prober.isFinished()) prober.stop();
+				else start();
+			}
+		}
+	}
+}
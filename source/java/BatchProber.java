@@ -0,0 +1,240 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A batch of probes of a list of URLs, made in parallel on a fixed
+ * number of threads. Every probe has the settings of a template probe
+ * (method, body, credentials, engine, timeout, etc.). The results are
+ * kept in the order of the URLs and can be read while the batch runs.
+ * <p>
+ * Each URL may specify its own route, following the URL on its line:
+ * "direct" for a direct connection, or "proxy HOST:PORT" for an HTTP
+ * proxy. Other URLs use the route of the template. The same URL can be
+ * listed with different routes to compare them.
+ */
+public class BatchProber {
+
+	/** The default number of threads. */
+	public static final int DEFAULT_THREADS = 16;
+
+	String[] urls;
+	java.net.Proxy[] routes;
+	HttpProbe template;
+	int threads;
+	AtomicReferenceArray<HttpProbe> results;
+	AtomicInteger completed = new AtomicInteger();
+	AtomicInteger errors = new AtomicInteger();
+	volatile boolean stopped = false;
+	long startTime = 0;
+	volatile long endTime = 0;
+
+	/**
+	 * Class constructor.
+	 * @param template the probe whose settings are used for every URL.
+	 * @param urls the URLs to probe.
+	 * @param threads the maximum number of probes in progress at once.
+	 */
+	public BatchProber(HttpProbe template, List<String> urls, int threads) {
+		this.template = template;
+		this.urls = new String[urls.size()];
+		routes = new java.net.Proxy[this.urls.length];
+		int i = 0;
+		for (String line : urls) {
+			String[] parts = line.trim().split("\\s+", 2);
+			this.urls[i] = parts[0];
+			routes[i] = (parts.length > 1) ? parseRoute(parts[1]) : template.proxy;
+			i++;
+		}
+		this.threads = Math.max(1, Math.min(threads, this.urls.length));
+		results = new AtomicReferenceArray<HttpProbe>(this.urls.length);
+	}
+
+	/**
+	 * Parse a list of URLs, one per line, each optionally followed by
+	 * its route. Blank lines and lines starting with # are ignored, and
+	 * http:// is supplied where the scheme is missing.
+	 * @param text the list.
+	 * @return the lines of the URLs.
+	 * @throws IllegalArgumentException if a route is invalid.
+	 */
+	public static List<String> parse(String text) {
+		LinkedList<String> list = new LinkedList<String>();
+		for (String line : text.split("\n")) {
+			line = line.trim();
+			if (line.equals("") || line.startsWith("#")) continue;
+			if (line.indexOf("://") == -1) line = "http://" + line;
+			String[] parts = line.split("\\s+", 2);
+			if (parts.length > 1) parseRoute(parts[1]);
+			list.add(line);
+		}
+		return list;
+	}
+
+	/**
+	 * Parse a route.
+	 * @param route "direct" or "proxy HOST:PORT".
+	 * @return the route.
+	 * @throws IllegalArgumentException if the route is invalid.
+	 */
+	public static java.net.Proxy parseRoute(String route) {
+		String[] parts = route.trim().split("\\s+");
+		if ((parts.length == 1) && parts[0].equalsIgnoreCase("direct")) return java.net.Proxy.NO_PROXY;
+		if ((parts.length == 2) && parts[0].equalsIgnoreCase("proxy")) return HttpProbe.createProxy(parts[1]);
+		throw new IllegalArgumentException("Invalid route (use direct or proxy HOST:PORT): " + route);
+	}
+
+	/**
+	 * Read a list of URLs from a file, as for parse.
+	 * @param file the file.
+	 * @return the URLs.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static List<String> read(File file) throws IOException {
+		StringBuffer sb = new StringBuffer();
+		BufferedReader reader = new BufferedReader(
+			new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) sb.append(line + "\n");
+		}
+		finally { reader.close(); }
+		return parse(sb.toString());
+	}
+
+	/**
+	 * Probe all the URLs, returning when all the probes have completed
+	 * or the batch has been stopped.
+	 */
+	public void run() {
+		startTime = System.nanoTime();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+										threads, threads,
+										60L, TimeUnit.SECONDS,
+										new LinkedBlockingQueue<Runnable>());
+		for (int i=0; i<urls.length; i++) {
+			final int index = i;
+			pool.execute(new Runnable() {
+				public void run() {
+					if (stopped) return;
+					HttpProbe probe = new HttpProbe(template, urls[index]);
+					probe.setProxy(routes[index]);
+					probe.execute();
+					results.set(index, probe);
+					if ((probe.getError() != null) || (probe.getResponseCode() >= 400)) {
+						errors.incrementAndGet();
+					}
+					completed.incrementAndGet();
+				}
+			});
+		}
+		pool.shutdown();
+		try { pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS); }
+		catch (InterruptedException ex) { pool.shutdownNow(); }
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * Stop the batch. Probes in progress are allowed to complete;
+	 * the others are not made.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Get the number of URLs in the batch.
+	 * @return the number of URLs.
+	 */
+	public int size() {
+		return urls.length;
+	}
+
+	/**
+	 * Get a URL.
+	 * @param index the position of the URL in the list.
+	 * @return the URL.
+	 */
+	public String getURL(int index) {
+		return urls[index];
+	}
+
+	/**
+	 * Get the description of the route of a URL.
+	 * @param index the position of the URL in the list.
+	 * @return "direct", "proxy HOST:PORT", or "default" for the proxy in the System properties.
+	 */
+	public String getRoute(int index) {
+		return HttpProbe.getRouteName(routes[index]);
+	}
+
+	/**
+	 * Get the result of the probe of a URL.
+	 * @param index the position of the URL in the list.
+	 * @return the completed probe, or null if the probe has not completed.
+	 */
+	public HttpProbe getResult(int index) {
+		return results.get(index);
+	}
+
+	/**
+	 * Get the number of probes that have completed.
+	 * @return the number of probes.
+	 */
+	public int getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Determine whether the batch has finished.
+	 * @return true if all the probes have completed or the batch was stopped.
+	 */
+	public boolean isFinished() {
+		return endTime != 0;
+	}
+
+	//Get the elapsed time of the batch in seconds.
+	private double getElapsed() {
+		if (startTime == 0) return 0;
+		long end = (endTime != 0) ? endTime : System.nanoTime();
+		return (end - startTime) / 1000000000.0;
+	}
+
+	/**
+	 * Get a one-line summary of the batch.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		String state = isFinished() ? (stopped ? "Stopped" : "Finished") : "Running";
+		return state + ": " + completed.get() + " of " + urls.length + " URLs probed, "
+				+ errors.get() + " failed, in " + String.format("%.3f", getElapsed())
+				+ " s on " + threads + " threads";
+	}
+
+	/**
+	 * Get the summary of the batch as a JSON object.
+	 * @return the summary.
+	 */
+	public JsonLine toJson() {
+		return new JsonLine()
+			.put("type", "batch")
+			.put("urls", urls.length)
+			.put("completed", completed.get())
+			.put("errors", errors.get())
+			.put("threads", threads)
+			.put("seconds", getElapsed());
+	}
+}
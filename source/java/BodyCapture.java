@@ -0,0 +1,288 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedList;
+
+/**
+ * An OutputStream that captures the content of a request for the
+ * connection report. A body no larger than the threshold is kept in
+ * memory and reported in full. When a body exceeds the threshold, only
+ * the first part of it (the preview) is kept in memory; the whole body
+ * is spooled to a temporary file if a spool directory has been set,
+ * and otherwise the rest of it is just counted. In either case, a body
+ * of any size can be streamed through the capture in bounded memory.
+ * The spool files are kept so they can be examined, but their total
+ * size is limited: when a new file takes the total over the limit, the
+ * oldest files are deleted. All the spool files are deleted when the
+ * program exits.
+ */
+public class BodyCapture extends OutputStream {
+
+	/** The default number of bytes of a large body that are shown in the report. */
+	public static final int DEFAULT_PREVIEW_SIZE = 10000;
+	/** The default size above which a body is not kept in memory. */
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+	/** The default limit on the total size of the spool files that are kept. */
+	public static final long DEFAULT_MAX_SPOOL_SIZE = 1024L * 1024L * 1024L;
+
+	static final int SPOOL_BUFFER_SIZE = 65536;
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	static final LinkedList<File> spoolFiles = new LinkedList<File>();
+	static long spoolSize = 0;
+	static long maxSpoolSize = DEFAULT_MAX_SPOOL_SIZE;
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() { deleteSpoolFiles(); }
+		});
+	}
+
+	byte[] data;
+	int length = 0;
+	int limit;
+	int previewSize;
+	long count = 0;
+	boolean truncated = false;
+	File dir;
+	File file = null;
+	FileChannel channel = null;
+	ByteBuffer spoolBuffer = null;
+	long startTime;
+	long endTime = 0;
+	String error = null;
+
+	/**
+	 * Class constructor.
+	 * @param threshold the maximum size of a body that is kept in memory.
+	 * @param previewSize the number of bytes of a larger body to keep in memory.
+	 * @param dir the directory in which to spool bodies larger than the
+	 * threshold, or null if such bodies are not to be spooled.
+	 */
+	public BodyCapture(int threshold, int previewSize, File dir) {
+		this.limit = Math.max(0, threshold);
+		this.previewSize = Math.min(Math.max(0, previewSize), limit);
+		this.dir = dir;
+		data = new byte[Math.min(limit, 8192)];
+		startTime = System.nanoTime();
+	}
+
+	/**
+	 * Write one byte.
+	 * @param b the byte.
+	 */
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	/**
+	 * Write bytes from an array.
+	 * @param b the array.
+	 * @param off the index of the first byte to write.
+	 * @param len the number of bytes to write.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len <= 0) return;
+		if (!truncated && (length + len > limit)) {
+			//This write takes the body over the threshold.
+			if (dir != null) {
+				try { spill(); }
+				catch (IOException ex) {
+					setError("Unable to spool the body: " + ex.getMessage());
+					closeSpool();
+					if (file != null) file.delete();
+					file = null;
+				}
+			}
+			truncate();
+			truncated = true;
+		}
+		if (channel != null) spool(b, off, len);
+		if (!truncated) {
+			ensureCapacity(length + len);
+			System.arraycopy(b, off, data, length, len);
+			length += len;
+		}
+		else if (length < previewSize) {
+			int n = Math.min(len, previewSize - length);
+			System.arraycopy(b, off, data, length, n);
+			length += n;
+		}
+		count += len;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			int newLength = (int)Math.min((long)limit, Math.max(2L * data.length, capacity));
+			byte[] bigger = new byte[newLength];
+			System.arraycopy(data, 0, bigger, 0, length);
+			data = bigger;
+		}
+	}
+
+	//Open the spool file and write the bytes that are in memory to it.
+	private void spill() throws IOException {
+		file = File.createTempFile("HttpTest-body-", ".bin", dir);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		spoolBuffer = ByteBuffer.allocateDirect(SPOOL_BUFFER_SIZE);
+		spool(data, 0, length);
+	}
+
+	//Keep only the preview in memory.
+	private void truncate() {
+		byte[] preview = new byte[previewSize];
+		int n = Math.min(length, previewSize);
+		System.arraycopy(data, 0, preview, 0, n);
+		data = preview;
+		length = n;
+	}
+
+	//Write bytes to the spool file through the spool buffer.
+	private void spool(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, spoolBuffer.remaining());
+			spoolBuffer.put(b, off, n);
+			off += n;
+			len -= n;
+			if (!spoolBuffer.hasRemaining()) flushSpool();
+		}
+	}
+
+	private void flushSpool() throws IOException {
+		spoolBuffer.flip();
+		while (spoolBuffer.hasRemaining()) channel.write(spoolBuffer);
+		spoolBuffer.clear();
+	}
+
+	/**
+	 * Mark the end of the body, closing the spool file if there is one.
+	 */
+	public void close() {
+		if (endTime == 0) endTime = System.nanoTime();
+		if (channel != null) {
+			try { flushSpool(); }
+			catch (Exception ex) { setError(ex.getMessage()); }
+			closeSpool();
+			keep(file);
+		}
+	}
+
+	/**
+	 * Set the limit on the total size of the spool files that are kept.
+	 * @param maxSize the maximum total size in bytes.
+	 */
+	public static synchronized void setMaxSpoolSize(long maxSize) {
+		maxSpoolSize = Math.max(0, maxSize);
+	}
+
+	//Add a spool file to the list of files that are kept, deleting
+	//the oldest files if the total size exceeds the limit. The newest
+	//file is always kept, so the report does not name a missing file.
+	private static synchronized void keep(File file) {
+		spoolFiles.add(file);
+		spoolSize += file.length();
+		while ((spoolSize > maxSpoolSize) && (spoolFiles.size() > 1)) {
+			File oldest = spoolFiles.removeFirst();
+			spoolSize -= oldest.length();
+			oldest.delete();
+		}
+	}
+
+	//Delete all the spool files.
+	static synchronized void deleteSpoolFiles() {
+		for (File file : spoolFiles) file.delete();
+		spoolFiles.clear();
+		spoolSize = 0;
+	}
+
+	private void closeSpool() {
+		if (channel != null) {
+			try { channel.close(); }
+			catch (Exception ignore) { }
+		}
+		channel = null;
+		spoolBuffer = null;
+	}
+
+	/**
+	 * Record an error that occurred while the content was being received.
+	 * @param message the error message.
+	 */
+	public void setError(String message) {
+		error = message;
+	}
+
+	/**
+	 * Get the total number of bytes written to the stream.
+	 * @return the number of bytes.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the time taken to receive the body.
+	 * @return the time in milliseconds from the creation of the capture
+	 * until it was closed (or until now if it has not been closed).
+	 */
+	public double getDuration() {
+		long end = (endTime != 0) ? endTime : System.nanoTime();
+		return (end - startTime) / 1000000.0;
+	}
+
+	/**
+	 * Get the file in which the body was spooled.
+	 * @return the spool file, or null if the body was not spooled.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Determine whether bytes were not kept in memory because the body
+	 * was larger than the threshold.
+	 * @return true if only a preview of the body was kept.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Get the bytes that were kept in memory, as a String decoded as UTF-8.
+	 * @return the content, preceded by the error message if an error occurred.
+	 */
+	public String getContent() {
+		String content = new String(data, 0, length, utf8);
+		if (error != null) {
+			content =
+				"Error reading the input stream\nException message:\n"
+				+ error + "\n\n"
+				+ content;
+		}
+		return content;
+	}
+
+	/**
+	 * Get a description of a body that was larger than the threshold,
+	 * for the connection report.
+	 * @return the description, or the empty string if the whole body was kept.
+	 */
+	public String getSummary() {
+		if (!isTruncated()) return "";
+		String summary = "[" + count + " bytes received in "
+							+ String.format("%.1f", getDuration()) + " ms";
+		if (file != null) summary += "; spooled to " + file.getAbsolutePath();
+		summary += "; the first " + length + " bytes are shown]\n";
+		return summary;
+	}
+}
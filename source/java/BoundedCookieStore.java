@@ -0,0 +1,475 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A CookieStore for long client sessions, such as soak tests, that
+ * holds a bounded number of cookies. The number of cookies of each
+ * domain and the total number are limited; when a limit is exceeded,
+ * the least recently used cookies are evicted. Expired cookies are not
+ * searched for: they are removed when they are found by a lookup, or
+ * when the store is full.
+ * <p>
+ * The store can be kept in a file, so that a session survives a restart
+ * of the program. Every change is appended to the file as it is made,
+ * and the file is read when the store is created. Session cookies are
+ * kept too, since the point is to continue the session. The file is
+ * rewritten with the cookies in the store when it is opened, and when
+ * the records of changes greatly outnumber the cookies.
+ * <p>
+ * A cookie that was set without a Domain attribute is stored under the
+ * host that set it; a lookup for a host finds the cookies of the host
+ * and of its parent domains. The CookieManager that uses the store
+ * applies its policy to the cookies that are added, and the path,
+ * secure, and HttpOnly attributes to the cookies that are found.
+ */
+public class BoundedCookieStore implements CookieStore {
+
+	/** The default maximum number of cookies in the store. */
+	public static final int DEFAULT_MAX_COOKIES = 3000;
+	/** The default maximum number of cookies for a domain. */
+	public static final int DEFAULT_MAX_PER_DOMAIN = 50;
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	//The minimum time between searches of the whole store for expired cookies.
+	static final long PURGE_INTERVAL = 1000;
+	//The number of records beyond twice the number of cookies at which the file is rewritten.
+	static final int COMPACT_SLACK = 1000;
+
+	int maxCookies;
+	int maxPerDomain;
+	File file = null;
+	Writer writer = null;
+	int records = 0;
+
+	//The maps are in access order, so the first entry is the least recently used.
+	LinkedHashMap<String,Entry> all = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	Hashtable<String,LinkedHashMap<String,Entry>> domains = new Hashtable<String,LinkedHashMap<String,Entry>>();
+	long nextPurge = 0;
+
+	long added = 0;
+	long evicted = 0;
+	long expired = 0;
+	long loaded = 0;
+
+	/**
+	 * Class constructor; creates an empty store in memory.
+	 * @param maxCookies the maximum number of cookies in the store.
+	 * @param maxPerDomain the maximum number of cookies for a domain.
+	 */
+	public BoundedCookieStore(int maxCookies, int maxPerDomain) {
+		this.maxCookies = Math.max(1, maxCookies);
+		this.maxPerDomain = Math.max(1, maxPerDomain);
+	}
+
+	/**
+	 * Class constructor; creates a store kept in a file, loading the
+	 * cookies that are in the file, if it exists.
+	 * @param maxCookies the maximum number of cookies in the store.
+	 * @param maxPerDomain the maximum number of cookies for a domain.
+	 * @param file the file.
+	 * @throws IOException if the file cannot be read or written.
+	 */
+	public BoundedCookieStore(int maxCookies, int maxPerDomain, File file) throws IOException {
+		this(maxCookies, maxPerDomain);
+		this.file = file;
+		if (file.exists()) load();
+		compact();
+	}
+
+	/**
+	 * Add a cookie to the store, replacing the cookie with the same
+	 * domain, path, and name. A cookie with a maximum age of zero
+	 * removes the cookie that it replaces.
+	 * @param uri the URI of the response that set the cookie.
+	 * @param cookie the cookie.
+	 */
+	public synchronized void add(URI uri, HttpCookie cookie) {
+		if (cookie == null) throw new NullPointerException("cookie is null");
+		String domain = getDomain(uri, cookie);
+		if (domain == null) return;
+		String key = getKey(domain, cookie.getPath(), cookie.getName());
+		Entry old = all.get(key);
+		if (old != null) remove(old);
+		if (cookie.getMaxAge() == 0) {
+			if (old != null) log("-", old);
+			return;
+		}
+		//The JDK takes a cookie with a Max-Age attribute to be an RFC 2965
+		//cookie, which it would send with $Path and $Domain attributes that
+		//servers implementing RFC 6265 do not understand.
+		cookie.setVersion(0);
+		long maxAge = cookie.getMaxAge();
+		long expires = (maxAge < 0) ? -1 : System.currentTimeMillis() + maxAge * 1000;
+		Entry entry = new Entry(key, domain, cookie, expires);
+		put(entry);
+		added++;
+		log("+", entry);
+		enforceLimits(domain, true);
+	}
+
+	/**
+	 * Get the cookies of the host of a URI and of its parent domains.
+	 * The cookies become the most recently used.
+	 * @param uri the URI.
+	 * @return the cookies that have not expired.
+	 */
+	public synchronized List<HttpCookie> get(URI uri) {
+		if (uri == null) throw new NullPointerException("uri is null");
+		LinkedList<HttpCookie> list = new LinkedList<HttpCookie>();
+		String host = uri.getHost();
+		if (host == null) return list;
+		long now = System.currentTimeMillis();
+		for (String domain : getDomains(host.toLowerCase())) {
+			LinkedHashMap<String,Entry> map = domains.get(domain);
+			if (map == null) continue;
+			for (Entry entry : new ArrayList<Entry>(map.values())) {
+				if (entry.hasExpired(now)) {
+					remove(entry);
+					expired++;
+				}
+				else {
+					all.get(entry.key);
+					map.get(entry.key);
+					list.add(entry.cookie);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Get all the cookies in the store.
+	 * @return the cookies that have not expired.
+	 */
+	public synchronized List<HttpCookie> getCookies() {
+		purge(System.currentTimeMillis());
+		LinkedList<HttpCookie> list = new LinkedList<HttpCookie>();
+		for (Entry entry : all.values()) list.add(entry.cookie);
+		return list;
+	}
+
+	/**
+	 * Get the URIs of the domains that have cookies in the store.
+	 * @return the URIs.
+	 */
+	public synchronized List<URI> getURIs() {
+		LinkedList<URI> list = new LinkedList<URI>();
+		for (String domain : domains.keySet()) {
+			try { list.add(new URI("http", domain, "/", null)); }
+			catch (Exception skip) { }
+		}
+		return list;
+	}
+
+	/**
+	 * Remove a cookie from the store.
+	 * @param uri the URI of the response that set the cookie.
+	 * @param cookie the cookie.
+	 * @return true if the cookie was in the store.
+	 */
+	public synchronized boolean remove(URI uri, HttpCookie cookie) {
+		if (cookie == null) throw new NullPointerException("cookie is null");
+		String domain = getDomain(uri, cookie);
+		if (domain == null) return false;
+		Entry entry = all.get(getKey(domain, cookie.getPath(), cookie.getName()));
+		if (entry == null) return false;
+		remove(entry);
+		log("-", entry);
+		return true;
+	}
+
+	/**
+	 * Remove all the cookies from the store, and from its file.
+	 * @return true if the store was not empty.
+	 */
+	public synchronized boolean removeAll() {
+		boolean empty = all.isEmpty();
+		all.clear();
+		domains.clear();
+		try { compact(); }
+		catch (IOException ex) { closeWriter(); }
+		return !empty;
+	}
+
+	/**
+	 * Close the file of the store. Cookies added later are kept in
+	 * memory only.
+	 */
+	public synchronized void close() {
+		closeWriter();
+		file = null;
+	}
+
+	/**
+	 * Get the number of cookies in the store, including any that have
+	 * expired but have not been removed.
+	 * @return the number of cookies.
+	 */
+	public synchronized int size() {
+		return all.size();
+	}
+
+	/**
+	 * Get a one-line summary of the store.
+	 * @return the summary.
+	 */
+	public synchronized String getSummary() {
+		String summary = "Cookie store: " + all.size() + " cookies for " + domains.size() + " domains"
+						+ " (limits " + maxCookies + ", " + maxPerDomain + " per domain); "
+						+ added + " added, " + evicted + " evicted, " + expired + " expired";
+		if (file != null) summary += "; " + loaded + " loaded from " + file;
+		return summary;
+	}
+
+	/**
+	 * Add the statistics of the store to a JSON object.
+	 * @param json the object.
+	 * @return the object.
+	 */
+	public synchronized JsonLine addTo(JsonLine json) {
+		json.put("cookies", all.size())
+			.put("cookieDomains", domains.size())
+			.put("cookiesAdded", added)
+			.put("cookiesEvicted", evicted)
+			.put("cookiesExpired", expired);
+		if (file != null) json.put("cookiesLoaded", loaded).put("cookieFile", file.toString());
+		return json;
+	}
+
+	//Get the domain under which a cookie is stored: its Domain attribute,
+	//without a leading dot, or the host of the URI that set it.
+	static String getDomain(URI uri, HttpCookie cookie) {
+		String domain = cookie.getDomain();
+		if ((domain == null) && (uri != null)) domain = uri.getHost();
+		if (domain == null) return null;
+		domain = domain.toLowerCase();
+		if (domain.startsWith(".")) domain = domain.substring(1);
+		return domain.equals("") ? null : domain;
+	}
+
+	//Get the domains whose cookies are sent to a host: the host and its parent domains.
+	//The CookieManager stores the cookies of a host without a dot under host.local.
+	static List<String> getDomains(String host) {
+		LinkedList<String> list = new LinkedList<String>();
+		list.add(host);
+		if (host.indexOf('.') == -1) list.add(host + ".local");
+		int k = host.indexOf('.');
+		while ((k != -1) && (host.indexOf('.', k + 1) != -1)) {
+			list.add(host.substring(k + 1));
+			k = host.indexOf('.', k + 1);
+		}
+		return list;
+	}
+
+	static String getKey(String domain, String path, String name) {
+		return domain + "\t" + ((path != null) ? path : "") + "\t" + name;
+	}
+
+	private void put(Entry entry) {
+		all.put(entry.key, entry);
+		LinkedHashMap<String,Entry> map = domains.get(entry.domain);
+		if (map == null) {
+			map = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+			domains.put(entry.domain, map);
+		}
+		map.put(entry.key, entry);
+	}
+
+	private void remove(Entry entry) {
+		all.remove(entry.key);
+		LinkedHashMap<String,Entry> map = domains.get(entry.domain);
+		if (map != null) {
+			map.remove(entry.key);
+			if (map.isEmpty()) domains.remove(entry.domain);
+		}
+	}
+
+	//Evict the least recently used cookies of a domain, and then of
+	//the whole store, until both are within their limits. Expired
+	//cookies are removed first when the store is full.
+	private void enforceLimits(String domain, boolean logged) {
+		LinkedHashMap<String,Entry> map = domains.get(domain);
+		while ((map != null) && (map.size() > maxPerDomain)) {
+			evict(map.values().iterator().next(), logged);
+		}
+		if (all.size() > maxCookies) {
+			long now = System.currentTimeMillis();
+			if (now >= nextPurge) {
+				purge(now);
+				nextPurge = now + PURGE_INTERVAL;
+			}
+		}
+		while (all.size() > maxCookies) {
+			evict(all.values().iterator().next(), logged);
+		}
+	}
+
+	private void evict(Entry entry, boolean logged) {
+		remove(entry);
+		evicted++;
+		if (logged) log("-", entry);
+	}
+
+	//Remove the expired cookies from the store.
+	private void purge(long now) {
+		for (Entry entry : new ArrayList<Entry>(all.values())) {
+			if (entry.hasExpired(now)) {
+				remove(entry);
+				expired++;
+			}
+		}
+	}
+
+	//Read the records of the file, skipping any that cannot be parsed,
+	//such as an incomplete last line.
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), utf8));
+		try {
+			long now = System.currentTimeMillis();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				try {
+					if (fields[0].equals("+") && (fields.length == 10)) {
+						long expires = Long.parseLong(fields[5]);
+						if ((expires != -1) && (expires <= now)) continue;
+						HttpCookie cookie = new HttpCookie(decode(fields[2]), decode(fields[3]));
+						cookie.setDomain(decode(fields[1]));
+						if (!fields[4].equals("")) cookie.setPath(decode(fields[4]));
+						cookie.setMaxAge((expires == -1) ? -1 : Math.max(1, (expires - now) / 1000));
+						cookie.setSecure(fields[6].equals("1"));
+						cookie.setHttpOnly(fields[7].equals("1"));
+						cookie.setVersion(Integer.parseInt(fields[8]));
+						String domain = decode(fields[1]);
+						Entry old = all.get(getKey(domain, cookie.getPath(), cookie.getName()));
+						if (old != null) remove(old);
+						put(new Entry(getKey(domain, cookie.getPath(), cookie.getName()), domain, cookie, expires));
+						enforceLimits(domain, false);
+					}
+					else if (fields[0].equals("-") && (fields.length == 4)) {
+						Entry entry = all.get(getKey(decode(fields[1]), decode(fields[2]), decode(fields[3])));
+						if (entry != null) remove(entry);
+					}
+				}
+				catch (Exception skip) { }
+			}
+		}
+		finally { reader.close(); }
+		loaded = all.size();
+		evicted = 0;
+		expired = 0;
+	}
+
+	//Rewrite the file with the cookies in the store, least recently
+	//used first, and open it for appending.
+	private void compact() throws IOException {
+		closeWriter();
+		if (file == null) return;
+		File temp = new File(file.getPath() + ".tmp");
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), utf8));
+		try {
+			for (Entry entry : all.values()) out.write(format("+", entry));
+		}
+		finally { out.close(); }
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file)) throw new IOException("Unable to replace " + file);
+		}
+		records = all.size();
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), utf8));
+	}
+
+	//Append a record of a change to the file.
+	private void log(String op, Entry entry) {
+		if (writer == null) return;
+		try {
+			writer.write(format(op, entry));
+			writer.flush();
+			records++;
+			if (records > 2 * all.size() + COMPACT_SLACK) compact();
+		}
+		catch (IOException ex) { closeWriter(); }
+	}
+
+	private void closeWriter() {
+		if (writer == null) return;
+		try { writer.close(); }
+		catch (IOException ignore) { }
+		writer = null;
+	}
+
+	//Get the record of a change: "+" with the cookie, or "-" with its key.
+	//The record of a cookie ends with a tab, so that an incomplete record
+	//(one that was being written when the program ended) is not loaded.
+	static String format(String op, Entry entry) {
+		HttpCookie cookie = entry.cookie;
+		String path = (cookie.getPath() != null) ? cookie.getPath() : "";
+		StringBuffer sb = new StringBuffer(op);
+		sb.append("\t" + encode(entry.domain));
+		if (op.equals("+")) {
+			sb.append("\t" + encode(cookie.getName()));
+			sb.append("\t" + encode(cookie.getValue()));
+			sb.append("\t" + encode(path));
+			sb.append("\t" + entry.expires);
+			sb.append("\t" + (cookie.getSecure() ? "1" : "0"));
+			sb.append("\t" + (cookie.isHttpOnly() ? "1" : "0"));
+			sb.append("\t" + cookie.getVersion());
+			sb.append("\t");
+		}
+		else {
+			sb.append("\t" + encode(path));
+			sb.append("\t" + encode(cookie.getName()));
+		}
+		sb.append("\n");
+		return sb.toString();
+	}
+
+	static String encode(String s) {
+		try { return URLEncoder.encode((s != null) ? s : "", "UTF-8"); }
+		catch (UnsupportedEncodingException ex) { return ""; }
+	}
+
+	static String decode(String s) {
+		try { return URLDecoder.decode(s, "UTF-8"); }
+		catch (UnsupportedEncodingException ex) { return ""; }
+	}
+
+	//A cookie in the store, with the time at which it expires.
+	static class Entry {
+		String key;
+		String domain;
+		HttpCookie cookie;
+		long expires;
+
+		Entry(String key, String domain, HttpCookie cookie, long expires) {
+			this.key = key;
+			this.domain = domain;
+			this.cookie = cookie;
+			this.expires = expires;
+		}
+
+		boolean hasExpired(long now) {
+			return (expires != -1) && (expires <= now);
+		}
+	}
+}
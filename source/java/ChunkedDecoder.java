@@ -0,0 +1,208 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * An incremental decoder for a body sent with Transfer-Encoding: chunked.
+ * The decoder is fed the bytes of the body as they arrive, in blocks of
+ * any size, and writes the decoded data to an OutputStream. It stops
+ * consuming bytes at the end of the body, so any bytes that follow (a
+ * pipelined request) are left for the caller. The decoder collects the
+ * trailers and statistics on the sizes of the chunks.
+ */
+public class ChunkedDecoder {
+
+	static final int SIZE = 0;
+	static final int EXTENSION = 1;
+	static final int DATA = 2;
+	static final int DATA_END = 3;
+	static final int TRAILER = 4;
+	static final int DONE = 5;
+
+	static final int MAX_TRAILER_SIZE = HeaderParser.DEFAULT_MAX_HEADER_SIZE;
+	static final long MAX_CHUNK_SIZE = Long.MAX_VALUE >> 4;
+
+	static final long[] bucketLimits = {
+		256, 1024, 4096, 16384, 65536, 262144, 1048576, Long.MAX_VALUE
+	};
+	static final String[] bucketNames = {
+		"<=256", "<=1K", "<=4K", "<=16K", "<=64K", "<=256K", "<=1M", ">1M"
+	};
+
+	int state = SIZE;
+	long size = 0;
+	int digits = 0;
+	long remaining = 0;
+	ByteArrayOutputStream trailers = new ByteArrayOutputStream();
+	int trailerLineLength = 0;
+
+	long chunkCount = 0;
+	long totalBytes = 0;
+	long minChunk = 0;
+	long maxChunk = 0;
+	long[] buckets = new long[bucketLimits.length];
+
+	/**
+	 * Class constructor; creates a decoder for one body.
+	 */
+	public ChunkedDecoder() { }
+
+	/**
+	 * Decode a block of bytes.
+	 * @param buf the buffer containing the bytes.
+	 * @param off the index of the first byte to decode.
+	 * @param len the number of bytes available.
+	 * @param out the stream to receive the decoded data.
+	 * @return the number of bytes consumed. This is less than len only
+	 * if the end of the body was reached.
+	 * @throws IOException if the encoding is invalid or the stream fails.
+	 */
+	public int decode(byte[] buf, int off, int len, OutputStream out) throws IOException {
+		int i = off;
+		int end = off + len;
+		while ((i < end) && (state != DONE)) {
+			if (state == DATA) {
+				int n = (int)Math.min(remaining, end - i);
+				out.write(buf, i, n);
+				i += n;
+				remaining -= n;
+				if (remaining == 0) state = DATA_END;
+				continue;
+			}
+			byte b = buf[i++];
+			switch (state) {
+				case SIZE:
+					int hex = Character.digit((char)(b & 0xff), 16);
+					if (hex >= 0) {
+						if (size > MAX_CHUNK_SIZE) throw new IOException("Chunk size too large");
+						size = (size << 4) | hex;
+						digits++;
+					}
+					else if (b == ';') state = EXTENSION;
+					else if (b == 10) endSizeLine();
+					else if ((b != 13) && (b != 32) && (b != 9)) {
+						throw new IOException("Invalid chunk size line");
+					}
+					break;
+
+				case EXTENSION:
+					if (b == 10) endSizeLine();
+					break;
+
+				case DATA_END:
+					if (b == 10) {
+						state = SIZE;
+						size = 0;
+						digits = 0;
+					}
+					else if (b != 13) throw new IOException("Missing CRLF after chunk data");
+					break;
+
+				case TRAILER:
+					if (b == 10) {
+						if (trailerLineLength == 0) state = DONE;
+						else {
+							trailers.write(10);
+							trailerLineLength = 0;
+						}
+					}
+					else if (b != 13) {
+						if (trailers.size() >= MAX_TRAILER_SIZE) {
+							throw new IOException(
+								"Trailers exceed the limit of " + MAX_TRAILER_SIZE + " bytes");
+						}
+						trailers.write(b);
+						trailerLineLength++;
+					}
+					break;
+			}
+		}
+		return i - off;
+	}
+
+	//Handle the end of a chunk size line.
+	private void endSizeLine() throws IOException {
+		if (digits == 0) throw new IOException("Missing chunk size");
+		if (size == 0) {
+			state = TRAILER;
+			return;
+		}
+		chunkCount++;
+		totalBytes += size;
+		minChunk = (chunkCount == 1) ? size : Math.min(minChunk, size);
+		maxChunk = Math.max(maxChunk, size);
+		int k = 0;
+		while (size > bucketLimits[k]) k++;
+		buckets[k]++;
+		remaining = size;
+		state = DATA;
+	}
+
+	/**
+	 * Determine whether the end of the body has been reached.
+	 * @return true if the last chunk and the trailers have been decoded.
+	 */
+	public boolean isComplete() {
+		return (state == DONE);
+	}
+
+	/**
+	 * Get the number of chunks decoded, not counting the last (empty) chunk.
+	 * @return the number of chunks.
+	 */
+	public long getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * Get the number of data bytes decoded.
+	 * @return the number of bytes.
+	 */
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Get the trailer lines received after the last chunk.
+	 * @return the trailers, each terminated by a newline, or the empty
+	 * string if no trailers were received.
+	 */
+	public String getTrailers() {
+		return trailers.toString();
+	}
+
+	/**
+	 * Get a report of the chunks and trailers for the connection report.
+	 * @return the report text.
+	 */
+	public String getReport() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Chunked transfer: " + chunkCount + " chunks, " + totalBytes + " bytes");
+		if (!isComplete()) sb.append(" (incomplete)");
+		sb.append("\n");
+		if (chunkCount > 0) {
+			sb.append("Chunk sizes: min " + minChunk
+						+ ", avg " + (totalBytes / chunkCount)
+						+ ", max " + maxChunk + "\n");
+			sb.append("Chunk size distribution:");
+			for (int k=0; k<buckets.length; k++) {
+				if (buckets[k] > 0) sb.append(" " + bucketNames[k] + ": " + buckets[k]);
+			}
+			sb.append("\n");
+		}
+		String trailerText = getTrailers();
+		if (trailerText.length() > 0) {
+			sb.append("Trailers:\n");
+			sb.append(trailerText);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,536 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client-side cache of responses, for measuring how much the validators
+ * of a server (ETag and Last-Modified) save. A GET response with a
+ * validator is stored, keyed by the method, the URL, and the values of the
+ * request headers named in its Vary header. When the resource is requested
+ * again, the request carries If-None-Match and If-Modified-Since, and if
+ * the server answers 304 Not Modified, the content is taken from the cache.
+ * <p>
+ * Every request is revalidated: freshness lifetimes (max-age and Expires)
+ * are ignored, because the point is to measure the server.
+ * <p>
+ * The cache has two tiers, each bounded in size and evicted in least
+ * recently used order. Entries are stored in memory; when the memory tier
+ * is full, its least recently used entries are moved to the disk tier (if
+ * a directory has been set), and when the disk tier is full, its least
+ * recently used entries are deleted. A body too large for the memory tier
+ * is written to the disk tier as it is received. An entry in the disk tier
+ * that is used again is moved back to memory if it fits.
+ */
+public class ConditionalCache {
+
+	/** The default size of the memory tier in bytes. */
+	public static final long DEFAULT_MEMORY_SIZE = 16 * 1024 * 1024;
+	/** The default size of the disk tier in bytes. */
+	public static final long DEFAULT_DISK_SIZE = 256 * 1024 * 1024;
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	long memoryLimit;
+	long diskLimit;
+	long maxMemoryEntry;
+	File dir;
+
+	//Both maps are in access order, so the first entry is the least recently used.
+	LinkedHashMap<String,Entry> memory = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	LinkedHashMap<String,Entry> disk = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	long memoryBytes = 0;
+	long diskBytes = 0;
+
+	//The request headers named in the Vary header of the latest response for each method and URL.
+	ConcurrentHashMap<String,String[]> varies = new ConcurrentHashMap<String,String[]>();
+
+	AtomicLong requests = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	AtomicLong hits = new AtomicLong();
+	AtomicLong memoryHits = new AtomicLong();
+	AtomicLong diskHits = new AtomicLong();
+	AtomicLong changed = new AtomicLong();
+	AtomicLong stored = new AtomicLong();
+	AtomicLong uncacheable = new AtomicLong();
+	AtomicLong demoted = new AtomicLong();
+	AtomicLong evicted = new AtomicLong();
+	AtomicLong bytesSaved = new AtomicLong();
+	AtomicLong bytesReceived = new AtomicLong();
+
+	/**
+	 * Class constructor; creates a cache with a memory tier only.
+	 * @param memoryLimit the maximum number of bytes of content in memory.
+	 */
+	public ConditionalCache(long memoryLimit) {
+		this(memoryLimit, null, 0);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param memoryLimit the maximum number of bytes of content in memory.
+	 * @param dir the directory of the disk tier, or null for no disk tier.
+	 * The directory is created if necessary.
+	 * @param diskLimit the maximum number of bytes of content on disk.
+	 */
+	public ConditionalCache(long memoryLimit, File dir, long diskLimit) {
+		this.memoryLimit = Math.max(0, memoryLimit);
+		this.diskLimit = (dir != null) ? Math.max(0, diskLimit) : 0;
+		this.maxMemoryEntry = this.memoryLimit / 4;
+		if (dir != null) {
+			dir.mkdirs();
+			if (!dir.isDirectory()) throw new IllegalArgumentException("Unable to create the cache directory " + dir);
+		}
+		this.dir = dir;
+	}
+
+	/**
+	 * Find the stored response for a request, pinning its content so that
+	 * it can be read even if the entry is evicted in the meantime.
+	 * @param method the method of the request.
+	 * @param url the URL of the request.
+	 * @param requestHeaders the headers of the request, indexed by lower-case name.
+	 * @return the stored response, or null if the request is not cacheable
+	 * or there is no stored response.
+	 */
+	public Cached lookup(String method, String url, Map<String,String> requestHeaders) {
+		if (!method.equals("GET")) return null;
+		requests.incrementAndGet();
+		String base = method + " " + url;
+		String key = getKey(base, varies.get(base), requestHeaders);
+		Cached cached = null;
+		synchronized (this) {
+			Entry entry = memory.get(key);
+			if (entry != null) cached = new Cached(entry, new ByteArrayInputStream(entry.body), "memory");
+			else if ((entry = disk.get(key)) != null) {
+				try {
+					if (entry.size <= maxMemoryEntry) {
+						//Move the entry back to the memory tier.
+						entry.body = readFile(entry.file);
+						disk.remove(key);
+						diskBytes -= entry.size;
+						entry.file.delete();
+						entry.file = null;
+						putInMemory(entry);
+						cached = new Cached(entry, new ByteArrayInputStream(entry.body), "disk");
+					}
+					else cached = new Cached(entry, new FileInputStream(entry.file), "disk");
+				}
+				catch (IOException ex) {
+					removeFromDisk(key);
+					cached = null;
+				}
+			}
+		}
+		if (cached == null) misses.incrementAndGet();
+		return cached;
+	}
+
+	/**
+	 * Add the validators of a stored response to the headers of a request.
+	 * @param cached the stored response, or null.
+	 * @param headers the list of header names and values of the request.
+	 */
+	public static void addValidators(Cached cached, List<String> headers) {
+		if (cached == null) return;
+		if (cached.entry.etag != null) {
+			headers.add("If-None-Match");
+			headers.add(cached.entry.etag);
+		}
+		if (cached.entry.lastModified != null) {
+			headers.add("If-Modified-Since");
+			headers.add(cached.entry.lastModified);
+		}
+	}
+
+	/**
+	 * Record that the server confirmed a stored response (304 Not Modified),
+	 * updating its validators from the 304 response.
+	 * @param cached the stored response.
+	 * @param headers the headers of the 304 response.
+	 */
+	public void recordHit(Cached cached, Map<String,List<String>> headers) {
+		hits.incrementAndGet();
+		if (cached.tier.equals("memory")) memoryHits.incrementAndGet();
+		else diskHits.incrementAndGet();
+		bytesSaved.addAndGet(cached.entry.wireSize);
+		synchronized (this) {
+			String etag = getHeader(headers, "ETag");
+			String lastModified = getHeader(headers, "Last-Modified");
+			if (etag != null) cached.entry.etag = etag;
+			if (lastModified != null) cached.entry.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Get a stream that captures the content of a response as it is read,
+	 * so that it can be stored.
+	 * @return the capture.
+	 */
+	public Capture capture() {
+		return new Capture();
+	}
+
+	/**
+	 * Store a response, or record why it could not be stored.
+	 * @param method the method of the request.
+	 * @param url the URL of the request.
+	 * @param requestHeaders the headers of the request, indexed by lower-case name.
+	 * @param cached the stored response that was revalidated, or null.
+	 * @param status the status of the response.
+	 * @param headers the headers of the response.
+	 * @param capture the decoded content of the response.
+	 * @param wireSize the number of bytes of the body as it was received.
+	 */
+	public void store(String method, String url, Map<String,String> requestHeaders, Cached cached,
+					  int status, Map<String,List<String>> headers, Capture capture, long wireSize) {
+		capture.close();
+		if (!method.equals("GET")) {
+			capture.discard();
+			return;
+		}
+		bytesReceived.addAndGet(wireSize);
+		if (cached != null) changed.incrementAndGet();
+		String etag = getHeader(headers, "ETag");
+		String lastModified = getHeader(headers, "Last-Modified");
+		String cacheControl = getHeader(headers, "Cache-Control");
+		String vary = getHeader(headers, "Vary");
+		if ((status != 200) || capture.abandoned
+				|| ((etag == null) && (lastModified == null))
+				|| ((cacheControl != null) && (cacheControl.toLowerCase().indexOf("no-store") != -1))
+				|| ((vary != null) && vary.trim().equals("*"))) {
+			uncacheable.incrementAndGet();
+			capture.discard();
+			if (cached != null) {
+				synchronized (this) { remove(cached.entry.key); }
+			}
+			return;
+		}
+		String base = method + " " + url;
+		String[] names = getVaryNames(vary);
+		varies.put(base, names);
+		Entry entry = new Entry();
+		entry.key = getKey(base, names, requestHeaders);
+		entry.etag = etag;
+		entry.lastModified = lastModified;
+		entry.contentType = getHeader(headers, "Content-Type");
+		entry.size = capture.count;
+		entry.wireSize = wireSize;
+		entry.body = capture.data();
+		entry.file = capture.file;
+		synchronized (this) {
+			remove(entry.key);
+			if (entry.file == null) putInMemory(entry);
+			else putOnDisk(entry);
+		}
+		stored.incrementAndGet();
+	}
+
+	/**
+	 * Remove all the entries and clear the statistics.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : disk.values()) entry.file.delete();
+		memory.clear();
+		disk.clear();
+		memoryBytes = 0;
+		diskBytes = 0;
+		varies.clear();
+		AtomicLong[] counters = { requests, misses, hits, memoryHits, diskHits, changed, stored,
+								  uncacheable, demoted, evicted, bytesSaved, bytesReceived };
+		for (AtomicLong counter : counters) counter.set(0);
+	}
+
+	/**
+	 * Get a one-line summary of the statistics.
+	 * @return the summary.
+	 */
+	public synchronized String getSummary() {
+		long saved = bytesSaved.get();
+		long total = saved + bytesReceived.get();
+		return "Cache: " + requests.get() + " requests, "
+				+ hits.get() + " revalidated (304; " + memoryHits.get() + " from memory, "
+				+ diskHits.get() + " from disk), "
+				+ misses.get() + " misses, " + changed.get() + " changed, "
+				+ uncacheable.get() + " not cacheable; "
+				+ saved + " of " + total + " content bytes saved"
+				+ ((total > 0) ? String.format(" (%.1f%%)", 100.0 * saved / total) : "") + "; "
+				+ "memory " + memory.size() + " entries, " + memoryBytes + " bytes; "
+				+ "disk " + disk.size() + " entries, " + diskBytes + " bytes; "
+				+ demoted.get() + " moved to disk, " + evicted.get() + " evicted";
+	}
+
+	/**
+	 * Add the statistics to a JSON object.
+	 * @param json the object.
+	 * @return the object.
+	 */
+	public synchronized JsonLine addTo(JsonLine json) {
+		return json.put("cacheRequests", requests.get())
+				   .put("cacheHits", hits.get())
+				   .put("cacheMemoryHits", memoryHits.get())
+				   .put("cacheDiskHits", diskHits.get())
+				   .put("cacheMisses", misses.get())
+				   .put("cacheChanged", changed.get())
+				   .put("cacheUncacheable", uncacheable.get())
+				   .put("cacheBytesSaved", bytesSaved.get())
+				   .put("cacheBytesReceived", bytesReceived.get())
+				   .put("cacheMemoryEntries", memory.size())
+				   .put("cacheMemoryBytes", memoryBytes)
+				   .put("cacheDiskEntries", disk.size())
+				   .put("cacheDiskBytes", diskBytes)
+				   .put("cacheDemoted", demoted.get())
+				   .put("cacheEvicted", evicted.get());
+	}
+
+	/**
+	 * Get the value of a response header, ignoring the case of its name.
+	 * @param headers the headers.
+	 * @param name the name of the header.
+	 * @return the first value of the header, or null if it is not present.
+	 */
+	public static String getHeader(Map<String,List<String>> headers, String name) {
+		if (headers == null) return null;
+		for (Map.Entry<String,List<String>> entry : headers.entrySet()) {
+			if ((entry.getKey() != null) && entry.getKey().equalsIgnoreCase(name)
+					&& !entry.getValue().isEmpty()) return entry.getValue().get(0);
+		}
+		return null;
+	}
+
+	//Get the names of the request headers in a Vary header, in lower case.
+	static String[] getVaryNames(String vary) {
+		if ((vary == null) || vary.trim().equals("")) return new String[0];
+		String[] names = vary.split(",");
+		for (int i=0; i<names.length; i++) names[i] = names[i].trim().toLowerCase();
+		return names;
+	}
+
+	//Get the key of a request: its method and URL, and the values of the
+	//request headers named in the Vary header of the stored response.
+	static String getKey(String base, String[] names, Map<String,String> requestHeaders) {
+		if (names == null) return base;
+		StringBuffer sb = new StringBuffer(base);
+		for (String name : names) {
+			String value = requestHeaders.get(name);
+			sb.append("\n" + name + ": " + ((value != null) ? value : ""));
+		}
+		return sb.toString();
+	}
+
+	//Put an entry in the memory tier, moving the least recently used
+	//entries to the disk tier (or dropping them) to make room.
+	private void putInMemory(Entry entry) {
+		memory.put(entry.key, entry);
+		memoryBytes += entry.size;
+		Iterator<Entry> it = memory.values().iterator();
+		while ((memoryBytes > memoryLimit) && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			memoryBytes -= eldest.size;
+			if ((dir != null) && (eldest.size <= diskLimit)) {
+				try {
+					eldest.file = writeFile(eldest.body);
+					eldest.body = null;
+					putOnDisk(eldest);
+					demoted.incrementAndGet();
+					continue;
+				}
+				catch (IOException ex) { }
+			}
+			evicted.incrementAndGet();
+		}
+	}
+
+	//Put an entry in the disk tier, deleting the least recently used
+	//entries to make room.
+	private void putOnDisk(Entry entry) {
+		disk.put(entry.key, entry);
+		diskBytes += entry.size;
+		Iterator<Entry> it = disk.values().iterator();
+		while ((diskBytes > diskLimit) && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			diskBytes -= eldest.size;
+			eldest.file.delete();
+			evicted.incrementAndGet();
+		}
+	}
+
+	private void remove(String key) {
+		Entry entry = memory.remove(key);
+		if (entry != null) memoryBytes -= entry.size;
+		removeFromDisk(key);
+	}
+
+	private void removeFromDisk(String key) {
+		Entry entry = disk.remove(key);
+		if (entry != null) {
+			diskBytes -= entry.size;
+			entry.file.delete();
+		}
+	}
+
+	private File writeFile(byte[] data) throws IOException {
+		File file = File.createTempFile("HttpTest-cache-", ".bin", dir);
+		FileOutputStream fos = new FileOutputStream(file);
+		try { fos.write(data); }
+		finally { fos.close(); }
+		return file;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int)file.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try { dis.readFully(data); }
+		finally { dis.close(); }
+		return data;
+	}
+
+	//A stored response.
+	static class Entry {
+		String key;
+		String etag;
+		String lastModified;
+		String contentType;
+		long size;
+		long wireSize;
+		byte[] body;
+		File file;
+	}
+
+	/**
+	 * A stored response found for a request, with its content.
+	 */
+	public static class Cached {
+		Entry entry;
+		InputStream content;
+		String tier;
+
+		Cached(Entry entry, InputStream content, String tier) {
+			this.entry = entry;
+			this.content = content;
+			this.tier = tier;
+		}
+
+		/**
+		 * Get the decoded content of the stored response.
+		 * @return the content, which must be read or closed.
+		 */
+		public InputStream getContent() {
+			return content;
+		}
+
+		/**
+		 * Get the tier in which the response was found.
+		 * @return "memory" or "disk".
+		 */
+		public String getTier() {
+			return tier;
+		}
+
+		/**
+		 * Get the Content-Type of the stored response.
+		 * @return the content type, or null if the response had none.
+		 */
+		public String getContentType() {
+			return entry.contentType;
+		}
+
+		/**
+		 * Get the number of bytes of the body of the stored response
+		 * as it was received, which a 304 response saves.
+		 * @return the number of bytes.
+		 */
+		public long getWireSize() {
+			return entry.wireSize;
+		}
+
+		/**
+		 * Release the content, if it has not been read.
+		 */
+		public void close() {
+			try { content.close(); }
+			catch (IOException ignore) { }
+		}
+	}
+
+	/**
+	 * An OutputStream that captures the content of a response for the cache.
+	 * Content that is too large for the memory tier is written to a file in
+	 * the disk tier; content that is too large for either tier is abandoned.
+	 */
+	public class Capture extends OutputStream {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		File file = null;
+		OutputStream out = null;
+		long count = 0;
+		boolean abandoned = false;
+
+		Capture() { }
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte)b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) {
+			if (abandoned || (len <= 0)) return;
+			count += len;
+			try {
+				if ((out == null) && (count > maxMemoryEntry)) {
+					if ((dir == null) || (count > diskLimit)) {
+						abandon();
+						return;
+					}
+					file = File.createTempFile("HttpTest-cache-", ".bin", dir);
+					out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+					baos.writeTo(out);
+					baos = null;
+				}
+				else if ((out != null) && (count > diskLimit)) {
+					abandon();
+					return;
+				}
+				if (out != null) out.write(b, off, len);
+				else baos.write(b, off, len);
+			}
+			catch (IOException ex) { abandon(); }
+		}
+
+		public void close() {
+			if (out != null) {
+				try { out.close(); }
+				catch (IOException ex) { abandon(); }
+				out = null;
+			}
+		}
+
+		byte[] data() {
+			return ((file == null) && (baos != null)) ? baos.toByteArray() : null;
+		}
+
+		void discard() {
+			close();
+			if (file != null) file.delete();
+			file = null;
+			baos = null;
+		}
+
+		private void abandon() {
+			abandoned = true;
+			discard();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A reader for the content of a response that processes it as it arrives,
+ * so that a response of any size can be received in a fixed amount of
+ * memory. The reader counts the bytes received, decompresses gzip content
+ * on the fly, counts the bytes of the decoded content, optionally computes
+ * a SHA-256 checksum of it and writes it to a file, and keeps only the
+ * first part of it as a preview.
+ */
+public class ContentReader {
+
+	/** The default size of the preview. */
+	public static final int DEFAULT_PREVIEW_SIZE = 64 * 1024;
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	int previewSize;
+	boolean checksum = true;
+	File file = null;
+	OutputStream capture = null;
+	String source = null;
+	boolean gzipped = false;
+
+	long bytes = 0;
+	long contentBytes = 0;
+	byte[] preview = new byte[0];
+	byte[] digest = null;
+
+	/**
+	 * Class constructor.
+	 * @param previewSize the maximum number of bytes of decoded content
+	 * to keep as the preview.
+	 */
+	public ContentReader(int previewSize) {
+		this.previewSize = Math.max(0, previewSize);
+	}
+
+	/**
+	 * Set whether to compute the checksum of the content. The default is true.
+	 * @param checksum true to compute the checksum.
+	 */
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Set the file to which the decoded content is written.
+	 * @param file the file, or null (the default) to discard the content
+	 * after it has been counted.
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Set a stream to which the decoded content is also written, for
+	 * example to store it in a ConditionalCache. The stream is not closed.
+	 * @param capture the stream, or null (the default) for none.
+	 */
+	public void setCapture(OutputStream capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Set the source of content that was not received from the server,
+	 * for the summary.
+	 * @param source the source, for example "the cache", or null (the
+	 * default) for content received from the server.
+	 */
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * Read the content to its end and close the stream. If the stream
+	 * fails part way, the counts and preview cover what was received.
+	 * @param is the stream of the content as received.
+	 * @param gzipped true if the content is gzip compressed.
+	 * @throws IOException if the content cannot be read or written to the file.
+	 */
+	public void read(InputStream is, boolean gzipped) throws IOException {
+		this.gzipped = gzipped;
+		HttpProbe.CountingInputStream counter = new HttpProbe.CountingInputStream(is);
+		MessageDigest md = null;
+		if (checksum) {
+			try { md = MessageDigest.getInstance("SHA-256"); }
+			catch (Exception unavailable) { }
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(previewSize, BUFFER_SIZE));
+		OutputStream out = null;
+		InputStream in = counter;
+		try {
+			if (file != null) out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+			if (gzipped) in = new GZIPInputStream(counter, BUFFER_SIZE);
+			byte[] buf = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buf, 0, buf.length)) != -1) {
+				contentBytes += n;
+				if (md != null) md.update(buf, 0, n);
+				if (out != null) out.write(buf, 0, n);
+				if (capture != null) capture.write(buf, 0, n);
+				int keep = Math.min(n, previewSize - baos.size());
+				if (keep > 0) baos.write(buf, 0, keep);
+			}
+			if (md != null) digest = md.digest();
+		}
+		finally {
+			try { in.close(); }
+			finally {
+				bytes = counter.count;
+				preview = baos.toByteArray();
+				if (out != null) out.close();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of bytes received, before decompression.
+	 * @return the number of bytes.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the number of bytes of decoded content.
+	 * @return the number of bytes.
+	 */
+	public long getContentBytes() {
+		return contentBytes;
+	}
+
+	/**
+	 * Get the first part of the decoded content.
+	 * @return the preview.
+	 */
+	public byte[] getPreview() {
+		return preview;
+	}
+
+	/**
+	 * Determine whether the preview is only part of the content.
+	 * @return true if the content is longer than the preview.
+	 */
+	public boolean isTruncated() {
+		return contentBytes > preview.length;
+	}
+
+	/**
+	 * Get the SHA-256 checksum of the decoded content.
+	 * @return the checksum as a hex string, or null if it was not computed
+	 * or the content was not read to its end.
+	 */
+	public String getChecksum() {
+		if (digest == null) return null;
+		StringBuffer sb = new StringBuffer();
+		for (byte b : digest) sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+
+	/**
+	 * Get a description of the content that was read: the bytes received,
+	 * the decompressed size, the checksum, the file, and the size of the preview.
+	 * @return the description, one item per line.
+	 */
+	public String getSummary() {
+		StringBuffer sb = new StringBuffer();
+		if (source != null) sb.append("Content from " + source + ": " + contentBytes + " bytes\n");
+		else sb.append("Bytes received: " + bytes + "\n");
+		if (gzipped) sb.append("gzip: " + contentBytes + " bytes decompressed\n");
+		if (digest != null) sb.append("SHA-256: " + getChecksum() + "\n");
+		if (file != null) sb.append("Saved to: " + file.getAbsolutePath() + "\n");
+		if (isTruncated()) sb.append("Preview: the first " + preview.length + " bytes of the content\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Get the file to which the content was written.
+	 * @return the file, or null if the content was not saved.
+	 */
+	public File getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,313 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Digest authentication of client requests, with the MD5 and SHA-256
+ * algorithms (and their -sess variants) and qop=auth. A client that
+ * knows nothing of the server sends a request without credentials,
+ * receives a 401 challenge containing a nonce, and sends the request
+ * again with a response computed from the nonce. This class caches the
+ * nonce of each server and realm, so that later requests to the server,
+ * including all the requests of a load test, authenticate pre-emptively,
+ * with an incremented nonce count (nc), and avoid the challenge round
+ * trip. When the server rejects a cached nonce (for example, because it
+ * has expired), the nonce is discarded and the new challenge is answered.
+ * <p>
+ * A request takes a nonce from the cache for its exclusive use and
+ * returns it when the response has been received, so the counts of
+ * each nonce reach the server in order even when many requests are in
+ * progress at once; concurrent requests are challenged once each, and
+ * the cache holds a nonce for each of them. There is one shared cache
+ * for all the requests made by the program.
+ */
+public class DigestAuth {
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	static DigestAuth shared = new DigestAuth();
+
+	/** The maximum number of idle nonces cached for a realm of a server. */
+	public static final int MAX_IDLE_NONCES = 64;
+
+	ConcurrentHashMap<String,ConcurrentLinkedDeque<Nonce>> nonces =
+					new ConcurrentHashMap<String,ConcurrentLinkedDeque<Nonce>>();
+	ConcurrentHashMap<String,String> realms = new ConcurrentHashMap<String,String>();
+	SecureRandom random = new SecureRandom();
+
+	AtomicLong challenges = new AtomicLong();
+	AtomicLong preemptive = new AtomicLong();
+	AtomicLong avoided = new AtomicLong();
+	AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Class constructor; creates an empty cache.
+	 */
+	public DigestAuth() { }
+
+	/**
+	 * Get the shared cache.
+	 * @return the cache.
+	 */
+	public static DigestAuth getInstance() {
+		return shared;
+	}
+
+	/**
+	 * Find the Digest challenge in the headers of a 401 response.
+	 * @param headers the headers of the response, in any case.
+	 * @return the value of the WWW-Authenticate header that contains the
+	 * Digest challenge, or null if there is none.
+	 */
+	public static String getChallenge(Map<String,List<String>> headers) {
+		if (headers == null) return null;
+		for (Map.Entry<String,List<String>> entry : headers.entrySet()) {
+			if ((entry.getKey() == null) || !entry.getKey().equalsIgnoreCase("WWW-Authenticate")) continue;
+			for (String value : entry.getValue()) {
+				if (value.trim().regionMatches(true, 0, "Digest", 0, 6)) return value.trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Take a cached nonce of a server for the exclusive use of a request.
+	 * @param url the URL of the request.
+	 * @return the nonce, or null if no idle nonce from the server is cached.
+	 */
+	public Nonce acquire(URL url) {
+		String origin = getOrigin(url);
+		String realm = realms.get(origin);
+		if (realm == null) return null;
+		ConcurrentLinkedDeque<Nonce> idle = nonces.get(origin + " " + realm);
+		Nonce nonce = (idle != null) ? idle.pollFirst() : null;
+		if (nonce != null) preemptive.incrementAndGet();
+		return nonce;
+	}
+
+	/**
+	 * Answer a challenge. The nonce is for the exclusive use of the
+	 * request that is to be repeated; it is cached when it is released.
+	 * @param url the URL of the request that was challenged.
+	 * @param challenge the value of the WWW-Authenticate header.
+	 * @return the nonce of the challenge.
+	 * @throws IllegalArgumentException if the challenge has no nonce or
+	 * requires an algorithm or qop that is not supported.
+	 */
+	public Nonce answer(URL url, String challenge) {
+		challenges.incrementAndGet();
+		Nonce nonce = new Nonce(parse(challenge));
+		realms.put(getOrigin(url), nonce.realm);
+		return nonce;
+	}
+
+	/**
+	 * Return a nonce to the cache after the response to a request
+	 * that used it has been received. A nonce that the server rejected
+	 * is not to be released.
+	 * @param url the URL of the request.
+	 * @param nonce the nonce.
+	 */
+	public void release(URL url, Nonce nonce) {
+		String key = getOrigin(url) + " " + nonce.realm;
+		ConcurrentLinkedDeque<Nonce> idle = nonces.get(key);
+		if (idle == null) {
+			ConcurrentLinkedDeque<Nonce> empty = new ConcurrentLinkedDeque<Nonce>();
+			idle = nonces.putIfAbsent(key, empty);
+			if (idle == null) idle = empty;
+		}
+		//Keep the most recently used nonces, which are the least likely to have expired.
+		idle.offerFirst(nonce);
+		while (idle.size() > MAX_IDLE_NONCES) idle.pollLast();
+	}
+
+	/**
+	 * Record the result of a request that was authenticated pre-emptively.
+	 * @param status the status of the response.
+	 */
+	public void recordResult(int status) {
+		if (status == 401) rejected.incrementAndGet();
+		else avoided.incrementAndGet();
+	}
+
+	/**
+	 * Clear the cached nonces and the statistics.
+	 */
+	public void clear() {
+		nonces.clear();
+		realms.clear();
+		challenges.set(0);
+		preemptive.set(0);
+		avoided.set(0);
+		rejected.set(0);
+	}
+
+	/**
+	 * Get a one-line summary of the statistics.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		return "Digest: " + challenges.get() + " challenges answered, "
+				+ preemptive.get() + " requests authenticated pre-emptively, "
+				+ avoided.get() + " challenge round trips avoided, "
+				+ rejected.get() + " cached nonces rejected";
+	}
+
+	/**
+	 * Add the statistics to a JSON object.
+	 * @param json the object.
+	 * @return the object.
+	 */
+	public JsonLine addTo(JsonLine json) {
+		return json.put("digestChallenges", challenges.get())
+				   .put("digestPreemptive", preemptive.get())
+				   .put("digestAvoided", avoided.get())
+				   .put("digestRejected", rejected.get());
+	}
+
+	//Get the origin of a URL, which identifies its server.
+	static String getOrigin(URL url) {
+		String scheme = url.getProtocol().toLowerCase();
+		int port = url.getPort();
+		if (port == -1) port = url.getDefaultPort();
+		return scheme + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	//Get the request-target of a URL, as it is sent to an origin server.
+	static String getURI(URL url) {
+		String uri = url.getFile();
+		return uri.equals("") ? "/" : uri;
+	}
+
+	//Parse the parameters of a challenge, indexed by lower-case name.
+	static Hashtable<String,String> parse(String challenge) {
+		Hashtable<String,String> params = new Hashtable<String,String>();
+		int i = challenge.trim().regionMatches(true, 0, "Digest", 0, 6) ? challenge.indexOf("igest") + 5 : 0;
+		int n = challenge.length();
+		while (i < n) {
+			while ((i < n) && ((challenge.charAt(i) == ',') || Character.isWhitespace(challenge.charAt(i)))) i++;
+			int start = i;
+			while ((i < n) && (challenge.charAt(i) != '=') && (challenge.charAt(i) != ',')) i++;
+			String name = challenge.substring(start, i).trim().toLowerCase();
+			if ((i >= n) || (challenge.charAt(i) != '=')) continue;
+			i++;
+			while ((i < n) && Character.isWhitespace(challenge.charAt(i))) i++;
+			StringBuffer value = new StringBuffer();
+			if ((i < n) && (challenge.charAt(i) == '"')) {
+				i++;
+				while ((i < n) && (challenge.charAt(i) != '"')) {
+					if ((challenge.charAt(i) == '\\') && (i + 1 < n)) i++;
+					value.append(challenge.charAt(i++));
+				}
+				i++;
+			}
+			else {
+				while ((i < n) && (challenge.charAt(i) != ',')) value.append(challenge.charAt(i++));
+			}
+			if (!name.equals("")) params.put(name, value.toString().trim());
+		}
+		return params;
+	}
+
+	//Quote a value for a header parameter.
+	static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	/**
+	 * The nonce of a challenge from a realm of a server, with its nonce count.
+	 */
+	public class Nonce {
+		String realm;
+		String nonce;
+		String opaque;
+		String algorithm;
+		String hashName;
+		boolean sess;
+		String qop;
+		AtomicInteger nc = new AtomicInteger();
+
+		Nonce(Hashtable<String,String> params) {
+			nonce = params.get("nonce");
+			if (nonce == null) throw new IllegalArgumentException("The Digest challenge has no nonce.");
+			realm = params.containsKey("realm") ? params.get("realm") : "";
+			opaque = params.get("opaque");
+			algorithm = params.get("algorithm");
+			String name = (algorithm != null) ? algorithm.toUpperCase() : "MD5";
+			sess = name.endsWith("-SESS");
+			if (sess) name = name.substring(0, name.length() - 5);
+			if (name.equals("MD5")) hashName = "MD5";
+			else if (name.equals("SHA-256")) hashName = "SHA-256";
+			else throw new IllegalArgumentException("Unsupported Digest algorithm: " + algorithm);
+			String qopOptions = params.get("qop");
+			if (qopOptions != null) {
+				for (String option : qopOptions.split(",")) {
+					if (option.trim().equalsIgnoreCase("auth")) qop = "auth";
+				}
+				if (qop == null) throw new IllegalArgumentException("Unsupported Digest qop: " + qopOptions);
+			}
+		}
+
+		/**
+		 * Get the Authorization header for a request, incrementing the nonce count.
+		 * @param method the method of the request.
+		 * @param url the URL of the request.
+		 * @param user the username.
+		 * @param password the password.
+		 * @return the value of the header.
+		 */
+		public String authorize(String method, URL url, String user, String password) {
+			String uri = getURI(url);
+			String count = String.format("%08x", nc.incrementAndGet());
+			byte[] bytes = new byte[16];
+			random.nextBytes(bytes);
+			String cnonce = hex(bytes);
+			String ha1 = hash(user + ":" + realm + ":" + password);
+			if (sess) ha1 = hash(ha1 + ":" + nonce + ":" + cnonce);
+			String ha2 = hash(method + ":" + uri);
+			String response = (qop != null)
+				? hash(ha1 + ":" + nonce + ":" + count + ":" + cnonce + ":" + qop + ":" + ha2)
+				: hash(ha1 + ":" + nonce + ":" + ha2);
+			StringBuffer sb = new StringBuffer("Digest ");
+			sb.append("username=" + quote(user));
+			sb.append(", realm=" + quote(realm));
+			sb.append(", nonce=" + quote(nonce));
+			sb.append(", uri=" + quote(uri));
+			if (algorithm != null) sb.append(", algorithm=" + algorithm);
+			sb.append(", response=" + quote(response));
+			if (opaque != null) sb.append(", opaque=" + quote(opaque));
+			if (qop != null) sb.append(", qop=" + qop + ", nc=" + count);
+			if ((qop != null) || sess) sb.append(", cnonce=" + quote(cnonce));
+			return sb.toString();
+		}
+
+		private String hash(String text) {
+			try { return hex(MessageDigest.getInstance(hashName).digest(text.getBytes(utf8))); }
+			catch (Exception ex) { throw new IllegalStateException(hashName + " is not available", ex); }
+		}
+	}
+
+	//Convert bytes to lower-case hex.
+	static String hex(byte[] bytes) {
+		StringBuffer sb = new StringBuffer();
+		for (byte b : bytes) sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+}
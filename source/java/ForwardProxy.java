@@ -0,0 +1,848 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.rsna.util.Base64;
+
+/**
+ * A forward proxy server, which stands in for a site's proxy so that
+ * the whole proxy path can be tested on one host. The proxy forwards
+ * requests with absolute URIs (GET http://host/path HTTP/1.1) to the
+ * origin servers and opens CONNECT tunnels for https. It can require
+ * Basic credentials in the Proxy-Authorization header, answering other
+ * requests with 407, and it can add a fixed latency to each request
+ * and tunnel to simulate a slow proxy.
+ * <p>
+ * Each client connection is serviced on its own thread, and supports
+ * persistent connections. The connections to each origin server
+ * (upstream) are kept in a pool and reused for later requests from
+ * any client. The proxy keeps statistics of its throughput, the reuse
+ * of its upstream connections, and its overhead: the time it spends
+ * on a request apart from the added latency and the time it waits
+ * for the upstream server.
+ */
+public class ForwardProxy extends Thread {
+
+	/** The default port of the proxy. */
+	public static final int DEFAULT_PORT = 8888;
+	/** The default time in milliseconds that an idle client connection is kept open. */
+	public static final int DEFAULT_IDLE_TIMEOUT = 30000;
+	/** The default time in milliseconds that an idle upstream connection is kept in its pool. */
+	public static final int DEFAULT_POOL_TIMEOUT = 10000;
+	/** The maximum number of idle connections kept in the pool of each upstream server. */
+	public static final int MAX_IDLE_PER_UPSTREAM = 32;
+	/** The largest request body that is kept in memory, so the request can be retried. */
+	public static final int MAX_BUFFERED_BODY = 1024 * 1024;
+
+	static final int CONNECT_TIMEOUT = 10000;
+	static final int BUFFER_SIZE = 65536;
+	static final String REALM = "HttpTest proxy";
+	static final String VIA = "1.1 HttpTest";
+	static final Charset latin1 = Charset.forName("ISO-8859-1");
+
+	int port;
+	ServerSocket serverSocket;
+	ExecutorService executor;
+	String expectedAuthorization = null;
+	int latency = 0;
+	int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	int poolTimeout = DEFAULT_POOL_TIMEOUT;
+	ConcurrentHashMap<String,Upstream> upstreams = new ConcurrentHashMap<String,Upstream>();
+	Set<Socket> clients = ConcurrentHashMap.newKeySet();
+	CopyOnWriteArrayList<HttpConnectionEventListener> listenerList;
+
+	volatile long startTime = System.nanoTime();
+	AtomicLong connections = new AtomicLong();
+	AtomicLong requests = new AtomicLong();
+	AtomicLong tunnels = new AtomicLong();
+	AtomicLong refused = new AtomicLong();
+	AtomicLong errors = new AtomicLong();
+	AtomicLong bytesIn = new AtomicLong();
+	AtomicLong bytesOut = new AtomicLong();
+	AtomicLong totalNanos = new AtomicLong();
+	AtomicLong upstreamNanos = new AtomicLong();
+	AtomicLong latencyNanos = new AtomicLong();
+	volatile LatencyHistogram overhead = new LatencyHistogram();
+
+	/**
+	 * Class constructor; opens the port of the proxy.
+	 * @param port the port on which to listen for client connections.
+	 * @throws IOException if the port cannot be opened.
+	 */
+	public ForwardProxy(int port) throws IOException {
+		super("ForwardProxy-" + port);
+		this.port = port;
+		listenerList = new CopyOnWriteArrayList<HttpConnectionEventListener>();
+		serverSocket = new ServerSocket(port);
+		executor = Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Require clients to authenticate with Basic credentials.
+	 * This method must be called before the proxy is started.
+	 * @param user the username, or null to accept all requests.
+	 * @param password the password.
+	 */
+	public void setCredentials(String user, String password) {
+		if ((user == null) || user.equals("")) expectedAuthorization = null;
+		else {
+			expectedAuthorization = "Basic "
+				+ Base64.encodeToString((user + ":" + password).getBytes(latin1)).trim();
+		}
+	}
+
+	/**
+	 * Set the latency that the proxy adds to each request and to the
+	 * opening of each tunnel, before it contacts the upstream server.
+	 * @param latency the latency in milliseconds.
+	 */
+	public void setLatency(int latency) {
+		this.latency = Math.max(0, latency);
+	}
+
+	/**
+	 * Set the time that an idle persistent client connection is kept open.
+	 * This method must be called before the proxy is started.
+	 * @param idleTimeout the idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Get the port of the proxy.
+	 * @return the port.
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Accept client connections, servicing each one on its own thread.
+	 */
+	public void run() {
+		sendHttpConnectionEvent(
+			this, HttpConnectionEvent.STARTUP, "Proxy started; port " + port + " open\n");
+		while (!this.isInterrupted()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connections.incrementAndGet();
+				clients.add(socket);
+				executor.execute(new Runnable() {
+					public void run() {
+						try { new ClientHandler(socket).run(); }
+						finally {
+							clients.remove(socket);
+							try { socket.close(); }
+							catch (Exception ignore) { }
+						}
+					}
+				});
+			}
+			catch (Exception ex) { break; }
+		}
+	}
+
+	/**
+	 * Stop the proxy, closing its port and all its connections.
+	 */
+	public void stopProxy() {
+		try { serverSocket.close(); }
+		catch (Exception ignore) { }
+		this.interrupt();
+		for (Socket socket : clients) {
+			try { socket.close(); }
+			catch (Exception ignore) { }
+		}
+		for (Upstream upstream : upstreams.values()) upstream.closeIdle();
+		executor.shutdownNow();
+		sendHttpConnectionEvent(
+			this, HttpConnectionEvent.SHUTDOWN, "Proxy shut down; port closed\n");
+	}
+
+	/**
+	 * Clear the statistics, for example at the start of a load test.
+	 * Idle upstream connections are kept, so the pools stay warm.
+	 */
+	public void resetStatistics() {
+		startTime = System.nanoTime();
+		connections.set(clients.size());
+		requests.set(0);
+		tunnels.set(0);
+		refused.set(0);
+		errors.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+		totalNanos.set(0);
+		upstreamNanos.set(0);
+		latencyNanos.set(0);
+		overhead = new LatencyHistogram();
+		for (Upstream upstream : upstreams.values()) upstream.reset();
+	}
+
+	//Get the time since the statistics were cleared, in seconds.
+	private double getElapsed() {
+		return (System.nanoTime() - startTime) / 1000000000.0;
+	}
+
+	/**
+	 * Get the statistics as text.
+	 * @return the statistics.
+	 */
+	public String getStatistics() {
+		double elapsed = getElapsed();
+		long n = requests.get();
+		StringBuffer sb = new StringBuffer();
+		sb.append("Forward proxy on port " + port + ": "
+					+ String.format("%.1f", elapsed) + " s since the statistics were cleared\n");
+		sb.append("Authentication: " + ((expectedAuthorization != null) ? "Basic" : "none")
+					+ ", added latency: " + latency + " ms\n");
+		sb.append("Client connections: " + connections.get() + " (" + clients.size() + " open)\n");
+		sb.append("Requests forwarded: " + n + ", CONNECT tunnels: " + tunnels.get()
+					+ ", refused (407): " + refused.get() + ", errors: " + errors.get() + "\n");
+		if (elapsed > 0) {
+			sb.append("Throughput: " + String.format("%.1f", n / elapsed) + " requests/s, "
+						+ String.format("%.1f", bytesOut.get() / elapsed / 1024.0) + " KB/s to clients, "
+						+ String.format("%.1f", bytesIn.get() / elapsed / 1024.0) + " KB/s from clients\n");
+		}
+		if (n > 0) {
+			sb.append("Mean time per request (ms): "
+						+ String.format("%.3f", totalNanos.get() / 1000000.0 / n) + " total, "
+						+ String.format("%.3f", upstreamNanos.get() / 1000000.0 / n) + " upstream, "
+						+ String.format("%.3f", latencyNanos.get() / 1000000.0 / n) + " added latency\n");
+			sb.append("Proxy overhead (ms):\n    " + overhead.getSummary() + "\n");
+		}
+		Map<String,Upstream> sorted = new TreeMap<String,Upstream>(upstreams);
+		if (!sorted.isEmpty()) sb.append("Upstream connection pools:\n");
+		for (Map.Entry<String,Upstream> entry : sorted.entrySet()) {
+			sb.append("    " + entry.getKey() + ": " + entry.getValue().getSummary() + "\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the statistics as a JSON object.
+	 * @return the statistics.
+	 */
+	public JsonLine toJson() {
+		double elapsed = getElapsed();
+		long n = requests.get();
+		long opened = 0;
+		long reused = 0;
+		for (Upstream upstream : upstreams.values()) {
+			opened += upstream.opened.get();
+			reused += upstream.reused.get();
+		}
+		JsonLine json = new JsonLine()
+			.put("type", "proxy")
+			.put("port", port)
+			.put("seconds", elapsed)
+			.put("connections", connections.get())
+			.put("requests", n)
+			.put("tunnels", tunnels.get())
+			.put("refused", refused.get())
+			.put("errors", errors.get())
+			.put("requestsPerSecond", (elapsed > 0) ? n / elapsed : 0.0)
+			.put("bytesIn", bytesIn.get())
+			.put("bytesOut", bytesOut.get())
+			.put("upstreamConnections", opened)
+			.put("upstreamReused", reused)
+			.put("latencyMs", latency);
+		if (n > 0) {
+			json.put("meanMs", totalNanos.get() / 1000000.0 / n)
+				.put("meanUpstreamMs", upstreamNanos.get() / 1000000.0 / n);
+			overhead.addTo(json, "overhead");
+		}
+		return json;
+	}
+
+	//Get the pool of an upstream server.
+	private Upstream getUpstream(String host, int port) {
+		String key = host.toLowerCase() + ":" + port;
+		Upstream upstream = upstreams.get(key);
+		if (upstream == null) {
+			Upstream created = new Upstream(host, port);
+			upstream = upstreams.putIfAbsent(key, created);
+			if (upstream == null) upstream = created;
+		}
+		return upstream;
+	}
+
+	//Wait for the added latency.
+	private void addLatency() throws IOException {
+		if (latency <= 0) return;
+		try { Thread.sleep(latency); }
+		catch (InterruptedException ex) { throw new InterruptedIOException("The proxy was stopped"); }
+	}
+
+	//Determine whether a header is hop-by-hop, applying only to one
+	//connection, so that the proxy does not forward it.
+	static boolean isHopByHop(String name, String connection) {
+		if (name.equals("connection") || name.equals("keep-alive")
+				|| name.equals("proxy-connection") || name.equals("proxy-authorization")
+				|| name.equals("proxy-authenticate") || name.equals("te")
+				|| name.equals("upgrade") || name.equals("expect")) return true;
+		if (connection == null) return false;
+		for (String token : connection.split(",")) {
+			if (token.trim().equalsIgnoreCase(name)) return true;
+		}
+		return false;
+	}
+
+	//Copy the header lines from the text of a header block, omitting
+	//the hop-by-hop headers. The first line (the request or status line)
+	//is not copied.
+	static void copyHeaders(String text, Hashtable<String,String> headers, StringBuffer sb) {
+		copyHeaders(text, headers, sb, false);
+	}
+
+	//Copy the header lines, also omitting the Transfer-Encoding and
+	//Trailer headers if the proxy is removing the chunked encoding.
+	static void copyHeaders(String text, Hashtable<String,String> headers,
+							StringBuffer sb, boolean dechunked) {
+		String connection = headers.get("connection");
+		String[] lines = text.split("\n");
+		for (int i=1; i<lines.length; i++) {
+			String line = lines[i];
+			int colon = line.indexOf(":");
+			if (colon <= 0) continue;
+			String name = line.substring(0, colon).trim().toLowerCase();
+			if (dechunked && (name.equals("transfer-encoding") || name.equals("trailer"))) continue;
+			if (!isHopByHop(name, connection)) sb.append(line + "\r\n");
+		}
+	}
+
+	//Get the first line of a header block.
+	static String firstLine(String text) {
+		int k = text.indexOf("\n");
+		return ((k != -1) ? text.substring(0, k) : text).trim();
+	}
+
+	//Determine whether the sender of a message with a header block
+	//keeps its connection open afterwards.
+	static boolean isKeepAlive(String version, String connection) {
+		connection = (connection != null) ? connection.toLowerCase() : "";
+		if (version.equals("HTTP/1.1")) return (connection.indexOf("close") == -1);
+		return (connection.indexOf("keep-alive") != -1);
+	}
+
+	//The handler for one client connection.
+	class ClientHandler {
+		Socket socket;
+		CountingOutputStream counter;
+		OutputStream out;
+		HttpProbe.CountingInputStream inCounter;
+		RequestInputStream in;
+		HttpResponse response = new HttpResponse();
+		long countedIn = 0;
+		long countedOut = 0;
+
+		ClientHandler(Socket socket) {
+			this.socket = socket;
+		}
+
+		void run() {
+			try {
+				socket.setSoTimeout(idleTimeout);
+				socket.setTcpNoDelay(true);
+				inCounter = new HttpProbe.CountingInputStream(socket.getInputStream());
+				in = new RequestInputStream(inCounter);
+				counter = new CountingOutputStream(socket.getOutputStream());
+				out = new BufferedOutputStream(counter, BUFFER_SIZE);
+				boolean keepAlive = true;
+				while (keepAlive) {
+					Hashtable<String,String> headers = new Hashtable<String,String>();
+					String head = in.readHeaders(headers);
+					if (head == null) break;
+					long start = System.nanoTime();
+					String[] requestLine = firstLine(head).split(" ");
+					if (requestLine.length != 3) {
+						sendError(400, "Bad Request", "Invalid request line: " + firstLine(head), false);
+						break;
+					}
+					String method = requestLine[0];
+					String target = requestLine[1];
+					String version = requestLine[2];
+					keepAlive = isKeepAlive(version, headers.get("connection"));
+					String proxyConnection = headers.get("proxy-connection");
+					if (proxyConnection != null) keepAlive = isKeepAlive(version, proxyConnection);
+
+					if ((expectedAuthorization != null)
+							&& !expectedAuthorization.equals(headers.get("proxy-authorization"))) {
+						refused.incrementAndGet();
+						keepAlive = keepAlive && skipBody(headers);
+						response.reset();
+						response.setHeader("Proxy-Authenticate", "Basic realm=\"" + REALM + "\"");
+						sendError(407, "Proxy Authentication Required",
+									"The proxy requires Basic authentication.", keepAlive);
+						report(method + " " + target + " -> 407 (no valid Proxy-Authorization)");
+					}
+					else if (method.equalsIgnoreCase("CONNECT")) {
+						tunnel(target, start);
+						keepAlive = false;
+					}
+					else keepAlive = forward(method, target, version, head, headers, keepAlive, start);
+					count();
+				}
+				out.flush();
+			}
+			catch (Exception ex) {
+				//The client closed the connection, or the proxy was stopped.
+			}
+			if (inCounter != null) count();
+		}
+
+		//Add the bytes transferred to the statistics.
+		void count() {
+			bytesIn.addAndGet(inCounter.count - countedIn);
+			countedIn = inCounter.count;
+			bytesOut.addAndGet(counter.count - countedOut);
+			countedOut = counter.count;
+		}
+
+		//Forward a request to the upstream server and relay the response.
+		//Return true if the client connection can be used for another request.
+		boolean forward(String method, String target, String version, String head,
+						Hashtable<String,String> headers, boolean keepAlive, long start)
+														throws IOException {
+			URL url;
+			try {
+				url = new URL(target);
+				if (!url.getProtocol().equalsIgnoreCase("http")) {
+					throw new MalformedURLException("Only http URLs can be forwarded; use CONNECT for https");
+				}
+			}
+			catch (MalformedURLException ex) {
+				errors.incrementAndGet();
+				boolean open = keepAlive && skipBody(headers);
+				sendError(400, "Bad Request", "Invalid proxy request target: " + target + "\n" + ex.getMessage(), open);
+				return open;
+			}
+			String host = url.getHost();
+			int upstreamPort = (url.getPort() != -1) ? url.getPort() : 80;
+			String path = url.getFile().equals("") ? "/" : url.getFile();
+
+			//A client that expects 100 Continue waits for it before sending
+			//the body, which the proxy reads before it contacts the server.
+			String expect = headers.get("expect");
+			if ((expect != null) && expect.equalsIgnoreCase("100-continue") && version.equals("HTTP/1.1")) {
+				out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(latin1));
+				out.flush();
+			}
+
+			//Make the request for the upstream server.
+			StringBuffer sb = new StringBuffer();
+			sb.append(method + " " + path + " " + version + "\r\n");
+			copyHeaders(head, headers, sb);
+			if (headers.get("host") == null) {
+				sb.append("Host: " + host + ((url.getPort() != -1) ? ":" + upstreamPort : "") + "\r\n");
+			}
+			sb.append("Via: " + VIA + "\r\n");
+			sb.append("Connection: keep-alive\r\n\r\n");
+			byte[] requestHead = sb.toString().getBytes(latin1);
+
+			//An idempotent request with no body, or with a small one that can
+			//be kept in memory, is retried on a new connection if a pooled
+			//connection turns out to have been closed by the server before
+			//the request could have been processed: the request could not be
+			//written, or the server closed the connection without sending
+			//anything. A server that is just slow is not sent the request
+			//again. A larger body, or a chunked one, is streamed to the
+			//server on a new connection.
+			ChunkedDecoder decoder = HttpHandler.isChunked(headers) ? new ChunkedDecoder() : null;
+			long contentLength = HttpHandler.getContentLength(headers);
+			ByteArrayOutputStream body = null;
+			boolean streamed = (decoder != null) || (contentLength > MAX_BUFFERED_BODY);
+			if (!streamed && (contentLength > 0)) {
+				body = new ByteArrayOutputStream((int)contentLength);
+				if (in.copy(contentLength, body) < contentLength) return false;
+			}
+
+			long upstreamStart = System.nanoTime();
+			addLatency();
+			long latencyEnd = (latency > 0) ? System.nanoTime() : upstreamStart;
+			Upstream upstream = getUpstream(host, upstreamPort);
+			UpstreamConnection conn = null;
+			Hashtable<String,String> responseHeaders = null;
+			String responseHead = null;
+			boolean idempotent = RawHttpClient.isIdempotent(method);
+			while (responseHead == null) {
+				conn = streamed ? null : upstream.take();
+				boolean reused = (conn != null);
+				boolean sent = false;
+				boolean closedEarly = false;
+				try {
+					if (conn == null) conn = upstream.open();
+					conn.out.write(requestHead);
+					if (body != null) body.writeTo(conn.out);
+					else if (decoder != null) {
+						if (in.copyChunked(decoder, conn.out) < 0) throw new EOFException("The client closed the connection");
+					}
+					else if (streamed) {
+						if (in.copy(contentLength, conn.out) < contentLength) throw new EOFException("The client closed the connection");
+					}
+					conn.out.flush();
+					sent = true;
+					do {
+						responseHeaders = new Hashtable<String,String>();
+						responseHead = conn.in.readHeaders(responseHeaders);
+					} while ((responseHead != null) && firstLine(responseHead).matches("HTTP/1\\.[01] 1\\d\\d.*"));
+					if (responseHead == null) {
+						if (conn.in.isTimedOut()) {
+							throw new SocketTimeoutException(
+								"The server did not respond within " + DEFAULT_IDLE_TIMEOUT + " ms");
+						}
+						closedEarly = !conn.in.hasBufferedBytes();
+						throw new IOException("The server closed the connection");
+					}
+					conn.reused = reused;
+				}
+				catch (IOException ex) {
+					if (conn != null) conn.close();
+					responseHead = null;
+					if (reused && idempotent && (!sent || closedEarly)) upstream.reused.decrementAndGet();
+					else {
+						//The request failed on a new connection, or it may have
+						//been processed by the server; give up.
+						errors.incrementAndGet();
+						boolean timedOut = (ex instanceof SocketTimeoutException);
+						int code = timedOut ? 504 : 502;
+						sendError(code, timedOut ? "Gateway Timeout" : "Bad Gateway",
+									"Unable to get a response from " + host + ":" + upstreamPort + "\n" + ex, false);
+						report(method + " " + target + " -> " + code + " (" + ex.getMessage() + ")");
+						return false;
+					}
+				}
+			}
+
+			//Relay the response.
+			String statusLine = firstLine(responseHead);
+			String[] status = statusLine.split(" ", 3);
+			String responseVersion = status[0];
+			int code = 0;
+			try { code = Integer.parseInt(status[1]); }
+			catch (Exception ignore) { }
+			ChunkedDecoder responseDecoder = HttpHandler.isChunked(responseHeaders) ? new ChunkedDecoder() : null;
+			long length = -1;
+			if (responseHeaders.get("content-length") != null) {
+				length = HttpHandler.getContentLength(responseHeaders);
+			}
+			boolean noBody = method.equalsIgnoreCase("HEAD") || (code == 204) || (code == 304);
+			boolean closeDelimited = !noBody && (responseDecoder == null) && (length < 0);
+			boolean upstreamOpen = !closeDelimited
+									&& isKeepAlive(responseVersion, responseHeaders.get("connection"));
+
+			//An HTTP/1.0 client cannot decode a chunked body, so the proxy
+			//decodes it and closes the connection to mark the end of it.
+			boolean dechunk = !noBody && (responseDecoder != null) && !version.equals("HTTP/1.1");
+			keepAlive = keepAlive && !closeDelimited && !dechunk;
+
+			sb = new StringBuffer();
+			sb.append(statusLine + "\r\n");
+			copyHeaders(responseHead, responseHeaders, sb, dechunk);
+			sb.append("Via: " + VIA + "\r\n");
+			sb.append("Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n");
+			out.write(sb.toString().getBytes(latin1));
+			long n = 0;
+			boolean complete = true;
+			try {
+				if (noBody) n = 0;
+				else if (dechunk) {
+					complete = conn.in.readChunked(responseDecoder, out);
+					n = responseDecoder.getTotalBytes();
+				}
+				else if (responseDecoder != null) complete = ((n = conn.in.copyChunked(responseDecoder, out)) >= 0);
+				else if (length >= 0) complete = ((n = conn.in.copy(length, out)) == length);
+				else n = conn.in.copy(-1, out);
+				out.flush();
+			}
+			catch (IOException ex) {
+				complete = false;
+				throw ex;
+			}
+			finally {
+				if (complete && upstreamOpen) upstream.release(conn);
+				else conn.close();
+			}
+			if (!complete) {
+				errors.incrementAndGet();
+				return false;
+			}
+
+			long end = System.nanoTime();
+			long latencyTime = latencyEnd - upstreamStart;
+			long upstreamTime = end - latencyEnd;
+			requests.incrementAndGet();
+			upstream.requests.incrementAndGet();
+			totalNanos.addAndGet(end - start);
+			latencyNanos.addAndGet(latencyTime);
+			upstreamNanos.addAndGet(upstreamTime);
+			overhead.recordNanos((end - start) - latencyTime - upstreamTime);
+			report(method + " " + target + " -> " + code + " ("
+					+ (conn.reused ? "reused" : "new") + " upstream connection), "
+					+ String.format("%.3f", (end - start) / 1000000.0) + " ms");
+			return keepAlive;
+		}
+
+		//Open a tunnel to the target of a CONNECT request and relay
+		//the bytes in both directions until either side closes it.
+		void tunnel(String target, long start) throws IOException {
+			int k = target.lastIndexOf(":");
+			String host = (k > 0) ? target.substring(0, k) : target;
+			int targetPort = -1;
+			try { targetPort = Integer.parseInt(target.substring(k + 1)); }
+			catch (Exception ex) { }
+			if ((k <= 0) || (targetPort <= 0)) {
+				errors.incrementAndGet();
+				sendError(400, "Bad Request", "Invalid CONNECT target: " + target, false);
+				return;
+			}
+			if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+			addLatency();
+			final Socket server = new Socket();
+			try {
+				server.connect(new InetSocketAddress(host, targetPort), CONNECT_TIMEOUT);
+				server.setTcpNoDelay(true);
+			}
+			catch (IOException ex) {
+				errors.incrementAndGet();
+				server.close();
+				sendError(502, "Bad Gateway", "Unable to connect to " + target + "\n" + ex, false);
+				report("CONNECT " + target + " -> 502 (" + ex.getMessage() + ")");
+				return;
+			}
+			tunnels.incrementAndGet();
+			report("CONNECT " + target + " -> 200, "
+					+ String.format("%.3f", (System.nanoTime() - start) / 1000000.0) + " ms to open the tunnel");
+			try {
+				out.write(("HTTP/1.1 200 Connection established\r\nVia: " + VIA + "\r\n\r\n").getBytes(latin1));
+				out.flush();
+
+				//A tunnel may be idle in one direction while data flows in the other.
+				socket.setSoTimeout(0);
+				final OutputStream toClient = counter;
+				Future<?> downstream = executor.submit(new Runnable() {
+					public void run() {
+						try {
+							byte[] buf = new byte[BUFFER_SIZE];
+							InputStream fromServer = server.getInputStream();
+							int n;
+							while ((n = fromServer.read(buf)) != -1) toClient.write(buf, 0, n);
+							socket.shutdownOutput();
+						}
+						catch (IOException closed) {
+							try { socket.close(); }
+							catch (IOException ignore) { }
+						}
+					}
+				});
+				try {
+					in.copy(-1, server.getOutputStream());
+					server.shutdownOutput();
+				}
+				catch (IOException closed) {
+					server.close();
+				}
+				try { downstream.get(); }
+				catch (Exception ignore) { }
+			}
+			finally {
+				server.close();
+			}
+		}
+
+		//Read and discard the body of a request that is not forwarded.
+		//Return true if the whole body was read.
+		boolean skipBody(Hashtable<String,String> headers) throws IOException {
+			OutputStream discard = OutputStream.nullOutputStream();
+			if (HttpHandler.isChunked(headers)) {
+				return (in.copyChunked(new ChunkedDecoder(), discard) >= 0);
+			}
+			long length = HttpHandler.getContentLength(headers);
+			return (in.copy(length, discard) == length);
+		}
+
+		//Send a response generated by the proxy. Any extra headers must
+		//already have been set in the response.
+		void sendError(int code, String reason, String text, boolean keepAlive) throws IOException {
+			response.setStatus(code, reason);
+			response.setProtocol("HTTP/1.1");
+			response.setKeepAlive(keepAlive, idleTimeout);
+			response.write(text + "\n");
+			response.send(out);
+			out.flush();
+			response.reset();
+		}
+
+		//Send a report of a request to any listeners.
+		void report(String text) {
+			if (!listenerList.isEmpty()) {
+				sendHttpConnectionEvent(this, HttpConnectionEvent.RECEIVED,
+					"Proxy: " + socket.getInetAddress().getHostAddress() + ": " + text + "\n");
+			}
+		}
+	}
+
+	//The pool of connections to one upstream server,
+	//and the statistics of the requests sent to it.
+	class Upstream {
+		String host;
+		int port;
+		ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<UpstreamConnection>();
+		AtomicInteger idleCount = new AtomicInteger();
+		AtomicLong requests = new AtomicLong();
+		AtomicLong opened = new AtomicLong();
+		AtomicLong reused = new AtomicLong();
+		AtomicLong connectNanos = new AtomicLong();
+
+		Upstream(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		//Take the most recently used idle connection that has not
+		//been idle too long, or return null if there is none.
+		UpstreamConnection take() {
+			UpstreamConnection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				idleCount.decrementAndGet();
+				if (System.currentTimeMillis() - conn.idleSince < poolTimeout) {
+					reused.incrementAndGet();
+					return conn;
+				}
+				conn.close();
+			}
+			return null;
+		}
+
+		//Open a new connection.
+		UpstreamConnection open() throws IOException {
+			long t = System.nanoTime();
+			UpstreamConnection conn = new UpstreamConnection(host, port);
+			connectNanos.addAndGet(System.nanoTime() - t);
+			opened.incrementAndGet();
+			return conn;
+		}
+
+		//Return a connection to the pool.
+		void release(UpstreamConnection conn) {
+			if (idleCount.incrementAndGet() > MAX_IDLE_PER_UPSTREAM) {
+				idleCount.decrementAndGet();
+				conn.close();
+				return;
+			}
+			conn.idleSince = System.currentTimeMillis();
+			idle.offerFirst(conn);
+		}
+
+		void closeIdle() {
+			UpstreamConnection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				idleCount.decrementAndGet();
+				conn.close();
+			}
+		}
+
+		void reset() {
+			requests.set(0);
+			opened.set(0);
+			reused.set(0);
+			connectNanos.set(0);
+		}
+
+		String getSummary() {
+			long n = opened.get();
+			return requests.get() + " requests, " + n + " connections opened"
+					+ ((n > 0) ? String.format(" (mean connect %.3f ms)", connectNanos.get() / 1000000.0 / n) : "")
+					+ ", " + reused.get() + " reused, " + idleCount.get() + " idle";
+		}
+	}
+
+	//A connection to an upstream server.
+	static class UpstreamConnection {
+		Socket socket;
+		RequestInputStream in;
+		OutputStream out;
+		long idleSince = 0;
+		boolean reused = false;
+
+		UpstreamConnection(String host, int port) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(DEFAULT_IDLE_TIMEOUT);
+				in = new RequestInputStream(socket.getInputStream());
+				out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+			}
+			catch (IOException ex) {
+				socket.close();
+				throw ex;
+			}
+		}
+
+		void close() {
+			try { socket.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	//An OutputStream that counts the bytes written to it.
+	static class CountingOutputStream extends FilterOutputStream {
+		volatile long count = 0;
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Add an HttpConnectionEventListener to the listener list.
+	 * The listener receives a report of each request.
+	 * @param listener the HttpConnectionEventListener.
+	 */
+	public void addHttpConnectionEventListener(HttpConnectionEventListener listener) {
+		listenerList.addIfAbsent(listener);
+	}
+
+	/**
+	 * Remove an HttpConnectionEventListener from the listener list.
+	 * @param listener the HttpConnectionEventListener.
+	 */
+	public void removeHttpConnectionEventListener(HttpConnectionEventListener listener) {
+		listenerList.remove(listener);
+	}
+
+	//Send an HttpConnectionEvent to all HttpConnectionEventListeners,
+	//in the thread on which it occurred.
+	private void sendHttpConnectionEvent(Object object, int status, String message) {
+		if (!listenerList.isEmpty()) {
+			HttpConnectionEvent event = new HttpConnectionEvent(object, status, message);
+			for (HttpConnectionEventListener listener : listenerList) {
+				listener.httpConnectionEventOccurred(event);
+			}
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Hashtable;
+
+/**
+ * A parser for the request line and headers of an HTTP request.
+ * The parser works directly on a byte buffer supplied by the caller,
+ * scanning it for CRLF boundaries and splitting names and values
+ * without making a String for each line. Names of common headers
+ * are returned as constants. The parser keeps scratch buffers between
+ * calls, so an instance must be used by only one thread at a time.
+ * The number of headers and the size of the header block are limited;
+ * a request exceeding either limit causes an IOException.
+ */
+public class HeaderParser {
+
+	/** The default maximum number of headers in a request. */
+	public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+	/** The default maximum size in bytes of the request line and headers. */
+	public static final int DEFAULT_MAX_HEADER_SIZE = 16384;
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	static final String[] knownNames = {
+		"host", "user-agent", "accept", "accept-encoding", "accept-language",
+		"accept-charset", "connection", "keep-alive", "content-length",
+		"content-type", "content-encoding", "transfer-encoding", "te", "trailer",
+		"expect", "origin", "referer", "cookie", "authorization",
+		"proxy-authorization", "proxy-connection", "cache-control", "pragma",
+		"if-none-match", "if-modified-since", "upgrade", "date",
+		"access-control-request-method", "access-control-request-headers"
+	};
+	static final byte[][] knownBytes = new byte[knownNames.length][];
+	static {
+		for (int i=0; i<knownNames.length; i++) {
+			knownBytes[i] = knownNames[i].getBytes(utf8);
+		}
+	}
+
+	int maxHeaderCount;
+	int maxHeaderSize;
+	byte[] name = new byte[256];
+	byte[] text;
+
+	/**
+	 * Class constructor; creates a parser with the default limits.
+	 */
+	public HeaderParser() {
+		this(DEFAULT_MAX_HEADER_COUNT, DEFAULT_MAX_HEADER_SIZE);
+	}
+
+	/**
+	 * Class constructor; creates a parser with specified limits.
+	 * @param maxHeaderCount the maximum number of headers in a request.
+	 * @param maxHeaderSize the maximum size in bytes of the request line and headers.
+	 */
+	public HeaderParser(int maxHeaderCount, int maxHeaderSize) {
+		this.maxHeaderCount = maxHeaderCount;
+		this.maxHeaderSize = maxHeaderSize;
+		text = new byte[maxHeaderSize];
+	}
+
+	/**
+	 * Get the maximum size of the request line and headers.
+	 * @return the maximum size in bytes.
+	 */
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	/**
+	 * Skip any empty lines preceding a request line. Clients may send
+	 * an extra CRLF after the body of a request.
+	 * @param buf the buffer.
+	 * @param off the index of the first byte to examine.
+	 * @param end the index of the byte after the last byte in the buffer.
+	 * @return the index of the first byte that is not CR or LF.
+	 */
+	public static int skipBlankLines(byte[] buf, int off, int end) {
+		while ((off < end) && ((buf[off] == 13) || (buf[off] == 10))) off++;
+		return off;
+	}
+
+	/**
+	 * Determine whether a request line is well formed. The line must
+	 * have three parts separated by single spaces: a method, which is
+	 * an HTTP token; a request target, which contains no control
+	 * characters; and a version of HTTP/1.0 or HTTP/1.1.
+	 * @param headers the text of the request line and headers, as
+	 * returned by parse.
+	 * @return true if the request line is well formed.
+	 */
+	public static boolean isValidRequestLine(String headers) {
+		int k = headers.indexOf("\n");
+		String line = (k != -1) ? headers.substring(0, k) : headers;
+		String[] parts = line.split(" ", -1);
+		if (parts.length != 3) return false;
+		String method = parts[0];
+		if (method.length() == 0) return false;
+		for (int i=0; i<method.length(); i++) {
+			char c = method.charAt(i);
+			if ((c <= 32) || (c >= 127) || ("()<>@,;:\\\"/[]?={}".indexOf(c) != -1)) return false;
+		}
+		String target = parts[1];
+		if (target.length() == 0) return false;
+		for (int i=0; i<target.length(); i++) {
+			char c = target.charAt(i);
+			if ((c < 32) || (c == 127)) return false;
+		}
+		return parts[2].equals("HTTP/1.1") || parts[2].equals("HTTP/1.0");
+	}
+
+	/**
+	 * Find the end of the header block, which is terminated by an empty line.
+	 * @param buf the buffer.
+	 * @param off the index of the start of the request line.
+	 * @param from the index from which to resume scanning. This allows a caller
+	 * that is accumulating a request to avoid re-scanning the bytes it has
+	 * already examined. It must not be less than off.
+	 * @param end the index of the byte after the last byte in the buffer.
+	 * @return the index of the first byte after the header block, or -1 if
+	 * the header block is not yet complete.
+	 * @throws IOException if the header block exceeds the maximum size.
+	 */
+	public int findEnd(byte[] buf, int off, int from, int end) throws IOException {
+		int i = Math.max(from, off + 3);
+		int limit = Math.min(end, off + maxHeaderSize);
+		for ( ; i<limit; i++) {
+			if ((buf[i] == 10) && (buf[i-1] == 13) && (buf[i-2] == 10) && (buf[i-3] == 13)) {
+				return i + 1;
+			}
+		}
+		if (end - off >= maxHeaderSize) {
+			throw new IOException(
+				"Request headers exceed the limit of " + maxHeaderSize + " bytes");
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the header block, putting the headers in a Hashtable
+	 * indexed by lower-case name.
+	 * @param buf the buffer.
+	 * @param off the index of the start of the request line.
+	 * @param end the index of the first byte after the header block,
+	 * as returned by findEnd.
+	 * @param headers the Hashtable in which to put the headers.
+	 * @return the text of the request line and headers, with each line
+	 * trimmed and terminated by a newline, followed by an empty line.
+	 * @throws IOException if the number of headers exceeds the limit.
+	 */
+	public String parse(byte[] buf, int off, int end, Hashtable<String,String> headers)
+																	throws IOException {
+		int textLength = 0;
+		int count = -1; //don't count the request line
+		int lineStart = off;
+		while (lineStart < end) {
+			//Find the end of the line
+			int lineEnd = lineStart;
+			while ((lineEnd < end) && !((buf[lineEnd] == 13) && (lineEnd+1 < end) && (buf[lineEnd+1] == 10))) {
+				lineEnd++;
+			}
+			int next = lineEnd + 2;
+
+			//Trim the line
+			int s = lineStart;
+			int e = lineEnd;
+			while ((s < e) && (buf[s] <= 32) && (buf[s] >= 0)) s++;
+			while ((e > s) && (buf[e-1] <= 32) && (buf[e-1] >= 0)) e--;
+			if (s == e) break;
+
+			if (++count > maxHeaderCount) {
+				throw new IOException(
+					"Request headers exceed the limit of " + maxHeaderCount + " headers");
+			}
+
+			//Copy the line into the text
+			int len = e - s;
+			System.arraycopy(buf, s, text, textLength, len);
+			textLength += len;
+			text[textLength++] = 10;
+
+			//Split the name and value
+			if (count > 0) {
+				int colon = s;
+				while ((colon < e) && (buf[colon] != ':')) colon++;
+				if (colon < e) {
+					int ne = colon;
+					while ((ne > s) && (buf[ne-1] <= 32) && (buf[ne-1] >= 0)) ne--;
+					int vs = colon + 1;
+					while ((vs < e) && (buf[vs] <= 32) && (buf[vs] >= 0)) vs++;
+					headers.put(getName(buf, s, ne - s), new String(buf, vs, e - vs, utf8));
+				}
+			}
+			lineStart = next;
+		}
+		text[textLength++] = 10;
+		return new String(text, 0, textLength, utf8);
+	}
+
+	//Get the lower-case name of a header, using the
+	//constant String for the name if it is a common one.
+	private String getName(byte[] buf, int off, int len) {
+		if (len > name.length) name = new byte[len];
+		for (int i=0; i<len; i++) {
+			byte b = buf[off + i];
+			name[i] = ((b >= 'A') && (b <= 'Z')) ? (byte)(b + 32) : b;
+		}
+		for (int k=0; k<knownBytes.length; k++) {
+			byte[] known = knownBytes[k];
+			if (known.length == len) {
+				int i = 0;
+				while ((i < len) && (known[i] == name[i])) i++;
+				if (i == len) return knownNames[k];
+			}
+		}
+		return new String(name, 0, len, utf8);
+	}
+}
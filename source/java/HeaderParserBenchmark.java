@@ -0,0 +1,186 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+/**
+ * A microbenchmark comparing HeaderParser with the line-by-line header
+ * reader that HttpHandler used before it. Each pass reads a batch of
+ * pipelined copies of one request from a single stream, as a keep-alive
+ * connection would. The benchmark is run on a typical browser request
+ * and on a request with a large header set, and reports the throughput
+ * and the bytes allocated per request for each path. Allocation is
+ * reported only on JVMs that can measure it.
+ * <p>
+ * Usage: java -cp HttpTest.jar org.rsna.httptest.HeaderParserBenchmark [seconds]
+ */
+public class HeaderParserBenchmark {
+
+	static final int BATCH = 1000;
+
+	/**
+	 * Run the benchmark.
+	 * @param args the optional number of seconds to measure each case (default 2).
+	 */
+	public static void main(String[] args) throws Exception {
+		double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 2.0;
+		run("typical", typicalRequest(), seconds);
+		run("large", largeRequest(), seconds);
+	}
+
+	static void run(String name, byte[] request, double seconds) throws Exception {
+		int headers = countHeaders(request);
+		System.out.println(name + " request: " + request.length + " bytes, " + headers + " headers");
+		byte[] batch = new byte[request.length * BATCH];
+		for (int i=0; i<BATCH; i++) {
+			System.arraycopy(request, 0, batch, i * request.length, request.length);
+		}
+		//Warm up both paths before measuring either
+		measure(false, batch, seconds / 2);
+		measure(true, batch, seconds / 2);
+		report("  line reader ", measure(false, batch, seconds));
+		report("  HeaderParser", measure(true, batch, seconds));
+	}
+
+	//Read batches until the time is up, returning
+	//{requests, nanoseconds, bytes allocated}.
+	static long[] measure(boolean parser, byte[] batch, double seconds) throws Exception {
+		long limit = (long)(seconds * 1000000000L);
+		long requests = 0;
+		long startAlloc = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed;
+		int sink = 0;
+		do {
+			Hashtable<String,String> table = new Hashtable<String,String>();
+			if (parser) {
+				RequestInputStream in = new RequestInputStream(new ByteArrayInputStream(batch));
+				for (int i=0; i<BATCH; i++) {
+					table.clear();
+					sink += in.readHeaders(table).length();
+				}
+			}
+			else {
+				BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(batch));
+				for (int i=0; i<BATCH; i++) {
+					table.clear();
+					sink += getHeaders(in, table).length();
+				}
+			}
+			requests += BATCH;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < limit);
+		long alloc = allocatedBytes();
+		if ((alloc >= 0) && (startAlloc >= 0)) alloc -= startAlloc;
+		if (sink == 0) System.out.println();
+		return new long[] { requests, elapsed, alloc };
+	}
+
+	static void report(String label, long[] result) {
+		long requests = result[0];
+		double rate = requests * 1000000000.0 / result[1];
+		StringBuffer sb = new StringBuffer(label);
+		sb.append(": " + String.format("%,.0f", rate) + " requests/s");
+		sb.append(", " + String.format("%.0f", 1000000000.0 / rate) + " ns/request");
+		if (result[2] >= 0) {
+			sb.append(", " + String.format("%,d", result[2] / requests) + " bytes allocated/request");
+		}
+		System.out.println(sb.toString());
+	}
+
+	//Get the bytes allocated by the current thread, or -1
+	//if the JVM does not support the measurement.
+	static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean)bean).getCurrentThreadAllocatedBytes();
+			}
+		}
+		catch (Throwable unsupported) { }
+		return -1;
+	}
+
+	static int countHeaders(byte[] request) {
+		int count = 0;
+		for (int i=1; i<request.length; i++) {
+			if ((request[i] == 10) && (request[i-1] == 13)) count++;
+		}
+		return count - 2; //exclude the request line and the empty line
+	}
+
+	static byte[] typicalRequest() throws Exception {
+		StringBuffer sb = new StringBuffer();
+		sb.append("GET /mirc/query?page=2&sort=date HTTP/1.1\r\n");
+		sb.append("Host: www.example.org:8080\r\n");
+		sb.append("User-Agent: Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n");
+		sb.append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8\r\n");
+		sb.append("Accept-Encoding: gzip, deflate, br\r\n");
+		sb.append("Accept-Language: en-US,en;q=0.9\r\n");
+		sb.append("Connection: keep-alive\r\n");
+		sb.append("Referer: http://www.example.org:8080/mirc/query?page=1&sort=date\r\n");
+		sb.append("Cookie: RSNASESSION=5f2c8a1be0d94c7aa3e61f0b9d27c4e8; theme=light\r\n");
+		sb.append("Cache-Control: max-age=0\r\n");
+		sb.append("\r\n");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	static byte[] largeRequest() throws Exception {
+		StringBuffer sb = new StringBuffer();
+		sb.append("POST /mirc/submit/service HTTP/1.1\r\n");
+		sb.append("Host: www.example.org:8080\r\n");
+		sb.append("Content-Type: application/x-www-form-urlencoded\r\n");
+		sb.append("Content-Length: 0\r\n");
+		sb.append("Authorization: Digest username=\"admin\", realm=\"RSNA\", nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\", uri=\"/mirc/submit/service\", qop=auth, nc=00000001, cnonce=\"0a4f113b\", response=\"6629fae49393a05397450978507c4ef1\"\r\n");
+		StringBuffer cookie = new StringBuffer("Cookie: ");
+		for (int i=0; i<40; i++) {
+			if (i > 0) cookie.append("; ");
+			cookie.append("pref" + i + "=value-" + Integer.toHexString(i * 977));
+		}
+		sb.append(cookie.toString() + "\r\n");
+		for (int i=0; i<70; i++) {
+			sb.append("X-Trace-Attribute-" + i + ": span=" + (1000000 + i * 7919) + "; sampled=1; origin=gateway-" + (i % 8) + "\r\n");
+		}
+		sb.append("\r\n");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	//The header reader used by HttpHandler before HeaderParser.
+	static String getHeaders(BufferedInputStream in, Hashtable<String,String> headers) {
+		StringBuffer sb = new StringBuffer();
+		String line = getLine(in);
+		if (line.equals("")) return null;
+		for ( ; !line.equals(""); line=getLine(in)) {
+			sb.append(line + "\n");
+			int k = line.indexOf(":");
+			if (k != -1)
+				headers.put(
+					line.substring(0,k).trim().toLowerCase(),
+					line.substring(k+1).trim() );
+		}
+		return sb.append("\n").toString();
+	}
+
+	static String getLine(BufferedInputStream in) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		boolean rFlag = false;
+		int b;
+		try {
+			while ((b=in.read()) != -1) {
+				baos.write(b);
+				if (rFlag && (b == 10)) break;
+				rFlag = (b == 13);
+			}
+		}
+		catch (Exception ex) { }
+		return baos.toString().trim();
+	}
+}
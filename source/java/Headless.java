@@ -0,0 +1,436 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.CookieManager;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.util.LinkedList;
+
+/**
+ * The command-line entry point for running the HTTP server and HTTP
+ * client probes without a user interface. The output is one JSON object
+ * per line. This class and the classes it uses do not load AWT or Swing,
+ * so it can run on headless hosts and in containers:
+ * <pre>
+ * java -cp HttpTest.jar org.rsna.httptest.Headless --server 5678 --engine nio
+ * java -cp HttpTest.jar org.rsna.httptest.Headless --get http://host:5678/ --count 10
+ * </pre>
+ */
+public class Headless implements HttpConnectionEventListener {
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	static final String usage =
+		"Usage: java -cp HttpTest.jar org.rsna.httptest.Headless [options]\n"
+		+ "Server options:\n"
+		+ "  --server PORT          start the HTTP server on PORT\n"
+		+ "  --engine NAME          threads, nio, or virtual (default threads)\n"
+		+ "  --max N                maximum connections in flight (virtual engine;\n"
+		+ "                         limited to the thread pool without virtual threads)\n"
+		+ "  --no-response          do not send response pages\n"
+		+ "  --bodies KB            show bodies up to KB in full\n"
+		+ "  --spool DIR            spool larger bodies to files in DIR\n"
+		+ "  --spool-max MB         keep at most MB of spool files (default 1024)\n"
+		+ "  --compress             compress responses\n"
+		+ "  --compress-min BYTES   minimum size of a compressed response\n"
+		+ "  --level N              compression level (1-9)\n"
+		+ "  --duration SECONDS     stop the server (and the forward proxy) after SECONDS\n"
+		+ "Forward proxy options:\n"
+		+ "  --forward-proxy PORT   start a forward proxy on PORT (absolute-URI requests and CONNECT)\n"
+		+ "  --forward-auth USER:PW require Basic Proxy-Authorization\n"
+		+ "  --forward-latency MS   add MS of latency to each request and tunnel\n"
+		+ "Client options:\n"
+		+ "  --get URL              probe URL with a GET request (repeatable)\n"
+		+ "  --method METHOD        method for the probes (default GET)\n"
+		+ "  --body TEXT            body for POST and PUT probes\n"
+		+ "  --count N              repeat each probe N times\n"
+		+ "  --gzip                 send Accept-Encoding: gzip\n"
+		+ "  --content              include a preview of the content in the output\n"
+		+ "  --preview KB           size of the content preview (default 4)\n"
+		+ "  --save FILE            save the (decompressed) content of the probes to FILE\n"
+		+ "  --cache MB             cache GET responses with validators in MB of memory,\n"
+		+ "                         and send If-None-Match and If-Modified-Since\n"
+		+ "  --cache-dir DIR        add a disk tier to the cache in DIR\n"
+		+ "  --cache-disk MB        size of the disk tier (default 256)\n"
+		+ "  --auth USER:PASSWORD   send Basic credentials\n"
+		+ "  --digest               send the --auth credentials with the Digest scheme\n"
+		+ "  --follow N             follow up to N redirects, timing each hop\n"
+		+ "  --cookies              keep the cookies of the responses and send them\n"
+		+ "  --cookie-file FILE     keep the cookies in FILE, which is loaded at startup\n"
+		+ "  --cookie-max N         maximum number of cookies (default 3000)\n"
+		+ "  --cookie-domain-max N  maximum number of cookies for a domain (default 50)\n"
+		+ "  --proxy HOST:PORT      use an HTTP proxy\n"
+		+ "  --proxy-auth USER:PW   send Basic credentials to the proxy\n"
+		+ "  --insecure             accept any https certificate\n"
+		+ "  --timeout MS           connect and read timeout (default 30000)\n"
+		+ "  --raw                  use the raw socket engine instead of HttpURLConnection\n"
+		+ "  --http2                use java.net.http, preferring HTTP/2 (h2c on plain http)\n"
+		+ "Batch options:\n"
+		+ "  --urls FILE            probe the URLs listed in FILE, one per line, in parallel;\n"
+		+ "                         a line may end with \"direct\" or \"proxy HOST:PORT\"\n"
+		+ "  --parallel N           number of probes in progress at once (default 16)\n"
+		+ "Load options (replace the single probes):\n"
+		+ "  --load MODE            closed (back-to-back workers) or open (fixed rate)\n"
+		+ "  --workers N            number of workers (default 10)\n"
+		+ "  --rate N               requests per second in the open mode\n"
+		+ "  --seconds N            duration of the load (default 30)\n"
+		+ "  --requests N           maximum number of requests (default no limit)\n";
+
+	PrintStream out;
+
+	/**
+	 * Run the headless mode.
+	 * @param args the command-line options.
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		HttpProbe.enableTunnelAuthentication();
+		int status;
+		try { status = new Headless().run(args); }
+		catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.err.print(usage);
+			status = 2;
+		}
+		System.exit(status);
+	}
+
+	/**
+	 * Class constructor; writes the output to System.out.
+	 */
+	public Headless() {
+		try { out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, "UTF-8"); }
+		catch (UnsupportedEncodingException ex) { out = System.out; }
+	}
+
+	/**
+	 * Start the server and run the probes specified by the options.
+	 * @param args the command-line options.
+	 * @return the exit status: 0 if all the probes completed, 1 otherwise.
+	 * @throws IllegalArgumentException if the options are invalid.
+	 */
+	public int run(String[] args) {
+		int port = -1;
+		int engine = HttpReceiver.THREADS;
+		int maxInFlight = HttpReceiver.DEFAULT_MAX_IN_FLIGHT;
+		boolean sendResponse = true;
+		int threshold = BodyCapture.DEFAULT_THRESHOLD;
+		File spoolDir = null;
+		boolean compress = false;
+		int compressMin = ResponseCompressor.DEFAULT_MIN_SIZE;
+		int level = ResponseCompressor.DEFAULT_LEVEL;
+		long duration = -1;
+		int forwardPort = -1;
+		String forwardAuth = null;
+		int forwardLatency = 0;
+		LinkedList<String> urls = new LinkedList<String>();
+		LinkedList<String> batch = new LinkedList<String>();
+		int parallel = BatchProber.DEFAULT_THREADS;
+		String method = "GET";
+		String body = "";
+		int count = 1;
+		boolean gzip = false;
+		boolean content = false;
+		int previewSize = HttpProbe.PREVIEW_SIZE;
+		File saveFile = null;
+		long cacheSize = -1;
+		File cacheDir = null;
+		long cacheDiskSize = ConditionalCache.DEFAULT_DISK_SIZE;
+		String auth = null;
+		boolean digest = false;
+		int maxRedirects = 0;
+		boolean cookies = false;
+		File cookieFile = null;
+		int maxCookies = BoundedCookieStore.DEFAULT_MAX_COOKIES;
+		int maxCookiesPerDomain = BoundedCookieStore.DEFAULT_MAX_PER_DOMAIN;
+		String proxy = null;
+		String proxyAuth = null;
+		boolean insecure = false;
+		int timeout = 30000;
+		int clientEngine = HttpProbe.URLCONNECTION;
+		int load = -1;
+		int workers = 10;
+		double rate = 0;
+		long seconds = 30;
+		long requests = 0;
+
+		if (args.length == 0) throw new IllegalArgumentException("No options were specified.");
+		for (int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--help") || arg.equals("-h")) {
+				out.print(usage);
+				return 0;
+			}
+			else if (arg.equals("--server")) port = intValue(args, ++i);
+			else if (arg.equals("--engine")) engine = engineValue(value(args, ++i));
+			else if (arg.equals("--max")) maxInFlight = intValue(args, ++i);
+			else if (arg.equals("--no-response")) sendResponse = false;
+			else if (arg.equals("--bodies")) threshold = intValue(args, ++i) * 1024;
+			else if (arg.equals("--spool")) spoolDir = new File(value(args, ++i));
+			else if (arg.equals("--spool-max")) BodyCapture.setMaxSpoolSize(intValue(args, ++i) * 1024L * 1024L);
+			else if (arg.equals("--compress")) compress = true;
+			else if (arg.equals("--compress-min")) compressMin = intValue(args, ++i);
+			else if (arg.equals("--level")) level = intValue(args, ++i);
+			else if (arg.equals("--duration")) duration = intValue(args, ++i);
+			else if (arg.equals("--forward-proxy")) forwardPort = intValue(args, ++i);
+			else if (arg.equals("--forward-auth")) forwardAuth = value(args, ++i);
+			else if (arg.equals("--forward-latency")) forwardLatency = intValue(args, ++i);
+			else if (arg.equals("--get")) urls.add(value(args, ++i));
+			else if (arg.equals("--urls")) batch.addAll(readURLs(value(args, ++i)));
+			else if (arg.equals("--parallel")) parallel = intValue(args, ++i);
+			else if (arg.equals("--method")) method = value(args, ++i);
+			else if (arg.equals("--body")) body = value(args, ++i);
+			else if (arg.equals("--count")) count = intValue(args, ++i);
+			else if (arg.equals("--gzip")) gzip = true;
+			else if (arg.equals("--content")) content = true;
+			else if (arg.equals("--preview")) previewSize = intValue(args, ++i) * 1024;
+			else if (arg.equals("--save")) saveFile = new File(value(args, ++i));
+			else if (arg.equals("--cache")) cacheSize = intValue(args, ++i) * 1024L * 1024L;
+			else if (arg.equals("--cache-dir")) cacheDir = new File(value(args, ++i));
+			else if (arg.equals("--cache-disk")) cacheDiskSize = intValue(args, ++i) * 1024L * 1024L;
+			else if (arg.equals("--auth")) auth = value(args, ++i);
+			else if (arg.equals("--digest")) digest = true;
+			else if (arg.equals("--follow")) maxRedirects = intValue(args, ++i);
+			else if (arg.equals("--cookies")) cookies = true;
+			else if (arg.equals("--cookie-file")) cookieFile = new File(value(args, ++i));
+			else if (arg.equals("--cookie-max")) maxCookies = intValue(args, ++i);
+			else if (arg.equals("--cookie-domain-max")) maxCookiesPerDomain = intValue(args, ++i);
+			else if (arg.equals("--proxy")) proxy = value(args, ++i);
+			else if (arg.equals("--proxy-auth")) proxyAuth = value(args, ++i);
+			else if (arg.equals("--insecure")) insecure = true;
+			else if (arg.equals("--timeout")) timeout = intValue(args, ++i);
+			else if (arg.equals("--raw")) clientEngine = HttpProbe.RAW;
+			else if (arg.equals("--http2")) clientEngine = HttpProbe.HTTP2;
+			else if (arg.equals("--load")) load = loadValue(value(args, ++i));
+			else if (arg.equals("--workers")) workers = intValue(args, ++i);
+			else if (arg.equals("--rate")) rate = doubleValue(args, ++i);
+			else if (arg.equals("--seconds")) seconds = intValue(args, ++i);
+			else if (arg.equals("--requests")) requests = intValue(args, ++i);
+			else throw new IllegalArgumentException("Unknown option: " + arg);
+		}
+		if ((port < 0) && (forwardPort < 0) && urls.isEmpty() && batch.isEmpty()) {
+			throw new IllegalArgumentException("Specify --server, --forward-proxy, --get, or --urls.");
+		}
+
+		//Start the server
+		final HttpReceiver receiver;
+		if (port >= 0) {
+			try {
+				receiver = new HttpReceiver(port, sendResponse, engine);
+				receiver.setMaxInFlight(maxInFlight);
+				receiver.setBodyCapture(threshold, spoolDir);
+				if (compress) receiver.setCompressor(new ResponseCompressor(compressMin, level));
+				receiver.addHttpConnectionEventListener(this);
+				receiver.start();
+			}
+			catch (Exception ex) {
+				emit(new JsonLine()
+						.put("type", "error")
+						.put("time", Instant.now().toString())
+						.put("message", "Unable to start the server on port " + port + ": " + ex));
+				return 1;
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() { receiver.stopReceiver(); }
+			});
+		}
+		else receiver = null;
+
+		//Start the forward proxy
+		final ForwardProxy forwardProxy;
+		if (forwardPort >= 0) {
+			try {
+				forwardProxy = new ForwardProxy(forwardPort);
+				if (forwardAuth != null) forwardProxy.setCredentials(user(forwardAuth), password(forwardAuth));
+				forwardProxy.setLatency(forwardLatency);
+				forwardProxy.start();
+			}
+			catch (Exception ex) {
+				emit(new JsonLine()
+						.put("type", "error")
+						.put("time", Instant.now().toString())
+						.put("message", "Unable to start the forward proxy on port " + forwardPort + ": " + ex));
+				if (receiver != null) receiver.stopReceiver();
+				return 1;
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					forwardProxy.stopProxy();
+					emit(forwardProxy.toJson().put("time", Instant.now().toString()));
+				}
+			});
+		}
+		else forwardProxy = null;
+
+		//Run the probes
+		int failures = 0;
+		if (!urls.isEmpty() || !batch.isEmpty()) {
+			HttpProbe settings = new HttpProbe("");
+			settings.setMethod(method);
+			settings.setBody(body);
+			settings.setGzip(gzip);
+			settings.setInsecure(insecure);
+			settings.setTimeout(timeout);
+			settings.setEngine(clientEngine);
+			settings.setPreviewSize(previewSize);
+			ConditionalCache cache = null;
+			if (cacheSize >= 0) {
+				cache = new ConditionalCache(cacheSize, cacheDir, cacheDiskSize);
+				settings.setCache(cache);
+			}
+			if (auth != null) settings.setCredentials(user(auth), password(auth));
+			settings.setDigest(digest);
+			settings.setMaxRedirects(maxRedirects);
+			BoundedCookieStore cookieStore = null;
+			if (cookies || (cookieFile != null)) {
+				try {
+					cookieStore = (cookieFile != null)
+						? new BoundedCookieStore(maxCookies, maxCookiesPerDomain, cookieFile)
+						: new BoundedCookieStore(maxCookies, maxCookiesPerDomain);
+				}
+				catch (IOException ex) {
+					emit(new JsonLine()
+							.put("type", "error")
+							.put("time", Instant.now().toString())
+							.put("message", "Unable to open the cookie file " + cookieFile + ": " + ex));
+					return 1;
+				}
+				settings.setCookies(new CookieManager(cookieStore, null));
+			}
+			if (proxy != null) settings.setProxy(HttpProbe.createProxy(proxy));
+			if (proxyAuth != null) settings.setProxyCredentials(user(proxyAuth), password(proxyAuth));
+			for (String url : urls) {
+				if (url.indexOf("://") == -1) url = "http://" + url;
+				HttpProbe template = new HttpProbe(settings, url);
+				if (load >= 0) {
+					LoadGenerator generator =
+						new LoadGenerator(template, load, workers, rate, seconds * 1000, requests);
+					generator.run();
+					emit(generator.toJson().put("time", Instant.now().toString()));
+					continue;
+				}
+				template.setChecksum(true);
+				for (int k=0; k<count; k++) {
+					HttpProbe probe = new HttpProbe(template);
+					probe.setSaveFile(saveFile);
+					probe.execute();
+					if (probe.getError() != null) failures++;
+					emit(probe.toJson(content).put("time", Instant.now().toString()));
+				}
+			}
+			if (!batch.isEmpty()) {
+				BatchProber prober = new BatchProber(settings, batch, parallel);
+				prober.run();
+				for (int i=0; i<prober.size(); i++) {
+					HttpProbe probe = prober.getResult(i);
+					if (probe.getError() != null) failures++;
+					emit(probe.toJson(content));
+				}
+				emit(prober.toJson().put("time", Instant.now().toString()));
+			}
+			if (cache != null) {
+				emit(cache.addTo(new JsonLine().put("type", "cache"))
+						.put("time", Instant.now().toString()));
+				cache.clear();
+			}
+			if (cookieStore != null) {
+				emit(cookieStore.addTo(new JsonLine().put("type", "cookies"))
+						.put("time", Instant.now().toString()));
+				cookieStore.close();
+			}
+			if (digest && (auth != null)) {
+				emit(DigestAuth.getInstance().addTo(new JsonLine().put("type", "digest"))
+						.put("time", Instant.now().toString()));
+			}
+		}
+
+		//Keep the server and the proxy running for the duration,
+		//or until the process is killed
+		if ((receiver != null) || (forwardProxy != null)) {
+			try {
+				if (duration >= 0) Thread.sleep(duration * 1000);
+				else if (receiver != null) receiver.join();
+				else forwardProxy.join();
+			}
+			catch (InterruptedException ignore) { }
+		}
+		return (failures == 0) ? 0 : 1;
+	}
+
+	/**
+	 * Write connection events from the server as JSON lines.
+	 * @param event the event.
+	 */
+	public void httpConnectionEventOccurred(HttpConnectionEvent event) {
+		String type;
+		if (event.status == HttpConnectionEvent.RECEIVED) type = "received";
+		else if (event.status == HttpConnectionEvent.ERROR) type = "error";
+		else type = "server";
+		emit(new JsonLine()
+				.put("type", type)
+				.put("time", Instant.now().toString())
+				.put("message", event.message));
+	}
+
+	private void emit(JsonLine json) {
+		out.println(json.toString());
+	}
+
+	private static java.util.List<String> readURLs(String path) {
+		try { return BatchProber.read(new File(path)); }
+		catch (IOException ex) {
+			throw new IllegalArgumentException("Unable to read the URLs from " + path + ": " + ex.getMessage());
+		}
+	}
+
+	private static String value(String[] args, int i) {
+		if (i >= args.length) throw new IllegalArgumentException(args[i-1] + " requires a value.");
+		return args[i];
+	}
+
+	private static int intValue(String[] args, int i) {
+		String value = value(args, i);
+		try { return Integer.parseInt(value); }
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(args[i-1] + " requires a number: " + value);
+		}
+	}
+
+	private static double doubleValue(String[] args, int i) {
+		String value = value(args, i);
+		try { return Double.parseDouble(value); }
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException(args[i-1] + " requires a number: " + value);
+		}
+	}
+
+	private static int loadValue(String name) {
+		if (name.equalsIgnoreCase("closed")) return LoadGenerator.CLOSED;
+		if (name.equalsIgnoreCase("open")) return LoadGenerator.OPEN;
+		throw new IllegalArgumentException("Unknown load mode: " + name);
+	}
+
+	private static int engineValue(String name) {
+		if (name.equalsIgnoreCase("threads")) return HttpReceiver.THREADS;
+		if (name.equalsIgnoreCase("nio")) return HttpReceiver.NIO;
+		if (name.equalsIgnoreCase("virtual")) return HttpReceiver.VIRTUAL;
+		throw new IllegalArgumentException("Unknown engine: " + name);
+	}
+
+	private static String user(String credentials) {
+		int k = credentials.indexOf(":");
+		return (k < 0) ? credentials : credentials.substring(0, k);
+	}
+
+	private static String password(String credentials) {
+		int k = credentials.indexOf(":");
+		return (k < 0) ? "" : credentials.substring(k+1);
+	}
+}
@@ -0,0 +1,305 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A client engine based on java.net.http.HttpClient. Requests are sent
+ * asynchronously over a client that is shared by all the requests made
+ * with the engine, so its connections are pooled. The client prefers
+ * HTTP/2, which it negotiates with ALPN on https connections and with an
+ * h2c upgrade on plain http connections, and falls back to HTTP/1.1 when
+ * the server does not support it.
+ * <p>
+ * The engine keeps statistics of the streams (requests) it sends to each
+ * origin server: the number of streams, the protocols of the responses,
+ * and the peak number of streams in progress at once. HttpClient does not
+ * report its connections, so the number of connections is estimated:
+ * an HTTP/2 origin multiplexes all its streams over one connection, while
+ * an HTTP/1.1 origin needs one connection for each stream in progress.
+ */
+public class Http2Engine {
+
+	static Hashtable<String,Http2Engine> engines = new Hashtable<String,Http2Engine>();
+
+	java.net.http.HttpClient client;
+	ConcurrentHashMap<String,Origin> origins = new ConcurrentHashMap<String,Origin>();
+	AtomicInteger inFlight = new AtomicInteger();
+	AtomicInteger peak = new AtomicInteger();
+
+	/**
+	 * Class constructor.
+	 * @param sslContext the context for https connections.
+	 * @param proxy the route of the requests: an HTTP proxy,
+	 * java.net.Proxy.NO_PROXY for direct connections, or null for
+	 * the proxies set in the Java System properties.
+	 */
+	public Http2Engine(SSLContext sslContext, java.net.Proxy proxy) {
+		ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			AtomicInteger n = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Http2Engine-" + n.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+			.version(java.net.http.HttpClient.Version.HTTP_2)
+			.followRedirects(java.net.http.HttpClient.Redirect.NEVER)
+			.sslContext(sslContext)
+			.executor(executor);
+		//Without a proxy selector, the client uses the default one,
+		//which reads the proxy System properties.
+		if (proxy != null) {
+			if (proxy.type() == java.net.Proxy.Type.DIRECT) {
+				builder.proxy(java.net.http.HttpClient.Builder.NO_PROXY);
+			}
+			else {
+				InetSocketAddress addr = (InetSocketAddress)proxy.address();
+				builder.proxy(ProxySelector.of(new InetSocketAddress(addr.getHostString(), addr.getPort())));
+			}
+		}
+		client = builder.build();
+	}
+
+	/**
+	 * Get the shared engine for a route. There is one engine (and one
+	 * pool of connections) for each route, with the default certificates
+	 * and with any certificate accepted.
+	 * @param insecure true to get an engine that accepts any certificate.
+	 * @param proxy the route, as for the constructor.
+	 * @return the engine.
+	 * @throws Exception if the SSL context cannot be created.
+	 */
+	public static synchronized Http2Engine getEngine(boolean insecure, java.net.Proxy proxy) throws Exception {
+		String key = (insecure ? "insecure " : "") + HttpProbe.getRouteName(proxy);
+		Http2Engine engine = engines.get(key);
+		if (engine == null) {
+			SSLContext sslContext = insecure ? HttpProbe.getInsecureSSLContext() : SSLContext.getDefault();
+			engine = new Http2Engine(sslContext, proxy);
+			engines.put(key, engine);
+		}
+		return engine;
+	}
+
+	/**
+	 * Send a request. The returned future completes when the response
+	 * headers have been received; the body is then read from the stream
+	 * in the response, which must be closed when it has been read.
+	 * @param request the request.
+	 * @return the future response.
+	 */
+	public CompletableFuture<HttpResponse<InputStream>> sendAsync(HttpRequest request) {
+		final Stream stream = new Stream(getOrigin(request.uri()));
+		HttpResponse.BodyHandler<InputStream> handler = new HttpResponse.BodyHandler<InputStream>() {
+			public HttpResponse.BodySubscriber<InputStream> apply(HttpResponse.ResponseInfo info) {
+				stream.origin.record(info.version());
+				return HttpResponse.BodySubscribers.mapping(
+							HttpResponse.BodySubscribers.ofInputStream(),
+							(InputStream is) -> new StreamInputStream(is, stream));
+			}
+		};
+		//If the request fails, or the response has no body (as when a proxy
+		//refuses to open a tunnel), the stream ends with the response.
+		return client.sendAsync(request, handler).whenComplete((response, ex) -> {
+			if ((ex != null) || (response.body() == null)) stream.close();
+		});
+	}
+
+	/**
+	 * Send a request and wait for the response headers.
+	 * @param request the request.
+	 * @return the response, whose body stream, if any, must be closed when it has been read.
+	 * @throws Exception if the request fails.
+	 */
+	public HttpResponse<InputStream> send(HttpRequest request) throws Exception {
+		try { return sendAsync(request).join(); }
+		catch (CompletionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+	//Get the statistics of an origin server.
+	private Origin getOrigin(URI uri) {
+		String scheme = uri.getScheme().toLowerCase();
+		int port = uri.getPort();
+		if (port == -1) port = scheme.equals("https") ? 443 : 80;
+		String key = scheme + "://" + uri.getHost().toLowerCase() + ":" + port;
+		Origin origin = origins.get(key);
+		if (origin == null) {
+			Origin created = new Origin();
+			origin = origins.putIfAbsent(key, created);
+			if (origin == null) origin = created;
+		}
+		return origin;
+	}
+
+	/**
+	 * Clear the statistics, for example at the start of a load test.
+	 */
+	public void resetStatistics() {
+		origins.clear();
+		peak.set(inFlight.get());
+	}
+
+	/**
+	 * Get the total number of streams sent since the statistics were cleared.
+	 * @return the number of streams.
+	 */
+	public long getStreams() {
+		long n = 0;
+		for (Origin origin : origins.values()) n += origin.streams.get();
+		return n;
+	}
+
+	/**
+	 * Get the estimated number of connections used since the statistics were cleared.
+	 * @return the number of connections.
+	 */
+	public long getConnections() {
+		long n = 0;
+		for (Origin origin : origins.values()) n += origin.getConnections();
+		return n;
+	}
+
+	/**
+	 * Get the statistics as text.
+	 * @return the statistics.
+	 */
+	public String getStatistics() {
+		StringBuffer sb = new StringBuffer("Multiplexing (java.net.http engine):\n");
+		long streams = getStreams();
+		long connections = getConnections();
+		sb.append("    Streams: " + streams + ", peak in progress: " + peak.get() + "\n");
+		Map<String,Origin> sorted = new TreeMap<String,Origin>(origins);
+		for (Map.Entry<String,Origin> entry : sorted.entrySet()) {
+			Origin origin = entry.getValue();
+			sb.append("    " + entry.getKey() + ": "
+						+ origin.http2.get() + " HTTP/2, "
+						+ origin.http11.get() + " HTTP/1.1 streams, peak in progress "
+						+ origin.peak.get() + ", estimated connections "
+						+ origin.getConnections() + "\n");
+		}
+		if (connections > 0) {
+			sb.append("    Estimated connections: " + connections
+						+ String.format(" (%.1f streams per connection)", (double)streams / connections)
+						+ ", " + Math.max(0, streams - connections)
+						+ " fewer than one connection per request\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Add the statistics to a JSON object.
+	 * @param json the object.
+	 * @return the object.
+	 */
+	public JsonLine addTo(JsonLine json) {
+		long http2 = 0;
+		long http11 = 0;
+		for (Origin origin : origins.values()) {
+			http2 += origin.http2.get();
+			http11 += origin.http11.get();
+		}
+		long streams = getStreams();
+		long connections = getConnections();
+		return json.put("streams", streams)
+				   .put("http2Streams", http2)
+				   .put("http11Streams", http11)
+				   .put("peakStreams", peak.get())
+				   .put("connections", connections)
+				   .put("streamsPerConnection", (connections > 0) ? (double)streams / connections : 0.0);
+	}
+
+	//The name of a protocol version.
+	static String getName(java.net.http.HttpClient.Version version) {
+		return (version == java.net.http.HttpClient.Version.HTTP_2) ? "HTTP/2" : "HTTP/1.1";
+	}
+
+	//The statistics of one origin server.
+	static class Origin {
+		AtomicLong streams = new AtomicLong();
+		AtomicLong http2 = new AtomicLong();
+		AtomicLong http11 = new AtomicLong();
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger peak = new AtomicInteger();
+
+		void record(java.net.http.HttpClient.Version version) {
+			if (version == java.net.http.HttpClient.Version.HTTP_2) http2.incrementAndGet();
+			else http11.incrementAndGet();
+		}
+
+		long getConnections() {
+			if (streams.get() == 0) return 0;
+			if (http11.get() == 0) return 1;
+			return peak.get();
+		}
+	}
+
+	//One stream in progress. The stream is counted from the time the
+	//request is sent until its body has been read or it fails.
+	class Stream {
+		Origin origin;
+		AtomicBoolean open = new AtomicBoolean(true);
+
+		Stream(Origin origin) {
+			this.origin = origin;
+			origin.streams.incrementAndGet();
+			setPeak(origin.peak, origin.inFlight.incrementAndGet());
+			setPeak(peak, inFlight.incrementAndGet());
+		}
+
+		void close() {
+			if (open.compareAndSet(true, false)) {
+				origin.inFlight.decrementAndGet();
+				inFlight.decrementAndGet();
+			}
+		}
+
+		private void setPeak(AtomicInteger peak, int n) {
+			int p;
+			while (n > (p = peak.get()) && !peak.compareAndSet(p, n)) ;
+		}
+	}
+
+	//The body of a response, which ends its stream when it is closed.
+	static class StreamInputStream extends FilterInputStream {
+		Stream stream;
+		StreamInputStream(InputStream in, Stream stream) {
+			super(in);
+			this.stream = stream;
+		}
+		public void close() throws IOException {
+			try { super.close(); }
+			finally { stream.close(); }
+		}
+	}
+}
@@ -16,10 +16,8 @@ import java.security.cert.X509Certificate;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.zip.*;
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import javax.swing.*;
@@ -47,8 +45,13 @@ public class HttpClient extends JPanel {
 	Font font;
 	TrustManager[] trustAllCerts;
 	CookieManager cookieManager = null;
-	Map<String,java.util.List<String>> headers = null;
+	BoundedCookieStore cookieStore = null;
+	TimingSSLSocketFactory sslSocketFactory = null;
 	Map<String,java.util.List<String>> cookies = null;
+	LoadGenerator loadGenerator = null;
+	javax.swing.Timer loadTimer = null;
+	JFileChooser chooser = null;
+	ConditionalCache responseCache = null;
 
 	/**
 	 * Class constructor; provides the user interface and the actual
@@ -72,203 +75,235 @@ public class HttpClient extends JPanel {
 			HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
 		}
 		catch (Exception e) { }
-		cookieManager = new CookieManager();
+		//One factory is used for all requests, so that
+		//HttpsURLConnection can reuse its connections.
+		sslSocketFactory = new TimingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+		cookieStore = new BoundedCookieStore(BoundedCookieStore.DEFAULT_MAX_COOKIES,
+											 BoundedCookieStore.DEFAULT_MAX_PER_DOMAIN);
+		cookieManager = new CookieManager(cookieStore, null);
 		CookieHandler.setDefault(cookieManager);
 	}
 
-	//Try to make a connection and display the results
+	//Make a request with the selected engine and display the results.
+	//The probe answers a Digest challenge, makes the request conditional
+	//if the response is in the cache, and follows redirects. The save
+	//file receives the content of the final response.
 	void connect(String addr) {
-		URL url;
-		HttpURLConnection conn;
+		HttpProbe probe;
+		try { probe = getProbe(addr); }
+		catch (IllegalArgumentException ex) {
+			HttpTest.message.setText(ex.getMessage());
+			return;
+		}
+		probe.setPreviewSize(header.getPreviewSize());
+		probe.setChecksum(true);
+		probe.setSaveFile(getSaveFile());
+		//One factory is used for all the requests of this tab, so that
+		//HttpsURLConnection can reuse its connections.
+		probe.setSSLSocketFactory(sslSocketFactory);
+		probe.execute();
+		String engineName = header.engine.getSelectedItem().toString();
+		if (probe.getError() != null) {
+			editor.setText("Unable to complete the request to " + addr + " with the " + engineName + " engine\n\n"
+				+ "Exception message: " + probe.getError());
+			return;
+		}
+		StringBuffer sb = new StringBuffer();
+		sb.append(addr + "\nMethod: " + header.getMethod() + "\nEngine: " + engineName + "\n");
+		RedirectChain redirects = probe.getRedirects();
+		if (redirects != null) {
+			sb.append(redirects.getSummary());
+			if (redirects.size() > 0) sb.append("Final URL: " + probe.getFinalAddress() + "\n");
+		}
+		if (probe.wasChallenged()) {
+			sb.append("Digest challenge answered; the challenged request took "
+						+ String.format("%.3f", probe.getChallengeTime()) + " ms\n");
+		}
+		else if (probe.isPreemptive()) sb.append("Digest credentials sent pre-emptively\n");
+		if (probe.wasChallenged() || probe.isPreemptive()) {
+			sb.append(DigestAuth.getInstance().getSummary() + "\n");
+		}
+		if (probe.getCacheResult() != null) {
+			sb.append("Cache: " + probe.getCacheResult() + "\n" + responseCache.getSummary() + "\n");
+		}
+		RawHttpClient.Response response = probe.getRawResponse();
+		if (response != null) sb.append("Status: " + response.getStatusLine() + "\n");
+		else if (probe.getProtocol() != null) {
+			sb.append("Protocol: " + probe.getProtocol() + "\n");
+			sb.append("Status: " + probe.getResponseCode() + "\n");
+		}
+		else sb.append("Status: " + probe.getResponseCode() + " " + probe.getResponseMessage() + "\n");
+		sb.append(displayHeaders(probe.getHeaders()));
+		String finalAddress = (redirects != null) ? probe.getFinalAddress() : addr;
+		sb.append(displayCookies(finalAddress));
+		if (response != null) sb.append("\n" + response.getWireSummary());
+		sb.append("\n" + probe.getTimings().getWaterfall());
+		sb.append("\n----------------------------------------------------\n");
+		sb.append(displayContent(probe));
+		editor.setText(sb.toString());
+		editor.setCaretPosition(0);
+	}
 
-		//If the proxy is enabled, set the Java System properties for it.
-		//If it is not enabled, remove the Java System properties for it.
-		if (Proxy.getEnabled()) Proxy.setProxyProperties();
-		else Proxy.clearProxyProperties();
+	//Get a probe with the settings from this tab and the
+	//Authentication and Proxy tabs, for a load test.
+	HttpProbe getProbe(String addr) {
+		HttpProbe probe = new HttpProbe(addr);
+		probe.setProxy(Proxy.getProxy());
+		probe.setMethod(header.getMethod());
+		probe.setBody(header.getBody());
+		probe.setGzip(header.gzip.isSelected());
+		probe.setInsecure(true);
+		if (header.engine.getSelectedIndex() == 1) probe.setEngine(HttpProbe.RAW);
+		else if (header.engine.getSelectedIndex() == 2) probe.setEngine(HttpProbe.HTTP2);
+		if (Proxy.getEnabled() && Proxy.authenticate()) {
+			probe.setProxyCredentials(Proxy.getUser(), Proxy.getPassword());
+		}
+		if (Authorization.getEnabled() && Authorization.authenticate()) {
+			probe.setCredentials(Authorization.getUser(), Authorization.getPassword());
+			probe.setDigest(Authorization.isDigest());
+		}
+		if (header.cache.isSelected()) probe.setCache(getCache());
+		probe.setMaxRedirects(header.getMaxRedirects());
+		probe.setCookies(cookieManager);
+		return probe;
+	}
 
-		//Make the connection
+	//Start a load test in a background thread, showing
+	//the results so far once a second.
+	void startLoad(String addr) {
 		try {
-			url = new URL(addr);
-			if (url.getProtocol().toLowerCase().startsWith("https")) {
-				//This is a secure sockets layer connection
-				HttpsURLConnection httpsConn = (HttpsURLConnection)url.openConnection();
-				httpsConn.setHostnameVerifier(new AcceptAllHostnameVerifier());
-				httpsConn.setUseCaches(false);
-				httpsConn.setDefaultUseCaches(false);
-				conn = httpsConn;
-			}
-			else
-				//This is a straight HTTP connection.
-				conn = (HttpURLConnection)url.openConnection();
-
-			//Get the method selected (GET/PUT/POST/OPTIONS)
-			String method = header.getMethod();
-			conn.setRequestMethod(method);
-
-			//If the proxy is enabled and authentication credentials are available,
-			//set them in the request.
-			if (Proxy.getEnabled() && Proxy.authenticate()) {
-				conn.setRequestProperty(
-					"Proxy-Authorization","Basic "+Proxy.getEncodedCredentials());
-			}
-
-			//If the authorization is enabled and authentication credentials are available,
-			//set them in the request.
-			if (Authorization.getEnabled() && Authorization.authenticate()) {
-				conn.setRequestProperty(
-					"Authorization","Basic "+Authorization.getEncodedCredentials());
-			}
-			
-			//If gzip is checked, include the Accept-Encoding header.
-			if (header.gzip.isSelected()) {
-				conn.setRequestProperty("Accept-Encoding","gzip");
-			}
-
-			boolean sendBody = false;
-			String body = "";
-			if (method.equals("POST")) {
-				body = header.getBody();
-				if (!body.equals("")) {
-					conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-					conn.setDoOutput(true);
-					sendBody = true;
-				}
-			}
-			else if (method.equals("OPTIONS")) {
-				String origin = url.getProtocol().toLowerCase()+"://"+IPUtil.getIPAddress();
-				conn.setRequestProperty("Origin", origin);
-				conn.setRequestProperty("Access-Control-Request-Method", "POST, GET, OPTIONS");			
-			}
-			
-			//Turn off redirects
-			conn.setFollowRedirects(false);
-
-			//Make the connection
-			conn.connect();
-
-			//Send the body if required
-			if (sendBody) {
-				try {
-					BufferedWriter writer =
-						new BufferedWriter( new OutputStreamWriter( conn.getOutputStream(), utf8 ) );
-					writer.write(body);
-					writer.flush();
-					writer.close();
-				}
-				catch (Exception ignore) { }
-			}
-
-			//And display the results.
-			editor.setText(addr + "\nMethod: " + method + "\n"
-						+ "Response Code: " + conn.getResponseCode() + "\n"
-						+ displayConnectionHeaders(conn)
-						+ displayCookies(conn, url)
-						+ "\n----------------------------------------------------\n"
-						+ displayContent(conn));
-			editor.setCaretPosition(0);
+			int mode = (header.load.getSelectedIndex() == 1) ? LoadGenerator.CLOSED : LoadGenerator.OPEN;
+			loadGenerator = new LoadGenerator(
+								getProbe(addr),
+								mode,
+								Integer.parseInt(header.workers.getText().trim()),
+								Double.parseDouble(header.rate.getText().trim()),
+								Long.parseLong(header.duration.getText().trim()) * 1000,
+								Long.parseLong(header.requests.getText().trim()));
 		}
-		catch (Exception e) {
-			editor.setText("Unable to establish an HttpURLConnection to " + addr + "\n\n"
-				+"Exception message: " + e.getMessage());
+		catch (Exception ex) {
+			HttpTest.message.setText("Invalid load settings: " + ex.getMessage());
 			return;
 		}
+		final LoadGenerator generator = loadGenerator;
+		header.connect.setText("Stop");
+		loadTimer = new javax.swing.Timer(1000, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				editor.setText(generator.getReport());
+			}
+		});
+		loadTimer.start();
+		new Thread("LoadTest") {
+			public void run() {
+				generator.run();
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						loadTimer.stop();
+						loadGenerator = null;
+						header.connect.setText("Connect");
+						editor.setText(generator.getReport());
+						editor.setCaretPosition(0);
+					}
+				});
+			}
+		}.start();
 	}
 
 	//Collect all the headers returned.
-	String displayConnectionHeaders(HttpURLConnection conn) {
-		headers = conn.getHeaderFields();
-		int n = headers.size();
-		String text = "Headers [" + n + "]" + (n>0 ? ":\n" : "\n");
-		String key;
-		String value;
-		if (n > 0) {
-			int i = 1;
-			while ((key = conn.getHeaderFieldKey(i)) != null) {
-				value = conn.getHeaderField(i++);
-				text += key + " = " + value + "\n";
+	String displayHeaders(Map<String,java.util.List<String>> map) {
+		StringBuffer sb = new StringBuffer();
+		int n = 0;
+		for (Map.Entry<String,java.util.List<String>> entry : map.entrySet()) {
+			//HttpURLConnection returns the status line with a null key.
+			if (entry.getKey() == null) continue;
+			for (String value : entry.getValue()) {
+				sb.append(entry.getKey() + " = " + value + "\n");
+				n++;
 			}
 		}
-		return text;
+		return "Headers [" + n + "]" + (n>0 ? ":\n" : "\n") + sb.toString();
 	}
 
 	//Collect all the cookies from the CookieManager.
-	String displayCookies(HttpURLConnection conn, URL url) {
+	String displayCookies(String addr) {
 		String text = "Unable to get cookies\n";
 		try {
-			URI uri = url.toURI();
-			cookies = cookieManager.get(uri, conn.getHeaderFields());
-			int n = cookies.size();
-			text = "Cookies [" + n + "]" + (n>0 ? ":\n" : "\n");
-			if (n > 0) {
-				String[] keys = new String[n];
-				keys = cookies.values().toArray(keys);
-				for (String key : keys) {
-					text += key + "\n";
+			URI uri = new URI(addr);
+			cookies = cookieManager.get(uri, new Hashtable<String,java.util.List<String>>());
+			//The map has one Cookie header, with a value for each cookie.
+			int n = 0;
+			String list = "";
+			for (java.util.List<String> values : cookies.values()) {
+				for (String value : values) {
+					list += value + "\n";
+					n++;
 				}
 			}
+			text = "Cookies [" + n + "]" + (n>0 ? ":\n" : "\n") + list;
+			text += cookieStore.getSummary() + "\n";
 		}
 		catch (Exception ex) { }
 		return text;
 	}
-	
-	String getHeader(String name) {
-		java.util.List<String> list = headers.get(name);
-		if ((list != null)  && (list.size() > 0)) return list.get(0);
-		return "";
-	}
-	
-	Charset getCharset() {
+
+	Charset getCharset(String contentType) {
 		Charset charset = latin1;
-		String contentType = getHeader("Content-Type");
 		if (contentType.startsWith("text")) {
 			int k = contentType.indexOf("charset=");
 			if (k >= 0) {
 				String name = contentType.substring(k + 8).trim();
-				charset = Charset.forName(name);
+				try { charset = Charset.forName(name); }
+				catch (Exception unsupported) { }
 			}
 		}
 		return charset;
-	}		
+	}
 
-	//Get the text returned in the connection.
-	String displayContent(HttpURLConnection conn) {
-		int length = conn.getContentLength();
-		StringBuffer text = new StringBuffer("Content length: " + length + "\n");
-		try {
-			InputStream is = conn.getInputStream();
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			int size = 4096;
-			byte[] buf = new byte[size];
-			int len;
-			while ((len=is.read(buf,0,size)) != -1) baos.write(buf,0,len);
-			
-			String contentType = getHeader("Content-Type");
-			String contentEncoding = getHeader("Content-Encoding");
-			if (!contentEncoding.equals("gzip")) {
-				if (contentType.startsWith("text") || contentType.startsWith("application/json")) {
-					text.append(new String(baos.toByteArray(), getCharset()));
-				}
-				else text.append("non-text data\n");
-			}
-			else {
-				text.append("gzip:\n");
-				ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-				GZIPInputStream zipped = new GZIPInputStream(bais);
-				ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
-				while ((len=zipped.read(buf,0,size)) != -1) unzipped.write(buf,0,len);
-				if (contentType.startsWith("text")) {
-					text.append(new String(unzipped.toByteArray(), getCharset()));
-				}
-				else text.append("non-text data\n");
-			}
-		}
-		catch (Exception e) {
-			text.append("Error processing response content.\nException message: "
-											+ e.getMessage() + "\n\n");
+	//Get the summary and preview of the content received by a probe.
+	//If the server confirmed the cached response, the content is the
+	//cached content.
+	String displayContent(HttpProbe probe) {
+		StringBuffer text = new StringBuffer("Content length: " + probe.getContentLength() + "\n");
+		ContentReader reader = probe.getContentReader();
+		if (reader == null) return text.toString();
+		text.append(reader.getSummary() + "\n");
+		String contentType = probe.getContentType();
+		if (contentType.startsWith("text") || contentType.startsWith("application/json")) {
+			text.append(new String(reader.getPreview(), getCharset(contentType)));
 		}
+		else if (reader.getContentBytes() > 0) text.append("non-text data\n");
 		return text.toString();
 	}
 
+	//Get the cache of the HTTP Client, which has a disk tier in
+	//a temporary directory that is deleted when the program exits.
+	synchronized ConditionalCache getCache() {
+		if (responseCache == null) {
+			File dir;
+			try { dir = java.nio.file.Files.createTempDirectory("HttpTest-cache-").toFile(); }
+			catch (IOException ex) { dir = null; }
+			responseCache = new ConditionalCache(ConditionalCache.DEFAULT_MEMORY_SIZE, dir,
+												 ConditionalCache.DEFAULT_DISK_SIZE);
+			final File cacheDir = dir;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					responseCache.clear();
+					if (cacheDir != null) cacheDir.delete();
+				}
+			});
+		}
+		return responseCache;
+	}
+
+	//If saving the body is selected, ask for the file.
+	//Return null if saving is not selected or no file was chosen.
+	File getSaveFile() {
+		if (!header.save.isSelected()) return null;
+		if (chooser == null) chooser = new JFileChooser();
+		if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return null;
+		return chooser.getSelectedFile();
+	}
+
 	//All-accepting X509 Trust Manager
 	class AcceptAllX509TrustManager implements X509TrustManager {
 		public X509Certificate[] getAcceptedIssuers() {
@@ -278,22 +313,28 @@ public class HttpClient extends JPanel {
 		public void checkServerTrusted(X509Certificate[] certs, String authType) { }
 	}
 
-	//All-verifying HostnameVerifier
-	class AcceptAllHostnameVerifier implements HostnameVerifier {
-		public boolean verify(String urlHost, SSLSession ssls) {
-			return true;
-		}
-	}
-
 	//Class to provide the buttons and text selections
 	class Header extends JPanel implements ActionListener {
 		public JTextField address;
 		public JTextField body;
 		public JCheckBox gzip;
+		public JTextField preview;
+		public JCheckBox save;
+		public JCheckBox cache;
+		JButton clearCache;
+		JButton clearCookies;
+		public JCheckBox follow;
+		public JTextField maxHops;
 		public JRadioButton getButton;
 		public JRadioButton putButton;
 		public JRadioButton postButton;
 		public JRadioButton optionsButton;
+		public JComboBox<String> engine;
+		public JComboBox<String> load;
+		public JTextField workers;
+		public JTextField rate;
+		public JTextField duration;
+		public JTextField requests;
 		JButton connect;
 		ButtonGroup group;
 
@@ -323,6 +364,10 @@ public class HttpClient extends JPanel {
 			p.add(putButton);
 			p.add(postButton);
 			p.add(optionsButton);
+			engine = new JComboBox<String>(new String[] {"HttpURLConnection", "Raw socket", "HTTP/2 (java.net.http)"});
+			engine.setToolTipText("The engine that makes the requests");
+			p.add(new JLabel("    Engine:"));
+			p.add(engine);
 			p.add(RowLayout.crlf());
 			add(p);
 			add(RowLayout.crlf());
@@ -351,6 +396,101 @@ public class HttpClient extends JPanel {
 			add(gzip);
 			add(new JLabel("Include gzip Accept-Encoding header"));
 			add(RowLayout.crlf());
+
+			//Content row
+			preview = new JTextField(Integer.toString(ContentReader.DEFAULT_PREVIEW_SIZE / 1024), 6);
+			preview.setFont(font);
+			save = new JCheckBox("Save body to file", false);
+			save.setBackground(bg);
+			p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(new JLabel("Preview (KB):"));
+			p.add(preview);
+			p.add(new JLabel("    "));
+			p.add(save);
+			cache = new JCheckBox("Cache and revalidate", false);
+			cache.setBackground(bg);
+			cache.setToolTipText("Store GET responses with an ETag or Last-Modified header, "
+								 + "and send If-None-Match and If-Modified-Since");
+			clearCache = new JButton("Clear cache");
+			clearCache.addActionListener(this);
+			p.add(new JLabel("    "));
+			p.add(cache);
+			p.add(clearCache);
+			clearCookies = new JButton("Clear cookies");
+			clearCookies.addActionListener(this);
+			p.add(clearCookies);
+			p.add(RowLayout.crlf());
+			add(new LBL("Content:", 1.0f));
+			add(p);
+			add(RowLayout.crlf());
+
+			//Redirects row
+			follow = new JCheckBox("Follow redirects", false);
+			follow.setBackground(bg);
+			follow.setToolTipText("Follow 301, 302, 303, 307, and 308 responses, timing each hop");
+			maxHops = new JTextField(Integer.toString(RedirectChain.DEFAULT_MAX_HOPS), 4);
+			maxHops.setFont(font);
+			p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(follow);
+			p.add(new JLabel("    Max hops:"));
+			p.add(maxHops);
+			p.add(RowLayout.crlf());
+			add(new LBL("Redirects:", 1.0f));
+			add(p);
+			add(RowLayout.crlf());
+
+			//Load row
+			load = new JComboBox<String>(new String[] {"Single request", "Closed loop", "Open loop"});
+			load.addActionListener(this);
+			workers = new JTextField("10", 5);
+			workers.setFont(font);
+			rate = new JTextField("100", 6);
+			rate.setFont(font);
+			duration = new JTextField("30", 5);
+			duration.setFont(font);
+			requests = new JTextField("0", 8);
+			requests.setFont(font);
+			p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(load);
+			p.add(new JLabel("Workers:"));
+			p.add(workers);
+			p.add(new JLabel("Rate (req/s):"));
+			p.add(rate);
+			p.add(new JLabel("Duration (s):"));
+			p.add(duration);
+			p.add(new JLabel("Max requests (0 = no limit):"));
+			p.add(requests);
+			p.add(RowLayout.crlf());
+			add(new LBL("Load:", 1.0f));
+			add(p);
+			add(RowLayout.crlf());
+			setLoadEnabled();
+		}
+
+		//Get the size of the content preview in bytes.
+		int getPreviewSize() {
+			try { return Math.max(0, Integer.parseInt(preview.getText().trim())) * 1024; }
+			catch (NumberFormatException ex) { return ContentReader.DEFAULT_PREVIEW_SIZE; }
+		}
+
+		//Get the maximum number of redirects to follow, or 0 if
+		//following redirects is not selected.
+		int getMaxRedirects() {
+			if (!follow.isSelected()) return 0;
+			try { return Math.max(0, Integer.parseInt(maxHops.getText().trim())); }
+			catch (NumberFormatException ex) { return RedirectChain.DEFAULT_MAX_HOPS; }
+		}
+
+		//Enable the load fields that apply to the selected mode.
+		void setLoadEnabled() {
+			int mode = load.getSelectedIndex();
+			workers.setEnabled(mode != 0);
+			rate.setEnabled(mode == 2);
+			duration.setEnabled(mode != 0);
+			requests.setEnabled(mode != 0);
 		}
 
 		public String getMethod() {
@@ -366,13 +506,33 @@ public class HttpClient extends JPanel {
 		}
 
 		public void actionPerformed(ActionEvent e) {
+			if (e.getSource().equals(load)) {
+				setLoadEnabled();
+				return;
+			}
+			if (e.getSource().equals(clearCache)) {
+				if (responseCache != null) responseCache.clear();
+				HttpTest.message.setText("The cache is empty");
+				return;
+			}
+			if (e.getSource().equals(clearCookies)) {
+				cookieStore.removeAll();
+				HttpTest.message.setText("The cookie store is empty");
+				return;
+			}
+			if (loadGenerator != null) {
+				//A load test is running; the Stop button ends it.
+				if (e.getSource().equals(connect)) loadGenerator.stop();
+				return;
+			}
 			String addr = address.getText().trim();
 			if (addr.indexOf("://") == -1) addr = "http://" + addr;
 			if (!addr.toLowerCase().startsWith("http"))
 				HttpTest.message.setText("Invalid URL: the URL must start with \"http\"");
 			else {
 				HttpTest.message.setText(" ");
-				connect(addr);
+				if (load.getSelectedIndex() != 0) startLoad(addr);
+				else connect(addr);
 			}
 		}
 	}
@@ -7,15 +7,15 @@
 
 package org.rsna.httptest;
 
-import java.awt.AWTEvent;
-import java.io.File;
+import java.util.EventObject;
 
 /**
  * The event that passes a file reception to HttpFileEventListeners.
+ * The event does not depend on AWT, so the receiver can run headless.
  */
-public class HttpConnectionEvent extends AWTEvent {
+public class HttpConnectionEvent extends EventObject {
 
-	public static final int CONNECTION_EVENT = AWTEvent.RESERVED_ID_MAX + 4271;
+	public static final int CONNECTION_EVENT = 1999 + 4271; //AWTEvent.RESERVED_ID_MAX + 4271
 	public static final int STARTUP = 1;
 	public static final int SHUTDOWN = 1;
 	public static final int RECEIVED = 0;
@@ -31,7 +31,7 @@ public class HttpConnectionEvent extends AWTEvent {
 	 * @param message a text message describing the event.
 	 */
 	public HttpConnectionEvent(Object object, int status, String message) {
-		super(object, CONNECTION_EVENT);
+		super(object);
 		this.status = status;
 		this.message = message;
 	}
@@ -0,0 +1,110 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue of HttpConnectionEvents. The queue is an
+ * HttpConnectionEventListener, so it can be registered with an HttpReceiver
+ * to collect events on the threads that produce them. A consumer, typically
+ * a timer in the user interface, drains the events in batches. When the
+ * queue is full, new events are dropped and counted, and the consumer can
+ * get a summary of the dropped events.
+ */
+public class HttpConnectionEventQueue implements HttpConnectionEventListener {
+
+	/** The default maximum number of events held in the queue. */
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	ConcurrentLinkedQueue<HttpConnectionEvent> queue;
+	AtomicInteger size = new AtomicInteger();
+	int capacity;
+
+	AtomicLong droppedReceived = new AtomicLong();
+	AtomicLong droppedErrors = new AtomicLong();
+	AtomicLong droppedOther = new AtomicLong();
+
+	/**
+	 * Class constructor; creates a queue with the default capacity.
+	 */
+	public HttpConnectionEventQueue() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param capacity the maximum number of events held in the queue.
+	 */
+	public HttpConnectionEventQueue(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		queue = new ConcurrentLinkedQueue<HttpConnectionEvent>();
+	}
+
+	/**
+	 * Add an event to the queue, or count it as dropped if the queue is full.
+	 * This method may be called on any thread.
+	 * @param event the event.
+	 */
+	public void httpConnectionEventOccurred(HttpConnectionEvent event) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			if (event.status == HttpConnectionEvent.RECEIVED) droppedReceived.incrementAndGet();
+			else if (event.status == HttpConnectionEvent.ERROR) droppedErrors.incrementAndGet();
+			else droppedOther.incrementAndGet();
+			return;
+		}
+		queue.add(event);
+	}
+
+	/**
+	 * Remove events from the queue.
+	 * @param max the maximum number of events to remove.
+	 * @param events the list to which to add the events.
+	 * @return the number of events removed.
+	 */
+	public int drain(int max, List<HttpConnectionEvent> events) {
+		int n = 0;
+		HttpConnectionEvent event;
+		while ((n < max) && ((event = queue.poll()) != null)) {
+			size.decrementAndGet();
+			events.add(event);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the number of events waiting in the queue.
+	 * @return the number of events.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Get a summary of the events dropped since the last call, and
+	 * reset the counts.
+	 * @return the summary, or the empty string if no events were dropped.
+	 */
+	public String getDropSummary() {
+		long received = droppedReceived.getAndSet(0);
+		long errors = droppedErrors.getAndSet(0);
+		long other = droppedOther.getAndSet(0);
+		long total = received + errors + other;
+		if (total == 0) return "";
+		return "\n[" + total + " events not shown because the display could not keep up: "
+				+ received + " connections, "
+				+ errors + " errors"
+				+ ((other > 0) ? ", " + other + " other" : "")
+				+ "]\n";
+	}
+}
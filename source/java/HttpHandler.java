@@ -10,20 +10,25 @@ package org.rsna.httptest;
 import java.io.*;
 import java.net.*;
 import java.util.Calendar;
-import java.util.EventListener;
 import java.util.Hashtable;
-import javax.swing.event.*;
-import javax.swing.SwingUtilities;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A handler for one connection to the HTTP receiver.
  */
 public class HttpHandler extends Thread {
 
+	/** The default time in milliseconds that an idle persistent connection is kept open. */
+	public static final int DEFAULT_IDLE_TIMEOUT = 15000;
+
 	Socket socket;
 	boolean sendResponse;
-	EventListenerList listenerList;
+	CopyOnWriteArrayList<HttpConnectionEventListener> listenerList;
 	boolean optionsEnabled = true;
+	int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	int threshold = BodyCapture.DEFAULT_THRESHOLD;
+	File spoolDir = null;
+	ResponseCompressor compressor = null;
 
 	/**
 	 * Class constructor; creates a handler for one HTTP connection.
@@ -32,72 +37,112 @@ public class HttpHandler extends Thread {
 	 * to the client when a connection is received, false otherwise.
 	 */
 	public HttpHandler(Socket socket, boolean sendResponse) {
-		listenerList = new EventListenerList();
+		listenerList = new CopyOnWriteArrayList<HttpConnectionEventListener>();
 		this.socket = socket;
 		this.sendResponse = sendResponse;
 	}
 
 	/**
-	 * The thread's run implementation
+	 * Set the time that the handler waits for the next request
+	 * on a persistent connection before closing it.
+	 * @param idleTimeout the idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Set the compressor for responses.
+	 * @param compressor the compressor, or null if responses are not to be compressed.
+	 */
+	public void setCompressor(ResponseCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Set the parameters for capturing the content of requests.
+	 * @param threshold the maximum size of a body that is kept in memory.
+	 * @param spoolDir the directory in which to spool larger bodies,
+	 * or null if they are not to be spooled.
+	 */
+	public void setBodyCapture(int threshold, File spoolDir) {
+		this.threshold = threshold;
+		this.spoolDir = spoolDir;
+	}
+
+	/**
+	 * The thread's run implementation. Requests are serviced until
+	 * the client asks for the connection to be closed, the connection
+	 * is idle for longer than the idle timeout, or the client closes
+	 * the connection. Pipelined requests are serviced in order.
 	 */
 	public void run() {
-		BufferedInputStream inStream = null;
+		RequestInputStream inStream = null;
 		OutputStream outStream = null;
-		HttpResponse response = new HttpResponse();
 		try {
 			//Get the socket streams
-			inStream = new BufferedInputStream(socket.getInputStream());
+			socket.setSoTimeout(idleTimeout);
+			inStream = new RequestInputStream(socket.getInputStream());
 			outStream = socket.getOutputStream();
 
 			//Get the addresses
 			String remoteAddress = getRemoteAddress(socket);
 
-			//Get the data from the connection
-			Hashtable<String,String> headerHashtable = new Hashtable<String,String>();
-			String headers = getHeaders(inStream, headerHashtable);
-			String content = getContent(inStream, headerHashtable);
-			
-			//See if we should set the OPTIONS request headers
-			String report = "";
-			if (optionsEnabled && headers.startsWith("OPTIONS ")) {
-				String originHeader = headerHashtable.get("origin");
-				if ((originHeader != null) && !originHeader.equals("null")) {
-					response.setHeader("Access-Control-Allow-Origin", originHeader);
-				}
-				String methodHeader = headerHashtable.get("access-control-request-method");
-				if (methodHeader != null) {
-					response.setHeader("Access-Control-Allow-Methods", methodHeader);
+			HttpResponse response = new HttpResponse();
+			int requestCount = 0;
+			boolean keepAlive = true;
+			while (keepAlive) {
+				//Get the data from the connection
+				Hashtable<String,String> headerHashtable = new Hashtable<String,String>();
+				String headers = inStream.readHeaders(headerHashtable);
+				if (headers == null) break;
+				requestCount++;
+
+				//Refuse a malformed request or one whose body cannot be
+				//delimited. The rest of the connection cannot be parsed,
+				//so it is closed.
+				int status = checkRequest(headers, headerHashtable);
+				if (status != 0) {
+					response.reset();
+					response.setProtocol(getProtocol(headers));
+					String report = reject(remoteAddress, headers, status, response, sendResponse);
+					if (sendResponse) response.send(outStream);
+					outStream.flush();
+					sendHttpConnectionEvent(this, HttpConnectionEvent.RECEIVED, report);
+					break;
 				}
-				else {
-					response.setHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS");
+
+				ChunkedDecoder decoder = isChunked(headerHashtable) ? new ChunkedDecoder() : null;
+				BodyCapture content = new BodyCapture(threshold, BodyCapture.DEFAULT_PREVIEW_SIZE, spoolDir);
+				boolean complete = getContent(inStream, headerHashtable, decoder, content);
+
+				//Keep the connection open only if the client wants it and
+				//the server responds, so the client can find the end of the
+				//response, and the whole body has been received.
+				keepAlive = sendResponse
+								&& isKeepAlive(headers, headerHashtable)
+								&& complete;
+
+				//Process the request and, if enabled, send a response
+				response.reset();
+				response.setProtocol(getProtocol(headers));
+				response.setKeepAlive(keepAlive, idleTimeout);
+				String report = process(
+					remoteAddress, headers, headerHashtable, content, decoder,
+					response, sendResponse, optionsEnabled, requestCount);
+				if (sendResponse) {
+					if (compressor != null) {
+						report += compressor.compress(response, headerHashtable.get("accept-encoding"));
+					}
+					response.send(outStream);
 				}
-				String headersHeader = headerHashtable.get("access-control-request-headers");
-				if (headersHeader != null) response.setHeader("Access-Control-Allow-Headers", headersHeader);
-			}
+				outStream.flush();
 
-			//Send a normal request report
-			StringBuffer sb = new StringBuffer();
-			sb.append("\nConnection received from "+remoteAddress+" at "+getDateTime()+"\n");
-			sb.append("Headers received by the server:\n");
-			sb.append(headers);
-			sb.append("Content received by the server:\n");
-			sb.append(content);
-			if (content.length() == 0) sb.append("[none]\n");
-			report = sb.toString();
-
-			//If enabled, send a response
-			if (sendResponse) {
-				response.write(
-					"The server reported this information about the connection it received:\n\n");
-				response.write(report);
-				response.send(outStream);
+				//Send an event to any listeners
+				sendHttpConnectionEvent(this, HttpConnectionEvent.RECEIVED, report);
 			}
-			outStream.flush();
 			outStream.close();
 			inStream.close();
-
-			//Send an event to any listeners
-			sendHttpConnectionEvent(this, HttpConnectionEvent.RECEIVED, report);
 		}
 
 		catch (Exception ex) {
@@ -109,66 +154,217 @@ public class HttpHandler extends Thread {
 		catch (Exception ignore) { }
 	}
 
-	//Construct a hashtable containing the HTTP headers,
-	//positioning the stream to the beginning of the data.
-	private String getHeaders(BufferedInputStream in, Hashtable<String,String> headers) {
+	/**
+	 * Process one request received by the server. This method is shared
+	 * by all the receiver engines. It sets the OPTIONS (CORS) headers in
+	 * the response if required, constructs the report of the request, and,
+	 * if enabled, writes the report into the response. The caller is
+	 * responsible for sending the response.
+	 * @param remoteAddress the address of the client.
+	 * @param headers the text of the request line and headers.
+	 * @param headerHashtable the headers, indexed by lower-case name.
+	 * @param content the content received with the request.
+	 * @param decoder the decoder used for a chunked body, or null if the
+	 * body was not chunked.
+	 * @param response the response to be sent to the client.
+	 * @param sendResponse true if the report is to be written into the response.
+	 * @param optionsEnabled true if OPTIONS requests are to receive CORS headers.
+	 * @param requestNumber the number of the request on its connection, starting at 1.
+	 * @return the report describing the request.
+	 */
+	static String process(String remoteAddress,
+						  String headers,
+						  Hashtable<String,String> headerHashtable,
+						  BodyCapture content,
+						  ChunkedDecoder decoder,
+						  HttpResponse response,
+						  boolean sendResponse,
+						  boolean optionsEnabled,
+						  int requestNumber) {
+
+		//The response to a HEAD request has no body, although its
+		//headers describe the body that a GET request would receive.
+		response.setHeadOnly(headers.startsWith("HEAD "));
+
+		//See if we should set the OPTIONS request headers
+		if (optionsEnabled && headers.startsWith("OPTIONS ")) {
+			String originHeader = headerHashtable.get("origin");
+			if ((originHeader != null) && !originHeader.equals("null")) {
+				response.setHeader("Access-Control-Allow-Origin", originHeader);
+			}
+			String methodHeader = headerHashtable.get("access-control-request-method");
+			if (methodHeader != null) {
+				response.setHeader("Access-Control-Allow-Methods", methodHeader);
+			}
+			else {
+				response.setHeader("Access-Control-Allow-Methods", "POST, GET, OPTIONS");
+			}
+			String headersHeader = headerHashtable.get("access-control-request-headers");
+			if (headersHeader != null) response.setHeader("Access-Control-Allow-Headers", headersHeader);
+		}
+
+		//Make a normal request report
 		StringBuffer sb = new StringBuffer();
-		String line;
-		while (!((line=getLine(in)).equals(""))) {
-			sb.append(line + "\n");
-			int k = line.indexOf(":");
-			if (k != -1)
-				headers.put(
-					line.substring(0,k).trim().toLowerCase(),
-					line.substring(k+1).trim() );
+		sb.append("\nConnection received from "+remoteAddress+" at "+getDateTime()+"\n");
+		sb.append("Request "+requestNumber+" on this connection\n");
+		sb.append("Headers received by the server:\n");
+		sb.append(headers);
+		sb.append("Content received by the server:\n");
+		if (decoder != null) sb.append(decoder.getReport());
+		sb.append(content.getSummary());
+		String text = content.getContent();
+		sb.append(text);
+		if (text.length() == 0) sb.append("[none]\n");
+		String report = sb.toString();
+
+		//If enabled, put the report in the response
+		if (sendResponse) {
+			response.write(
+				"The server reported this information about the connection it received:\n\n");
+			response.write(report);
 		}
-		return sb.append("\n").toString();
+		return report;
 	}
 
-	//Get one header line from the stream,
-	//using \r\n as the delimiter.
-	private String getLine(BufferedInputStream in) {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		boolean rFlag = false;
-		int b;
-		try {
-			while ((b=in.read()) != -1) {
-				baos.write(b);
-				if (rFlag && (b == 10)) break;
-				rFlag = (b == 13);
+	/**
+	 * Check that the server can process a request. The request line must
+	 * be well formed, with a version of HTTP/1.0 or HTTP/1.1, and the
+	 * server must be able to find the end of the body of the request.
+	 * A body with a Transfer-Encoding must be chunked, and chunked must
+	 * be the last coding applied to it (RFC 7230, section 3.3.3). The
+	 * codings applied before chunked are not decoded; the body is
+	 * reported as it was received.
+	 * @param headers the text of the request line and headers.
+	 * @param headerHashtable the headers, indexed by lower-case name.
+	 * @return zero if the request can be processed, or the status code
+	 * of the response that refuses it.
+	 */
+	static int checkRequest(String headers, Hashtable<String,String> headerHashtable) {
+		if (!HeaderParser.isValidRequestLine(headers)) return 400;
+		String encoding = headerHashtable.get("transfer-encoding");
+		if (encoding != null) {
+			String[] codings = encoding.split(",");
+			for (int i=0; i<codings.length; i++) {
+				String coding = codings[i].trim().toLowerCase();
+				if (!coding.equals("chunked") && !coding.equals("gzip")
+						&& !coding.equals("x-gzip") && !coding.equals("deflate")
+							&& !coding.equals("compress")) return 501;
 			}
+			if (!isChunked(headerHashtable)) return 400;
 		}
-		catch (Exception ex) { }
-		return baos.toString().trim();
+		return 0;
 	}
 
-	//Get the content passed in the connection as a String.
-	private String getContent(BufferedInputStream is, Hashtable<String,String> headers) {
-		String contentLength = headers.get("content-length");
-		String encoding = headers.get("transfer-encoding");
-		boolean chunked = (encoding != null) && encoding.equals("chunked");
-		int count = 10000;
-		if (!chunked) {
-			try { count = Integer.parseInt(contentLength); }
-			catch (Exception noContent) { count = 0; }
+	/**
+	 * Prepare the response to a request that the server refuses, and make
+	 * the report describing it. The response asks the client to close
+	 * the connection. The caller is responsible for sending the response.
+	 * @param remoteAddress the address of the client.
+	 * @param headers the text of the request line and headers.
+	 * @param status the status code of the response (400 or 501).
+	 * @param response the response to be sent to the client.
+	 * @param sendResponse true if the report is to be written into the response.
+	 * @return the report describing the request.
+	 */
+	static String reject(String remoteAddress,
+						 String headers,
+						 int status,
+						 HttpResponse response,
+						 boolean sendResponse) {
+		String reason = (status == 501) ? "Not Implemented" : "Bad Request";
+		response.setStatus(status, reason);
+		response.setKeepAlive(false, 0);
+		response.setHeadOnly(headers.startsWith("HEAD "));
+		StringBuffer sb = new StringBuffer();
+		sb.append("\nConnection received from "+remoteAddress+" at "+getDateTime()+"\n");
+		sb.append("Request refused: "+status+" "+reason+"\n");
+		sb.append("Headers received by the server:\n");
+		sb.append(headers);
+		String report = sb.toString();
+		if (sendResponse) {
+			response.write("The server refused the request:\n\n");
+			response.write(report);
 		}
-		if (count <= 0) return "";
+		return report;
+	}
+
+	/**
+	 * Determine whether the client has asked for a persistent connection.
+	 * HTTP/1.1 connections are persistent unless the client sends
+	 * Connection: close; HTTP/1.0 connections are persistent only if
+	 * the client sends Connection: keep-alive.
+	 * @param headers the text of the request line and headers.
+	 * @param headerHashtable the headers, indexed by lower-case name.
+	 * @return true if the connection is to be kept open after the response.
+	 */
+	static boolean isKeepAlive(String headers, Hashtable<String,String> headerHashtable) {
+		String connection = headerHashtable.get("connection");
+		connection = (connection != null) ? connection.toLowerCase() : "";
+		if (getProtocol(headers).equals("HTTP/1.1")) {
+			return (connection.indexOf("close") == -1);
+		}
+		return (connection.indexOf("keep-alive") != -1);
+	}
+
+	/**
+	 * Get the protocol version from the request line.
+	 * @param headers the text of the request line and headers.
+	 * @return HTTP/1.1 if the request line specifies it; otherwise HTTP/1.0.
+	 */
+	static String getProtocol(String headers) {
+		int k = headers.indexOf("\n");
+		String requestLine = (k != -1) ? headers.substring(0, k) : headers;
+		return requestLine.trim().endsWith("HTTP/1.1") ? "HTTP/1.1" : "HTTP/1.0";
+	}
+
+	//Determine whether the body is chunked. Transfer-codings are
+	//case-insensitive, and chunked must be the last one in the list.
+	static boolean isChunked(Hashtable<String,String> headers) {
+		String encoding = headers.get("transfer-encoding");
+		if (encoding == null) return false;
+		int k = encoding.lastIndexOf(",");
+		return encoding.substring(k+1).trim().equalsIgnoreCase("chunked");
+	}
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		int b;
+	//Get the content passed in the connection, decoding a chunked
+	//body as it is read. Only a bounded part of a large body is kept.
+	//Return true if the whole body was read, so the next request on
+	//the connection starts where this one ends.
+	private boolean getContent(RequestInputStream is,
+							   Hashtable<String,String> headers,
+							   ChunkedDecoder decoder,
+							   BodyCapture body) {
+		boolean complete = false;
 		try {
-			while ((count > 0) && (b=is.read()) != -1) {
-				baos.write(b);
-				count--;
+			if (decoder != null) {
+				is.readChunked(decoder, body);
+				complete = decoder.isComplete();
+			}
+			else {
+				long count = getContentLength(headers);
+				byte[] buf = new byte[(int)Math.min(Math.max(count, 1), 65536)];
+				int n;
+				while ((count > 0) && (n=is.read(buf, 0, (int)Math.min(count, buf.length))) != -1) {
+					body.write(buf, 0, n);
+					count -= n;
+				}
+				if (count > 0) body.setError("The connection closed before the end of the content");
+				complete = (count == 0);
 			}
-			return baos.toString();
-		}
-		catch (Exception e) {
-			return
-				"Error reading the input stream\nException message:\n"
-				+ e.getMessage() + "\n\n"
-				+ baos.toString();
 		}
+		catch (Exception e) { body.setError(e.getMessage()); }
+		body.close();
+		return complete;
+	}
+
+	/**
+	 * Get the value of the Content-Length header.
+	 * @param headers the headers, indexed by lower-case name.
+	 * @return the content length, or zero if the header is missing or invalid.
+	 */
+	static long getContentLength(Hashtable<String,String> headers) {
+		try { return Math.max(0, Long.parseLong(headers.get("content-length"))); }
+		catch (Exception noContent) { return 0; }
 	}
 
 	/**
@@ -176,7 +372,7 @@ public class HttpHandler extends Thread {
 	 * @param listener the HttpConnectionEventListener.
 	 */
 	public void addHttpConnectionEventListener(HttpConnectionEventListener listener) {
-		listenerList.add(HttpConnectionEventListener.class, listener);
+		listenerList.addIfAbsent(listener);
 	}
 
 	/**
@@ -184,23 +380,18 @@ public class HttpHandler extends Thread {
 	 * @param listener the HttpFileEventListener.
 	 */
 	public void removeHttpConnectionEventListener(HttpConnectionEventListener listener) {
-		listenerList.remove(HttpConnectionEventListener.class, listener);
+		listenerList.remove(listener);
 	}
 
 	//Send an HttpConnectionEvent to all HttpConnectionEventListeners.
-	//The event is sent in the event thread to make it safe for GUI components.
+	//The event is sent in the handler's thread; listeners that update
+	//GUI components must pass the event to the event thread themselves.
 	private void sendHttpConnectionEvent(Object object, int status, String message) {
-		final EventListener[] listeners = listenerList.getListeners(HttpConnectionEventListener.class);
-		if (listeners.length > 0) {
-			final HttpConnectionEvent event = new HttpConnectionEvent(object, status, message);
-			Runnable fireEvents = new Runnable() {
-				public void run() {
-					for (int i=0; i<listeners.length; i++) {
-						((HttpConnectionEventListener)listeners[i]).httpConnectionEventOccurred(event);
-					}
-				}
-			};
-			SwingUtilities.invokeLater(fireEvents);
+		if (!listenerList.isEmpty()) {
+			HttpConnectionEvent event = new HttpConnectionEvent(object, status, message);
+			for (HttpConnectionEventListener listener : listenerList) {
+				listener.httpConnectionEventOccurred(event);
+			}
 		}
 	}
 
@@ -217,7 +408,7 @@ public class HttpHandler extends Thread {
 		return rsaString;
 	}
 
-	private static String getDateTime() {
+	static String getDateTime() {
 		Calendar now = Calendar.getInstance();
 		return intToString(now.get(Calendar.YEAR), 4)
 				 + "."
@@ -0,0 +1,1182 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import org.rsna.util.Base64;
+
+/**
+ * A single HTTP request, made without any user interface, for the
+ * headless mode and load tests. The probe is configured with its
+ * setters, executed, and then queried for the results. The request
+ * is made with an HttpURLConnection, the RawHttpClient, or the
+ * Http2Engine.
+ */
+public class HttpProbe {
+
+	/** The engine that makes requests with HttpURLConnection. */
+	public static final int URLCONNECTION = 0;
+	/** The engine that makes requests with the RawHttpClient. */
+	public static final int RAW = 1;
+	/** The engine that makes requests with java.net.http, preferring HTTP/2. */
+	public static final int HTTP2 = 2;
+
+	static RawHttpClient rawClient = null;
+	static RawHttpClient insecureRawClient = null;
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+	static final int PREVIEW_SIZE = 4096;
+
+	String address;
+	String method = "GET";
+	String body = "";
+	boolean gzip = false;
+	boolean insecure = false;
+	String proxyCredentials = null;
+	String proxyUser = null;
+	String proxyPassword = null;
+	String credentials = null;
+	String user = null;
+	String password = null;
+	boolean digest = false;
+	int timeout = 30000;
+	int engine = URLCONNECTION;
+	java.net.Proxy proxy = null;
+	int previewSize = PREVIEW_SIZE;
+	boolean checksum = false;
+	File saveFile = null;
+	ConditionalCache cache = null;
+	int maxRedirects = 0;
+	CookieManager cookies = null;
+	TimingSSLSocketFactory sslSocketFactory = null;
+
+	int responseCode = -1;
+	String responseMessage = null;
+	Map<String,List<String>> headers = null;
+	long contentLength = -1;
+	long bytes = 0;
+	long contentBytes = 0;
+	byte[] preview = new byte[0];
+	String sha256 = null;
+	ContentReader contentReader = null;
+	double connectTime = 0;
+	double totalTime = 0;
+	String error = null;
+	Exception exception = null;
+	RequestTimings timings = null;
+	RawHttpClient.Response rawResponse = null;
+	String protocol = null;
+	String authorization = null;
+	String cookieHeader = null;
+	boolean preemptive = false;
+	boolean challenged = false;
+	double challengeTime = 0;
+	ConditionalCache.Cached cached = null;
+	String cacheResult = null;
+	double headersTime = 0;
+	RedirectChain redirects = null;
+	String finalAddress = null;
+
+	/**
+	 * Class constructor.
+	 * @param address the URL to request.
+	 */
+	public HttpProbe(String address) {
+		this.address = address;
+	}
+
+	/**
+	 * Class constructor; creates a probe with the same settings as another.
+	 * @param template the probe whose settings are to be copied.
+	 */
+	public HttpProbe(HttpProbe template) {
+		address = template.address;
+		method = template.method;
+		body = template.body;
+		gzip = template.gzip;
+		insecure = template.insecure;
+		proxyCredentials = template.proxyCredentials;
+		proxyUser = template.proxyUser;
+		proxyPassword = template.proxyPassword;
+		credentials = template.credentials;
+		user = template.user;
+		password = template.password;
+		digest = template.digest;
+		timeout = template.timeout;
+		engine = template.engine;
+		proxy = template.proxy;
+		previewSize = template.previewSize;
+		checksum = template.checksum;
+		cache = template.cache;
+		maxRedirects = template.maxRedirects;
+		cookies = template.cookies;
+	}
+
+	/**
+	 * Class constructor; creates a probe of another URL with the same
+	 * settings as a probe.
+	 * @param template the probe whose settings are to be copied.
+	 * @param address the URL to request.
+	 */
+	public HttpProbe(HttpProbe template, String address) {
+		this(template);
+		this.address = address;
+	}
+
+	/**
+	 * Set the engine that makes the request.
+	 * @param engine URLCONNECTION (the default), RAW, or HTTP2.
+	 */
+	public void setEngine(int engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Set the route of the request. Each probe has its own route, so probes
+	 * through different proxies (or none) can run at the same time.
+	 * @param proxy an HTTP proxy, java.net.Proxy.NO_PROXY for a direct
+	 * connection, or null (the default) for the proxy set in the Java
+	 * System properties, if any.
+	 */
+	public void setProxy(java.net.Proxy proxy) {
+		this.proxy = proxy;
+	}
+
+	/**
+	 * Create the route through an HTTP proxy. The address of the proxy
+	 * is looked up when it is used.
+	 * @param host the host name or IP address of the proxy.
+	 * @param port the port of the proxy.
+	 * @return the route.
+	 */
+	public static java.net.Proxy createProxy(String host, int port) {
+		return new java.net.Proxy(java.net.Proxy.Type.HTTP, InetSocketAddress.createUnresolved(host, port));
+	}
+
+	/**
+	 * Create the route through an HTTP proxy from a string.
+	 * @param hostPort the proxy, in the form HOST:PORT.
+	 * @return the route.
+	 * @throws IllegalArgumentException if the string is not in the form HOST:PORT.
+	 */
+	public static java.net.Proxy createProxy(String hostPort) {
+		int k = hostPort.lastIndexOf(":");
+		if (k <= 0) throw new IllegalArgumentException("The proxy must be HOST:PORT: " + hostPort);
+		try { return createProxy(hostPort.substring(0, k), Integer.parseInt(hostPort.substring(k+1))); }
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("The proxy port must be a number: " + hostPort);
+		}
+	}
+
+	/**
+	 * Get a description of a route.
+	 * @param proxy the route, or null for the proxy in the System properties.
+	 * @return "direct", "proxy HOST:PORT", or "default".
+	 */
+	public static String getRouteName(java.net.Proxy proxy) {
+		if (proxy == null) return "default";
+		if (proxy.type() == java.net.Proxy.Type.DIRECT) return "direct";
+		InetSocketAddress addr = (InetSocketAddress)proxy.address();
+		return "proxy " + addr.getHostString() + ":" + addr.getPort();
+	}
+
+	/**
+	 * Set the request method. The default is GET.
+	 * @param method the method.
+	 */
+	public void setMethod(String method) {
+		this.method = method.toUpperCase();
+	}
+
+	/**
+	 * Set the body to send with a POST or PUT request.
+	 * @param body the body, sent as UTF-8 text.
+	 */
+	public void setBody(String body) {
+		this.body = (body != null) ? body : "";
+	}
+
+	/**
+	 * Set whether to send an Accept-Encoding: gzip header.
+	 * @param gzip true to accept gzip content.
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Set whether to accept any server certificate for https requests.
+	 * @param insecure true to accept any certificate and host name.
+	 */
+	public void setInsecure(boolean insecure) {
+		this.insecure = insecure;
+	}
+
+	/**
+	 * Set the credentials for the Proxy-Authorization header.
+	 * @param user the username, or null for no proxy authentication.
+	 * @param password the password.
+	 */
+	public void setProxyCredentials(String user, String password) {
+		proxyCredentials = encode(user, password);
+		proxyUser = user;
+		proxyPassword = password;
+	}
+
+	/**
+	 * Set the credentials for the Authorization header.
+	 * @param user the username, or null for no authentication.
+	 * @param password the password.
+	 */
+	public void setCredentials(String user, String password) {
+		credentials = encode(user, password);
+		this.user = user;
+		this.password = password;
+	}
+
+	/**
+	 * Set whether the credentials are sent with the Digest scheme rather
+	 * than Basic. With Digest, the first request to a server is challenged
+	 * and repeated; later requests use the nonce cached by DigestAuth and
+	 * authenticate pre-emptively. The default is false.
+	 * @param digest true to use Digest authentication.
+	 */
+	public void setDigest(boolean digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * Set the connect and read timeouts.
+	 * @param timeout the timeout in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Set the size of the preview of the content. The default is 4096 bytes.
+	 * @param previewSize the maximum number of bytes of decoded content to keep.
+	 */
+	public void setPreviewSize(int previewSize) {
+		this.previewSize = previewSize;
+	}
+
+	/**
+	 * Set whether to compute a SHA-256 checksum of the content. The default is false.
+	 * @param checksum true to compute the checksum.
+	 */
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Set the file to which the decoded content is written as it is received.
+	 * The file is not copied to probes created from this one.
+	 * @param file the file, or null (the default) not to save the content.
+	 */
+	public void setSaveFile(File file) {
+		saveFile = file;
+	}
+
+	/**
+	 * Set the cache in which GET responses with validators are stored, so
+	 * that later requests for them are conditional. The cache is shared
+	 * with the probes created from this one.
+	 * @param cache the cache, or null (the default) not to use a cache.
+	 */
+	public void setCache(ConditionalCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Set the cookie manager whose cookies are sent with the requests
+	 * and which stores the cookies of the responses. With the
+	 * HttpURLConnection engine, if the manager is the default
+	 * CookieHandler, the connection handles the cookies itself.
+	 * @param cookies the manager, or null (the default) not to handle cookies.
+	 */
+	public void setCookies(CookieManager cookies) {
+		this.cookies = cookies;
+	}
+
+	/**
+	 * Set the factory for the sockets of https requests made with the
+	 * HttpURLConnection engine. The factory measures the TLS handshake,
+	 * and a factory used for several requests allows HttpsURLConnection
+	 * to reuse its connections. The factory records the time of one
+	 * handshake at a time, so it must not be shared by probes that run
+	 * at the same time. The factory is not copied to probes created
+	 * from this one.
+	 * @param factory the factory, or null (the default) to use the
+	 * default factory, or one that accepts any certificate if the probe
+	 * is insecure.
+	 */
+	public void setSSLSocketFactory(TimingSSLSocketFactory factory) {
+		sslSocketFactory = factory;
+	}
+
+	/**
+	 * Set the maximum number of redirects to follow. Each redirect is
+	 * followed with a new request, so that every hop is measured.
+	 * @param maxRedirects the maximum number, or 0 (the default) to
+	 * return redirects as the response.
+	 */
+	public void setMaxRedirects(int maxRedirects) {
+		this.maxRedirects = Math.max(0, maxRedirects);
+	}
+
+	private static String encode(String user, String password) {
+		if ((user == null) || user.equals("")) return null;
+		return Base64.encodeToString((user + ":" + password).getBytes(utf8));
+	}
+
+	/**
+	 * Make the request and read the whole response. Errors are recorded
+	 * rather than thrown. When the response is read completely, the
+	 * connection is left open for reuse by later probes.
+	 * @return this probe, with its results set.
+	 */
+	public HttpProbe execute() {
+		if (maxRedirects == 0) return executeRequest();
+		//Follow the redirects, measuring each hop, and restore the
+		//request settings at the end so that the probe can be repeated.
+		String firstAddress = address;
+		String firstMethod = method;
+		String firstBody = body;
+		redirects = new RedirectChain(maxRedirects);
+		executeRequest();
+		while ((error == null) && RedirectChain.isRedirect(responseCode)) {
+			String location = RedirectChain.getLocation(address, headers);
+			if ((location == null) || !redirects.canFollow()) break;
+			redirects.add(getHop(location));
+			String nextMethod = redirects.getMethod(method);
+			if (!nextMethod.equals(method)) body = "";
+			method = nextMethod;
+			address = location;
+			clearResults();
+			executeRequest();
+		}
+		totalTime += redirects.getTime();
+		finalAddress = address;
+		address = firstAddress;
+		method = firstMethod;
+		body = firstBody;
+		return this;
+	}
+
+	//Get the record of a response that is a redirect to be followed.
+	private RedirectChain.Hop getHop(String location) {
+		double connectMs = -1;
+		double ttfbMs = -1;
+		String connection = null;
+		if (rawResponse != null) {
+			connection = rawResponse.isReused() ? "reused" : "new";
+			connectMs = connectTime;
+			ttfbMs = timings.getTime("Waiting");
+		}
+		else if (engine == HTTP2) ttfbMs = headersTime;
+		else {
+			connectMs = connectTime;
+			ttfbMs = headersTime - connectTime;
+		}
+		return new RedirectChain.Hop(address, method, responseCode, location,
+									 connectMs, ttfbMs, totalTime, connection);
+	}
+
+	//Make the request, with the Digest challenge and response if necessary.
+	//Credentials are sent only to the origin of the first request of a chain
+	//of redirects.
+	private HttpProbe executeRequest() {
+		preemptive = false;
+		challenged = false;
+		challengeTime = 0;
+		boolean authenticate = (credentials != null) && ((redirects == null) || redirects.isOriginal(address));
+		if (!digest || !authenticate) {
+			authorization = authenticate ? "Basic " + credentials : null;
+			return executeOnce();
+		}
+		//Authenticate pre-emptively if the server has challenged before;
+		//otherwise, or if the cached nonce is rejected, answer the challenge
+		//and repeat the request, including the first round trip in the time.
+		DigestAuth digestAuth = DigestAuth.getInstance();
+		URL url = null;
+		try { url = new URL(address); }
+		catch (Exception ex) { return executeOnce(); }
+		DigestAuth.Nonce nonce = digestAuth.acquire(url);
+		authorization = (nonce != null) ? nonce.authorize(method, url, user, password) : null;
+		preemptive = (nonce != null);
+		try {
+			executeOnce();
+			if (error != null) return this;
+			if (preemptive) digestAuth.recordResult(responseCode);
+			String challenge = (responseCode == 401) ? DigestAuth.getChallenge(headers) : null;
+			if (challenge == null) return this;
+			try { nonce = digestAuth.answer(url, challenge); }
+			catch (IllegalArgumentException ex) {
+				error = ex.getMessage();
+				exception = ex;
+				return this;
+			}
+			authorization = nonce.authorize(method, url, user, password);
+			challenged = true;
+			challengeTime = totalTime;
+			clearResults();
+			executeOnce();
+			totalTime += challengeTime;
+			return this;
+		}
+		finally {
+			//Return the nonce for reuse, whether or not the request
+			//succeeded, unless the server rejected it.
+			if ((nonce != null) && (responseCode != 401)) digestAuth.release(url, nonce);
+		}
+	}
+
+	//Make one request with the selected engine, conditionally if
+	//the response is in the cache.
+	private HttpProbe executeOnce() {
+		boolean handleCookies = (cookies != null)
+				&& ((engine != URLCONNECTION) || (CookieHandler.getDefault() != cookies));
+		cookieHeader = handleCookies ? getCookieHeader() : null;
+		if (cache != null) cached = cache.lookup(method, address, getRequestHeaders());
+		try {
+			if (engine == RAW) return executeRaw();
+			if (engine == HTTP2) return executeHttp2();
+			return executeURLConnection();
+		}
+		finally {
+			if (cached != null) cached.close();
+			if (handleCookies && (headers != null)) {
+				try { cookies.put(new URI(address), headers); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	//Get the value of the Cookie header for the request, or null if there are no cookies.
+	private String getCookieHeader() {
+		try {
+			Map<String,List<String>> map = cookies.get(new URI(address), new Hashtable<String,List<String>>());
+			StringBuffer sb = new StringBuffer();
+			for (Map.Entry<String,List<String>> entry : map.entrySet()) {
+				if (!entry.getKey().equalsIgnoreCase("Cookie")) continue;
+				for (String value : entry.getValue()) {
+					if (sb.length() > 0) sb.append("; ");
+					sb.append(value);
+				}
+			}
+			return (sb.length() > 0) ? sb.toString() : null;
+		}
+		catch (Exception ex) { return null; }
+	}
+
+	//Get the headers of the request on which a cached response can vary.
+	private Map<String,String> getRequestHeaders() {
+		Hashtable<String,String> requestHeaders = new Hashtable<String,String>();
+		if (gzip) requestHeaders.put("accept-encoding", "gzip");
+		if (authorization != null) requestHeaders.put("authorization", authorization);
+		if (cookieHeader != null) requestHeaders.put("cookie", cookieHeader);
+		return requestHeaders;
+	}
+
+	//Get the conditional headers for the cached response, as a list of names and values.
+	private List<String> getValidators() {
+		LinkedList<String> list = new LinkedList<String>();
+		ConditionalCache.addValidators(cached, list);
+		return list;
+	}
+
+	//Get the headers of a CORS preflight request, as a list of names and
+	//values. They are sent only with an OPTIONS request.
+	private List<String> getPreflightHeaders(URL url) {
+		LinkedList<String> list = new LinkedList<String>();
+		if (method.equals("OPTIONS")) {
+			list.add("Origin");
+			list.add(url.getProtocol().toLowerCase() + "://" + IPUtil.getIPAddress());
+			list.add("Access-Control-Request-Method");
+			list.add("POST, GET, OPTIONS");
+		}
+		return list;
+	}
+
+	//Clear the results of a request that is to be repeated.
+	private void clearResults() {
+		responseCode = -1;
+		responseMessage = null;
+		headers = null;
+		contentLength = -1;
+		bytes = 0;
+		contentBytes = 0;
+		preview = new byte[0];
+		sha256 = null;
+		contentReader = null;
+		connectTime = 0;
+		totalTime = 0;
+		error = null;
+		exception = null;
+		timings = null;
+		rawResponse = null;
+		protocol = null;
+		cached = null;
+		cacheResult = null;
+		headersTime = 0;
+	}
+
+	//Make the request with HttpURLConnection, recording the phases of the
+	//request. The host is looked up before the connection is made, so that
+	//the lookup is timed separately; the connection then gets the address
+	//from the JVM's cache.
+	private HttpProbe executeURLConnection() {
+		RequestTimings requestTimings = new RequestTimings();
+		long start = requestTimings.getStart();
+		HttpURLConnection conn = null;
+		try {
+			URL url = new URL(address);
+			boolean proxied = (proxy != null) && (proxy.type() == java.net.Proxy.Type.HTTP);
+			long t = System.nanoTime();
+			InetAddress.getAllByName(proxied ? ((InetSocketAddress)proxy.address()).getHostString() : url.getHost());
+			requestTimings.add(proxied ? "DNS lookup (proxy)" : "DNS lookup", t, System.nanoTime());
+
+			conn = (HttpURLConnection)((proxy != null) ? url.openConnection(proxy) : url.openConnection());
+			boolean secure = (conn instanceof HttpsURLConnection);
+			if (secure) {
+				HttpsURLConnection httpsConn = (HttpsURLConnection)conn;
+				if (sslSocketFactory != null) {
+					sslSocketFactory.reset();
+					httpsConn.setSSLSocketFactory(sslSocketFactory);
+				}
+				else if (insecure) httpsConn.setSSLSocketFactory(getInsecureSocketFactory());
+				if (insecure) httpsConn.setHostnameVerifier(new AcceptAllHostnameVerifier());
+			}
+			conn.setInstanceFollowRedirects(false);
+			conn.setUseCaches(false);
+			if (proxyCredentials != null) conn.setAuthenticator(getProxyAuthenticator(proxyUser, proxyPassword));
+			conn.setConnectTimeout(timeout);
+			conn.setReadTimeout(timeout);
+			conn.setRequestMethod(method);
+			//Through an https tunnel, the header would go to the origin server,
+			//so the credentials are supplied only by the authenticator.
+			if ((proxyCredentials != null) && !secure) {
+				conn.setRequestProperty("Proxy-Authorization", "Basic " + proxyCredentials);
+			}
+			if (authorization != null) conn.setRequestProperty("Authorization", authorization);
+			if (cookieHeader != null) conn.setRequestProperty("Cookie", cookieHeader);
+			if (gzip) conn.setRequestProperty("Accept-Encoding", "gzip");
+			List<String> list = getValidators();
+			list.addAll(getPreflightHeaders(url));
+			for (Iterator<String> it=list.iterator(); it.hasNext(); ) {
+				conn.setRequestProperty(it.next(), it.next());
+			}
+			byte[] bytes = null;
+			if (!body.equals("") && (method.equals("POST") || method.equals("PUT"))) {
+				bytes = body.getBytes(utf8);
+				conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+				conn.setDoOutput(true);
+				//Stream the body so that it is sent when it is written.
+				conn.setFixedLengthStreamingMode(bytes.length);
+			}
+
+			t = System.nanoTime();
+			conn.connect();
+			long connected = System.nanoTime();
+			connectTime = (connected - start) / 1000000.0;
+			String tcp = proxied ? "TCP connect (proxy)" : "TCP connect";
+			if (!secure) requestTimings.add(tcp, t, connected);
+			else if (sslSocketFactory == null) requestTimings.add(tcp + " + TLS handshake", t, connected);
+			else {
+				long layered = sslSocketFactory.getLayeredTime();
+				if (layered == 0) requestTimings.add("Connect (reused connection)", t, connected);
+				else {
+					requestTimings.add(proxied ? tcp + " + CONNECT" : tcp, t, layered);
+					requestTimings.add("TLS handshake", layered, connected);
+				}
+			}
+
+			long sent = connected;
+			if (bytes != null) {
+				OutputStream os = conn.getOutputStream();
+				os.write(bytes);
+				os.close();
+				sent = System.nanoTime();
+				requestTimings.add("Request sent", connected, sent, bytes.length);
+			}
+			responseCode = conn.getResponseCode();
+			long headersReceived = System.nanoTime();
+			headersTime = (headersReceived - start) / 1000000.0;
+			requestTimings.add((bytes != null) ? "Waiting (TTFB)" : "Request + waiting (TTFB)", sent, headersReceived);
+			responseMessage = conn.getResponseMessage();
+			headers = conn.getHeaderFields();
+			contentLength = conn.getContentLengthLong();
+			timings = requestTimings;
+			InputStream is = (responseCode >= 400) ? conn.getErrorStream() : conn.getInputStream();
+			if (is != null) {
+				try { readContent(is, "gzip".equalsIgnoreCase(conn.getContentEncoding())); }
+				finally { timings.add("Content download", headersReceived, System.nanoTime(), this.bytes); }
+			}
+		}
+		catch (Exception ex) {
+			error = ex.toString();
+			exception = ex;
+			if (conn != null) conn.disconnect();
+		}
+		totalTime = (System.nanoTime() - start) / 1000000.0;
+		return this;
+	}
+
+	//Make the request with the RawHttpClient.
+	private HttpProbe executeRaw() {
+		long start = System.nanoTime();
+		try {
+			URL url = new URL(address);
+			java.net.Proxy proxy = this.proxy;
+			if (proxy == null) proxy = getSystemProxy(url);
+			else if (proxy.type() == java.net.Proxy.Type.DIRECT) proxy = null;
+			else if (proxy.type() != java.net.Proxy.Type.HTTP) {
+				throw new IOException("The raw socket engine supports only HTTP proxies.");
+			}
+			LinkedList<String> list = new LinkedList<String>();
+			if ((proxyCredentials != null) && (proxy != null)) {
+				list.add("Proxy-Authorization");
+				list.add("Basic " + proxyCredentials);
+			}
+			if (authorization != null) {
+				list.add("Authorization");
+				list.add(authorization);
+			}
+			if (cookieHeader != null) {
+				list.add("Cookie");
+				list.add(cookieHeader);
+			}
+			if (gzip) {
+				list.add("Accept-Encoding");
+				list.add("gzip");
+			}
+			list.addAll(getValidators());
+			list.addAll(getPreflightHeaders(url));
+			byte[] bytes = null;
+			if (!body.equals("") && (method.equals("POST") || method.equals("PUT"))) {
+				list.add("Content-Type");
+				list.add("application/x-www-form-urlencoded");
+				bytes = body.getBytes(utf8);
+			}
+			RawHttpClient client = getRawClient(insecure);
+			rawResponse = client.execute(method, url, list.toArray(new String[list.size()]), bytes, proxy, timeout);
+			timings = rawResponse.getTimings();
+			connectTime = getConnectTime(timings);
+			responseCode = rawResponse.getStatus();
+			headersTime = (System.nanoTime() - start) / 1000000.0;
+			responseMessage = rawResponse.reason;
+			headers = rawResponse.getHeaders();
+			String length = rawResponse.getHeader("Content-Length");
+			if (length != null) {
+				try { contentLength = Long.parseLong(length.trim()); }
+				catch (NumberFormatException ignore) { }
+			}
+			readContent(rawResponse.getBody(), "gzip".equalsIgnoreCase(rawResponse.getHeader("Content-Encoding")));
+		}
+		catch (Exception ex) {
+			error = ex.toString();
+			exception = ex;
+		}
+		totalTime = (System.nanoTime() - start) / 1000000.0;
+		return this;
+	}
+
+	//Get the time taken to connect from the phases of a request made by
+	//the raw engine. The time is zero if the connection was reused.
+	static double getConnectTime(RequestTimings timings) {
+		double ms = 0;
+		String[] phases = { "DNS", "TCP", "CONNECT", "TLS" };
+		for (String phase : phases) ms += Math.max(0, timings.getTime(phase));
+		return ms;
+	}
+
+	//Make the request with the Http2Engine.
+	private HttpProbe executeHttp2() {
+		RequestTimings requestTimings = new RequestTimings();
+		long start = requestTimings.getStart();
+		try {
+			HttpRequest.Builder builder = HttpRequest.newBuilder(new URI(address))
+											.timeout(Duration.ofMillis(timeout));
+			if (proxyCredentials != null) builder.header("Proxy-Authorization", "Basic " + proxyCredentials);
+			if (authorization != null) builder.header("Authorization", authorization);
+			if (cookieHeader != null) builder.header("Cookie", cookieHeader);
+			if (gzip) builder.header("Accept-Encoding", "gzip");
+			List<String> list = getValidators();
+			list.addAll(getPreflightHeaders(new URL(address)));
+			for (Iterator<String> it=list.iterator(); it.hasNext(); ) {
+				builder.header(it.next(), it.next());
+			}
+			if (!body.equals("") && (method.equals("POST") || method.equals("PUT"))) {
+				builder.header("Content-Type", "application/x-www-form-urlencoded");
+				builder.method(method, HttpRequest.BodyPublishers.ofByteArray(body.getBytes(utf8)));
+			}
+			else builder.method(method, HttpRequest.BodyPublishers.noBody());
+			HttpResponse<InputStream> response = Http2Engine.getEngine(insecure, proxy).send(builder.build());
+			InputStream is = response.body();
+			long headersReceived = System.nanoTime();
+			headersTime = (headersReceived - start) / 1000000.0;
+			connectTime = -1;
+			protocol = Http2Engine.getName(response.version());
+			responseCode = response.statusCode();
+			responseMessage = "";
+			headers = response.headers().map();
+			contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+			timings = requestTimings;
+			timings.add("Request to headers", start, headersReceived);
+			if (is != null) {
+				try {
+					readContent(is,
+						"gzip".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse("")));
+				}
+				finally { timings.add("Content download", headersReceived, System.nanoTime(), bytes); }
+			}
+		}
+		catch (Exception ex) {
+			error = ex.toString();
+			exception = ex;
+		}
+		totalTime = (System.nanoTime() - start) / 1000000.0;
+		return this;
+	}
+
+	//Get the proxy set in the Java System properties for a URL.
+	static java.net.Proxy getSystemProxy(URL url) {
+		String scheme = url.getProtocol().toLowerCase();
+		String host = System.getProperty(scheme + ".proxyHost");
+		if ((host == null) || host.trim().equals("")) return null;
+		int port = scheme.equals("https") ? 443 : 80;
+		try { port = Integer.parseInt(System.getProperty(scheme + ".proxyPort", "").trim()); }
+		catch (NumberFormatException useDefault) { }
+		return new java.net.Proxy(java.net.Proxy.Type.HTTP, InetSocketAddress.createUnresolved(host.trim(), port));
+	}
+
+	//Get the shared RawHttpClient that trusts the default certificates,
+	//or the one that accepts any certificate.
+	static synchronized RawHttpClient getRawClient(boolean insecure) throws Exception {
+		if (insecure) {
+			if (insecureRawClient == null) insecureRawClient = new RawHttpClient(getInsecureSSLContext());
+			return insecureRawClient;
+		}
+		if (rawClient == null) rawClient = new RawHttpClient(SSLContext.getDefault());
+		return rawClient;
+	}
+
+	//Read the content as it arrives, counting the bytes received and
+	//keeping a preview of the (decompressed) content. If the server
+	//confirms the cached response, the content is taken from the cache;
+	//otherwise, if there is a cache, the response is offered to it.
+	private void readContent(InputStream is, boolean gzipped) throws IOException {
+		if ((cached != null) && (responseCode == 304)) {
+			read(is, gzipped, null);
+			long received = bytes;
+			read(cached.getContent(), false, null);
+			contentReader.setSource("the cache (" + cached.getTier() + ")");
+			bytes = received;
+			cache.recordHit(cached, headers);
+			cacheResult = "revalidated (" + cached.getTier() + ")";
+			return;
+		}
+		if ((cache == null) || !method.equals("GET")) {
+			read(is, gzipped, null);
+			return;
+		}
+		ConditionalCache.Capture capture = cache.capture();
+		try { read(is, gzipped, capture); }
+		catch (IOException ex) {
+			capture.discard();
+			throw ex;
+		}
+		cache.store(method, address, getRequestHeaders(), cached, responseCode, headers, capture, bytes);
+		cacheResult = (cached != null) ? "changed" : "miss";
+	}
+
+	private void read(InputStream is, boolean gzipped, OutputStream capture) throws IOException {
+		ContentReader reader = new ContentReader(previewSize);
+		contentReader = reader;
+		reader.setChecksum(checksum);
+		reader.setFile(isFollowed() ? null : saveFile);
+		reader.setCapture(capture);
+		try { reader.read(is, gzipped); }
+		finally {
+			bytes = reader.getBytes();
+			contentBytes = reader.getContentBytes();
+			preview = reader.getPreview();
+			sha256 = reader.getChecksum();
+		}
+	}
+
+	//Determine whether the response is a redirect that will be followed,
+	//so that only the content of the final response is saved.
+	private boolean isFollowed() {
+		return (redirects != null)
+					&& RedirectChain.isRedirect(responseCode)
+					&& (RedirectChain.getLocation(address, headers) != null)
+					&& redirects.canFollow();
+	}
+
+	/**
+	 * Get the result of the probe as a JSON object.
+	 * @param includeContent true to include a preview of the content.
+	 * @return the result.
+	 */
+	public JsonLine toJson(boolean includeContent) {
+		JsonLine json = new JsonLine();
+		json.put("type", "probe");
+		json.put("url", address);
+		json.put("method", method);
+		if (proxy != null) json.put("route", getRouteName(proxy));
+		if (redirects != null) {
+			json.put("finalUrl", finalAddress);
+			redirects.addTo(json);
+		}
+		if (error == null) {
+			json.put("status", responseCode);
+			json.put("message", responseMessage);
+			if (connectTime >= 0) json.put("connectMs", connectTime);
+			json.put("totalMs", totalTime);
+			json.put("contentLength", contentLength);
+			json.put("bytes", bytes);
+			json.put("contentBytes", contentBytes);
+			if (sha256 != null) json.put("sha256", sha256);
+			if (saveFile != null) json.put("savedTo", saveFile.getAbsolutePath());
+			if (rawResponse != null) {
+				json.put("engine", "raw");
+				rawResponse.addTo(json);
+			}
+			else if (engine == HTTP2) {
+				json.put("engine", "http2");
+				json.put("protocol", protocol);
+			}
+			if (timings != null) timings.addTo(json);
+			if (cacheResult != null) {
+				json.put("cache", cacheResult);
+				if (cacheResult.startsWith("revalidated")) json.put("cacheBytesSaved", cached.getWireSize());
+			}
+			if (digest && (credentials != null)) {
+				json.put("auth", preemptive ? "preemptive" : (challenged ? "challenged" : "none"));
+				if (challenged) json.put("challengeMs", challengeTime);
+			}
+			json.put("headers", headers);
+			if (includeContent) json.put("content", new String(preview, utf8));
+		}
+		else {
+			json.put("totalMs", totalTime);
+			json.put("error", error);
+		}
+		return json;
+	}
+
+	/**
+	 * Get the response code.
+	 * @return the response code, or -1 if no response was received.
+	 */
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	/**
+	 * Get the error that prevented the request from completing.
+	 * @return the error, or null if the request completed.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Get the type of the error that prevented the request from completing.
+	 * @return the simple name of the exception class, or null if the request completed.
+	 */
+	public String getErrorType() {
+		return (exception != null) ? exception.getClass().getSimpleName() : null;
+	}
+
+	/**
+	 * Get the number of bytes of content received, before decompression.
+	 * @return the number of bytes.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the number of bytes of content after decompression.
+	 * @return the number of bytes.
+	 */
+	public long getContentBytes() {
+		return contentBytes;
+	}
+
+	/**
+	 * Get the reader that processed the content.
+	 * @return the reader, or null if no content was read.
+	 */
+	public ContentReader getContentReader() {
+		return contentReader;
+	}
+
+	/**
+	 * Get the SHA-256 checksum of the decompressed content.
+	 * @return the checksum as a hex string, or null if it was not computed.
+	 */
+	public String getChecksum() {
+		return sha256;
+	}
+
+	/**
+	 * Get the response message (the reason phrase of the status line).
+	 * @return the message, or null if no response was received.
+	 */
+	public String getResponseMessage() {
+		return responseMessage;
+	}
+
+	/**
+	 * Get the response headers.
+	 * @return the headers, indexed by name, or null if no response was received.
+	 */
+	public Map<String,List<String>> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Get the first part of the content, decompressed if necessary.
+	 * @return the preview of the content, decoded as UTF-8.
+	 */
+	public String getPreview() {
+		return new String(preview, utf8);
+	}
+
+	/**
+	 * Get the timings of the phases of the request.
+	 * @return the timings, or null if they are not available from the engine.
+	 */
+	public RequestTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * Get the response from the RawHttpClient.
+	 * @return the response, or null if the request was made with another engine.
+	 */
+	public RawHttpClient.Response getRawResponse() {
+		return rawResponse;
+	}
+
+	/**
+	 * Get the protocol of the response from the Http2Engine.
+	 * @return HTTP/2 or HTTP/1.1, or null if the request was made with another engine.
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * Get the time taken to connect. The HTTP/2 engine does not expose
+	 * its connection phases, so the time is not known for its requests.
+	 * @return the time in milliseconds, or -1 if it is not known.
+	 */
+	public double getConnectTime() {
+		return connectTime;
+	}
+
+	/**
+	 * Get the time taken by the request.
+	 * @return the time in milliseconds, including the challenge round
+	 * trip if the request was repeated with Digest credentials.
+	 */
+	public double getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * Get the redirects that were followed.
+	 * @return the redirects, or null if following redirects is not enabled.
+	 */
+	public RedirectChain getRedirects() {
+		return redirects;
+	}
+
+	/**
+	 * Get the URL of the final response of a chain of redirects.
+	 * @return the URL, or null if following redirects is not enabled.
+	 */
+	public String getFinalAddress() {
+		return finalAddress;
+	}
+
+	/**
+	 * Get the value of the Content-Length header of the response.
+	 * @return the length, or -1 if the header was not received.
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Get the Content-Type of the content. If the server confirmed the
+	 * cached response, this is the type of the cached response.
+	 * @return the content type, or an empty string if there is none.
+	 */
+	public String getContentType() {
+		if ((cacheResult != null) && cacheResult.startsWith("revalidated")
+				&& (cached.getContentType() != null)) {
+			return cached.getContentType();
+		}
+		if (headers != null) {
+			for (Map.Entry<String,List<String>> entry : headers.entrySet()) {
+				if ((entry.getKey() != null) && entry.getKey().equalsIgnoreCase("Content-Type")
+						&& (entry.getValue().size() > 0)) {
+					return entry.getValue().get(0);
+				}
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * Get the result of the lookup of the response in the cache.
+	 * @return "miss", "changed" (the cached response was replaced), or
+	 * "revalidated" and the tier (the server answered 304 Not Modified and
+	 * the content was taken from the cache), or null if no cache was used.
+	 */
+	public String getCacheResult() {
+		return cacheResult;
+	}
+
+	/**
+	 * Determine whether the request was authenticated pre-emptively with
+	 * a cached Digest nonce.
+	 * @return true if the request was sent with a cached nonce.
+	 */
+	public boolean isPreemptive() {
+		return preemptive;
+	}
+
+	/**
+	 * Determine whether the request was challenged and repeated with
+	 * Digest credentials.
+	 * @return true if the request was repeated.
+	 */
+	public boolean wasChallenged() {
+		return challenged;
+	}
+
+	/**
+	 * Get the time taken by the request that was challenged.
+	 * @return the time in milliseconds, or 0 if the request was not repeated.
+	 */
+	public double getChallengeTime() {
+		return challengeTime;
+	}
+
+	/**
+	 * Get an Authenticator that supplies credentials to a proxy, and to no
+	 * one else. An HttpURLConnection does not send the Proxy-Authorization
+	 * header of the request on the CONNECT request that opens a tunnel for
+	 * https, so it needs the credentials from an Authenticator. (The JVM
+	 * must be started with the Basic scheme enabled for tunnels; the
+	 * application does this in its main methods.)
+	 * @param user the username.
+	 * @param password the password.
+	 * @return the Authenticator.
+	 */
+	public static Authenticator getProxyAuthenticator(final String user, final String password) {
+		return new Authenticator() {
+			protected PasswordAuthentication getPasswordAuthentication() {
+				if (getRequestorType() != Authenticator.RequestorType.PROXY) return null;
+				return new PasswordAuthentication(user, password.toCharArray());
+			}
+		};
+	}
+
+	/**
+	 * Enable Basic authentication to proxies for CONNECT tunnels, which the
+	 * JDK disables by default, unless the property has been set explicitly.
+	 * This must be called before the first connection is made.
+	 */
+	public static void enableTunnelAuthentication() {
+		if (System.getProperty("jdk.http.auth.tunneling.disabledSchemes") == null) {
+			System.setProperty("jdk.http.auth.tunneling.disabledSchemes", "");
+		}
+	}
+
+	static SSLContext insecureSSLContext = null;
+
+	static synchronized SSLContext getInsecureSSLContext() throws Exception {
+		if (insecureSSLContext == null) {
+			insecureSSLContext = SSLContext.getInstance("TLS");
+			insecureSSLContext.init(null, new TrustManager[] { new AcceptAllX509TrustManager() }, new SecureRandom());
+		}
+		return insecureSSLContext;
+	}
+
+	static SSLSocketFactory getInsecureSocketFactory() throws Exception {
+		return getInsecureSSLContext().getSocketFactory();
+	}
+
+	//All-accepting X509 Trust Manager. It is an extended trust manager
+	//so that the TLS provider does not add its own host name check,
+	//which java.net.http would otherwise rely on.
+	static class AcceptAllX509TrustManager extends X509ExtendedTrustManager {
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+		public void checkClientTrusted(X509Certificate[] certs, String authType) { }
+		public void checkServerTrusted(X509Certificate[] certs, String authType) { }
+		public void checkClientTrusted(X509Certificate[] certs, String authType, Socket socket) { }
+		public void checkServerTrusted(X509Certificate[] certs, String authType, Socket socket) { }
+		public void checkClientTrusted(X509Certificate[] certs, String authType, SSLEngine engine) { }
+		public void checkServerTrusted(X509Certificate[] certs, String authType, SSLEngine engine) { }
+	}
+
+	//All-verifying HostnameVerifier
+	static class AcceptAllHostnameVerifier implements HostnameVerifier {
+		public boolean verify(String urlHost, SSLSession ssls) {
+			return true;
+		}
+	}
+
+	//An InputStream that counts the bytes read through it.
+	static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) count++;
+			return b;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+	}
+}
@@ -12,40 +12,78 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import javax.net.ServerSocketFactory;
-import javax.swing.event.*;
-import javax.swing.SwingUtilities;
-import java.util.EventListener;
+import java.util.concurrent.*;
 
 /**
  * A simple receiver for DICOM objects transmitted using the HTTP protocol.
  */
 public class HttpReceiver extends Thread implements HttpConnectionEventListener {
 
-	File dir;
+	/** The engine that starts a new HttpHandler thread for each connection. */
+	public static final int THREADS = 0;
+	/** The engine that services connections with Selectors on a fixed set of threads. */
+	public static final int NIO = 1;
+	/** The engine that runs each HttpHandler on a virtual thread (or a bounded pool). */
+	public static final int VIRTUAL = 2;
+
+	/** The default limit on the number of handlers in flight in the VIRTUAL engine. */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 10000;
+
+	File dir = null;
+	int threshold = BodyCapture.DEFAULT_THRESHOLD;
+	ResponseCompressor compressor = null;
 	int port;
 	boolean sendResponse;
 	String protocol = "http";
+	int engine;
 	ServerSocket serverSocket;
-	EventListenerList listenerList;
+	NioEngine nioEngine = null;
+	ExecutorService executor = null;
+	Semaphore inFlight = null;
+	int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	int idleTimeout = HttpHandler.DEFAULT_IDLE_TIMEOUT;
+	CopyOnWriteArrayList<HttpConnectionEventListener> listenerList;
 
 	/**
-	 * Class constructor; creates a new instance of the HttpReceiver.
+	 * Class constructor; creates a new instance of the HttpReceiver
+	 * using the THREADS engine.
 	 * @param port the port on which to listen for file transfers.
 	 * @param sendResponse true if the server is to send a report response
 	 * to the client when a connection is received, false otherwise.
 	 */
     public HttpReceiver (int port, boolean sendResponse) throws Exception {
+		this(port, sendResponse, THREADS);
+	}
 
-		listenerList = new EventListenerList();
-		this.dir = dir;
+	/**
+	 * Class constructor; creates a new instance of the HttpReceiver.
+	 * @param port the port on which to listen for file transfers.
+	 * @param sendResponse true if the server is to send a report response
+	 * to the client when a connection is received, false otherwise.
+	 * @param engine the engine to use to service connections (THREADS, NIO, or VIRTUAL).
+	 */
+    public HttpReceiver (int port, boolean sendResponse, int engine) throws Exception {
+
+		listenerList = new CopyOnWriteArrayList<HttpConnectionEventListener>();
 		this.port = port;
 		this.sendResponse = sendResponse;
+		this.engine = engine;
 
 		//Now get the Server Socket on the specified port.
 		//Note: this will throw an Exception if it fails.
-		ServerSocketFactory serverSocketFactory = ServerSocketFactory.getDefault();
-		serverSocket = serverSocketFactory.createServerSocket(port);
+		if (engine == NIO) {
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(port));
+			serverSocket = serverChannel.socket();
+			int nThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+			nioEngine = new NioEngine(serverChannel, sendResponse, nThreads, this);
+		}
+		else {
+			ServerSocketFactory serverSocketFactory = ServerSocketFactory.getDefault();
+			serverSocket = serverSocketFactory.createServerSocket(port);
+		}
 	}
 
 	/**
@@ -54,30 +92,167 @@ public class HttpReceiver extends Thread implements HttpConnectionEventListener
 	 */
 	public void run() {
 		//Send a startup message
-		sendHttpConnectionEvent(
-			this,HttpConnectionEvent.STARTUP,"Server started; port "+port+" open");
+		String startup = "Server started; port "+port+" open";
+		if ((engine == VIRTUAL) && !virtualThreadsAvailable()) {
+			startup += "; virtual threads are not available, so at most "
+						+ getMaxInFlight() + " connections are serviced at once";
+		}
+		sendHttpConnectionEvent(this,HttpConnectionEvent.STARTUP,startup);
+
+		//If this is an NIO receiver, let the engine do the work
+		if (nioEngine != null) {
+			nioEngine.run();
+			return;
+		}
+
+		//If this is a VIRTUAL receiver, get the executor and the in-flight limit
+		if (engine == VIRTUAL) {
+			executor = getExecutor(maxInFlight);
+			inFlight = new Semaphore(getMaxInFlight());
+		}
 
 		//Accept connections and handle them
 		while (!this.isInterrupted()) {
 			try {
+				//Wait until a handler is available
+				if (inFlight != null) inFlight.acquire();
+
 				//Wait for a connection
-				Socket socket = serverSocket.accept();
+				Socket socket;
+				try { socket = serverSocket.accept(); }
+				catch (Exception ex) {
+					if (inFlight != null) inFlight.release();
+					throw ex;
+				}
 
-				//Create a thread to handle the connection
-				HttpHandler handler = new HttpHandler(socket,sendResponse);
+				//Create a handler for the connection
+				final HttpHandler handler = new HttpHandler(socket,sendResponse);
 				handler.addHttpConnectionEventListener(this);
-				handler.start();
+				handler.setIdleTimeout(idleTimeout);
+				handler.setBodyCapture(threshold, dir);
+				handler.setCompressor(compressor);
+
+				if (executor == null) {
+					//Run the handler on its own thread
+					handler.start();
+				}
+				else {
+					//Run the handler in the executor
+					executor.execute(new Runnable() {
+						public void run() {
+							try { handler.run(); }
+							finally { inFlight.release(); }
+						}
+					});
+				}
 			}
 			catch (Exception ex) { break; }
 		}
+		if (executor != null) executor.shutdown();
+	}
+
+	/**
+	 * Set the maximum number of handlers in flight in the VIRTUAL engine.
+	 * When the limit is reached, the receiver stops accepting connections
+	 * until a handler finishes. This method must be called before the
+	 * receiver is started.
+	 * @param maxInFlight the maximum number of concurrent handlers.
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+	}
+
+	/**
+	 * Get the maximum number of handlers in flight in the VIRTUAL engine.
+	 * If virtual threads are not available in this JVM, the handlers run
+	 * in a bounded pool, and the limit is the size of the pool, so that
+	 * accepted connections do not wait in the pool's queue.
+	 * @return the maximum number of concurrent handlers.
+	 */
+	public int getMaxInFlight() {
+		return virtualThreadsAvailable() ? maxInFlight : getPoolSize(maxInFlight);
+	}
+
+	/**
+	 * Set the time that an idle persistent connection is kept open.
+	 * This method must be called before the receiver is started.
+	 * @param idleTimeout the idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		if (nioEngine != null) nioEngine.setIdleTimeout(idleTimeout);
+	}
+
+	/**
+	 * Set the parameters for capturing the content of requests. Bodies no
+	 * larger than the threshold are kept in memory and shown in full in
+	 * the connection report; larger bodies are shown only in part, and
+	 * are spooled to temporary files if a directory is specified.
+	 * This method must be called before the receiver is started.
+	 * @param threshold the maximum size of a body that is kept in memory.
+	 * @param dir the directory in which to spool larger bodies,
+	 * or null if they are not to be spooled.
+	 */
+	public void setBodyCapture(int threshold, File dir) {
+		this.threshold = threshold;
+		this.dir = dir;
+		if (nioEngine != null) nioEngine.setBodyCapture(threshold, dir);
+	}
+
+	/**
+	 * Set the compressor for responses. Responses are compressed with gzip
+	 * or deflate when the client accepts it. This method must be called
+	 * before the receiver is started.
+	 * @param compressor the compressor, or null if responses are not to be compressed.
+	 */
+	public void setCompressor(ResponseCompressor compressor) {
+		this.compressor = compressor;
+		if (nioEngine != null) nioEngine.setCompressor(compressor);
+	}
+
+	//Get an executor that runs each task on a new virtual thread.
+	//If virtual threads are not available in this JVM, get a
+	//bounded pool of platform threads instead.
+	static ExecutorService getExecutor(int maxInFlight) {
+		try {
+			return (ExecutorService)
+				Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception notAvailable) {
+			int nThreads = getPoolSize(maxInFlight);
+			return new ThreadPoolExecutor(
+							nThreads, nThreads,
+							60L, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>());
+		}
+	}
+
+	//Get the number of platform threads in the pool that replaces
+	//virtual threads when they are not available.
+	static int getPoolSize(int maxInFlight) {
+		return Math.min(maxInFlight, 16 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Determine whether the VIRTUAL engine runs on virtual threads in this JVM.
+	 * @return true if virtual threads are available; false otherwise.
+	 */
+	public static boolean virtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch (Exception notAvailable) { return false; }
 	}
 
 	/**
 	 * Stop the HttpReceiver.
 	 */
 	public void stopReceiver() {
+		if (nioEngine != null) nioEngine.stop();
 		try { serverSocket.close(); }
 		catch (Exception ignore) { }
+		if (compressor != null) compressor.close();
 		this.interrupt();
 		sendHttpConnectionEvent(
 			this,HttpConnectionEvent.SHUTDOWN,"Server shut down; port closed");
@@ -97,7 +272,7 @@ public class HttpReceiver extends Thread implements HttpConnectionEventListener
 	 * @param listener the HttpFileEventListener.
 	 */
 	public void addHttpConnectionEventListener(HttpConnectionEventListener listener) {
-		listenerList.add(HttpConnectionEventListener.class, listener);
+		listenerList.addIfAbsent(listener);
 	}
 
 	/**
@@ -105,23 +280,19 @@ public class HttpReceiver extends Thread implements HttpConnectionEventListener
 	 * @param listener the HttpFileEventListener.
 	 */
 	public void removeHttpConnectionEventListener(HttpConnectionEventListener listener) {
-		listenerList.remove(HttpConnectionEventListener.class, listener);
+		listenerList.remove(listener);
 	}
 
 	//Send an HttpConnectionEvent to all HttpConnectionEventListeners.
-	//The event is sent in the event thread to make it safe for GUI components.
+	//The event is sent in the thread on which it occurred, so listeners
+	//must be thread-safe. GUI components should register an
+	//HttpConnectionEventQueue and drain it in the event thread.
 	private void sendHttpConnectionEvent(Object object, int status, String message) {
-		final EventListener[] listeners = listenerList.getListeners(HttpConnectionEventListener.class);
-		if (listeners.length > 0) {
-			final HttpConnectionEvent event = new HttpConnectionEvent(object, status, message);
-			Runnable fireEvents = new Runnable() {
-				public void run() {
-					for (int i=0; i<listeners.length; i++) {
-						((HttpConnectionEventListener)listeners[i]).httpConnectionEventOccurred(event);
-					}
-				}
-			};
-			SwingUtilities.invokeLater(fireEvents);
+		if (!listenerList.isEmpty()) {
+			HttpConnectionEvent event = new HttpConnectionEvent(object, status, message);
+			for (HttpConnectionEventListener listener : listenerList) {
+				listener.httpConnectionEventOccurred(event);
+			}
 		}
 	}
 
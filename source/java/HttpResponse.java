@@ -8,59 +8,304 @@
 package org.rsna.httptest;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * A simple HTTP text response.
+ * A simple HTTP response. The response is built as bytes: text is
+ * encoded once, as it is written, into a buffer that is reused when
+ * the response is reset for the next request on a connection. The
+ * body is stored after space reserved for the headers, so that the
+ * headers can be placed in front of it and the whole response sent
+ * with a single write. For channels, the headers and body are also
+ * available as buffers for a gathering write.
  */
 public class HttpResponse {
 
-	StringBuffer response = null;
-	String extraHeaders = "";
+	static final Charset utf8 = Charset.forName("UTF-8");
+	static final int RESERVE = 1024;
+	static final String TEXT = "text/plain; charset=UTF-8";
+
+	byte[] buf = new byte[RESERVE + 4096];
+	int length = RESERVE;
+	byte[] zbuf = null;
+	byte[] head = new byte[RESERVE];
+	int headLength = 0;
+	byte[] extraHeaders = new byte[256];
+	int extraLength = 0;
+	int status = 200;
+	String reason = "OK";
+	String contentType = TEXT;
+	String protocol = "HTTP/1.0";
+	boolean keepAlive = false;
+	int timeout = 0;
+	boolean headOnly = false;
 
 	/**
 	 * Class constructor; creates an HTTP text response.
 	 */
-	public HttpResponse() {
-		response = new StringBuffer();
+	public HttpResponse() { }
+
+	/**
+	 * Clear the response so it can be reused for another request.
+	 * The buffers are kept.
+	 */
+	public void reset() {
+		length = RESERVE;
+		headLength = 0;
+		extraLength = 0;
+		status = 200;
+		reason = "OK";
+		contentType = TEXT;
+		protocol = "HTTP/1.0";
+		keepAlive = false;
+		timeout = 0;
+		headOnly = false;
+	}
+
+	/**
+	 * Set the status of the response. The default is 200 OK.
+	 * @param status the status code.
+	 * @param reason the reason phrase.
+	 */
+	public void setStatus(int status, String reason) {
+		this.status = status;
+		this.reason = reason;
 	}
-	
+
+	/**
+	 * Set the Content-Type of the response. The default is plain text in UTF-8.
+	 * @param contentType the content type.
+	 */
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+	}
+
 	/**
 	 * Set an extra header in the response.
-	 * @param string the string to append.
+	 * @param name the name of the header.
+	 * @param value the value of the header.
 	 */
 	public void setHeader(String name, String value) {
-		extraHeaders += name + ": " + value + "\r\n";
+		extra(name);
+		extra(": ");
+		extra(value);
+		extra("\r\n");
+	}
+
+	/**
+	 * Set the protocol version of the response status line.
+	 * @param protocol the protocol version (HTTP/1.0 or HTTP/1.1).
+	 */
+	public void setProtocol(String protocol) {
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Set whether the connection is to be kept open after the response.
+	 * @param keepAlive true if the connection is to be kept open.
+	 * @param timeout the time in milliseconds that the server
+	 * will keep an idle connection open.
+	 */
+	public void setKeepAlive(boolean keepAlive, int timeout) {
+		this.keepAlive = keepAlive;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Set whether the body is to be omitted when the response is sent,
+	 * as it must be in the response to a HEAD request. The headers still
+	 * contain the Content-Length of the body.
+	 * @param headOnly true if only the status line and headers are to be sent.
+	 */
+	public void setHeadOnly(boolean headOnly) {
+		this.headOnly = headOnly;
 	}
 
 	/**
-	 * Append a string to the response.
+	 * Append a string to the response, encoding it in UTF-8.
 	 * @param string the string to append.
 	 */
 	public void write(String string) {
-		response.append(string);
+		buf = ensureCapacity(buf, length, string.length());
+		int n = string.length();
+		for (int i=0; i<n; i++) {
+			char c = string.charAt(i);
+			if (c >= 0x80) {
+				//Encode the rest of the string the slow way.
+				byte[] bytes = string.substring(i).getBytes(utf8);
+				write(bytes, 0, bytes.length);
+				return;
+			}
+			buf[length++] = (byte)c;
+		}
+	}
+
+	/**
+	 * Append bytes to the response.
+	 * @param bytes the array containing the bytes.
+	 * @param off the index of the first byte to append.
+	 * @param len the number of bytes to append.
+	 */
+	public void write(byte[] bytes, int off, int len) {
+		buf = ensureCapacity(buf, length, len);
+		System.arraycopy(bytes, off, buf, length, len);
+		length += len;
 	}
 
 	/**
-	 * Send the response, prepending only the normal headers.
+	 * Compress the body of the response. The compressed body is built in a
+	 * second buffer, which is then swapped with the first, so both buffers
+	 * are reused for later responses. If compression does not make the
+	 * body smaller, the response is left unchanged.
+	 * @param deflater the Deflater, which must have been created with nowrap
+	 * true for gzip, or false for deflate (zlib format).
+	 * @param gzip true if the gzip header and trailer are to be added.
+	 * @param encoding the value of the Content-Encoding header.
+	 * @return the length of the compressed body, or -1 if the body was not compressed.
+	 */
+	public int deflate(Deflater deflater, boolean gzip, String encoding) {
+		int len = getContentLength();
+		if (zbuf == null) zbuf = new byte[buf.length];
+		int n = RESERVE;
+		if (gzip) {
+			zbuf = ensureCapacity(zbuf, n, 10);
+			zbuf[n++] = (byte)0x1f;
+			zbuf[n++] = (byte)0x8b;
+			zbuf[n++] = Deflater.DEFLATED;
+			for (int i=0; i<6; i++) zbuf[n++] = 0;
+			zbuf[n++] = (byte)0xff;
+		}
+		deflater.setInput(buf, RESERVE, len);
+		deflater.finish();
+		while (!deflater.finished()) {
+			zbuf = ensureCapacity(zbuf, n, 4096);
+			n += deflater.deflate(zbuf, n, zbuf.length - n);
+		}
+		if (gzip) {
+			CRC32 crc = new CRC32();
+			crc.update(buf, RESERVE, len);
+			zbuf = ensureCapacity(zbuf, n, 8);
+			n = putIntLE(zbuf, n, (int)crc.getValue());
+			n = putIntLE(zbuf, n, len);
+		}
+		if (n - RESERVE >= len) return -1;
+
+		byte[] b = buf;
+		buf = zbuf;
+		zbuf = b;
+		length = n;
+		setHeader("Content-Encoding", encoding);
+		setHeader("Vary", "Accept-Encoding");
+		return length - RESERVE;
+	}
+
+	private static int putIntLE(byte[] b, int n, int v) {
+		b[n++] = (byte)v;
+		b[n++] = (byte)(v >> 8);
+		b[n++] = (byte)(v >> 16);
+		b[n++] = (byte)(v >> 24);
+		return n;
+	}
+
+	/**
+	 * Get the number of bytes in the body of the response.
+	 * @return the length of the body.
+	 */
+	public int getContentLength() {
+		return length - RESERVE;
+	}
+
+	/**
+	 * Send the response, prepending the headers, in a single write
+	 * if the headers fit in the space reserved for them.
 	 * @param stream the socket's output stream.
 	 */
 	public void send(OutputStream stream) {
-		String headers =
-			"HTTP/1.0 200 OK\r\n" +
-			"Content-Type: text/plain\r\n" +
-			extraHeaders +
-			"Content-Length: " + response.length() + "\r\n\r\n";
-
+		encodeHead();
 		try {
-			stream.write(headers.getBytes());
-			if (response.length() > 0) {
-				stream.write(response.toString().getBytes());
+			if (headOnly) stream.write(head, 0, headLength);
+			else if (headLength <= RESERVE) {
+				int start = RESERVE - headLength;
+				System.arraycopy(head, 0, buf, start, headLength);
+				stream.write(buf, start, length - start);
+			}
+			else {
+				stream.write(head, 0, headLength);
+				stream.write(buf, RESERVE, length - RESERVE);
 			}
 		}
 		catch (Exception ex) {
 			System.out.println("Exception while writing the response\n"+ex);
 		}
 	}
-}
 
+	/**
+	 * Get the response as buffers for a gathering write to a channel.
+	 * The buffers share the response's arrays, so the response must not
+	 * be changed or reset until they have been written.
+	 * @return the buffers containing the headers and the body.
+	 */
+	public ByteBuffer[] getBuffers() {
+		encodeHead();
+		return new ByteBuffer[] {
+			ByteBuffer.wrap(head, 0, headLength),
+			ByteBuffer.wrap(buf, RESERVE, headOnly ? 0 : length - RESERVE)
+		};
+	}
+
+	//Encode the status line and headers into the head buffer.
+	private void encodeHead() {
+		headLength = 0;
+		head(protocol);
+		head(" ");
+		head(Integer.toString(status));
+		head(" ");
+		head(reason);
+		head("\r\nContent-Type: ");
+		head(contentType);
+		head("\r\n");
+		head = ensureCapacity(head, headLength, extraLength);
+		System.arraycopy(extraHeaders, 0, head, headLength, extraLength);
+		headLength += extraLength;
+		if (keepAlive) {
+			head("Connection: keep-alive\r\nKeep-Alive: timeout=");
+			head(Integer.toString(timeout / 1000));
+			head("\r\n");
+		}
+		else head("Connection: close\r\n");
+		head("Content-Length: ");
+		head(Integer.toString(getContentLength()));
+		head("\r\n\r\n");
+	}
+
+	private void head(String s) {
+		head = put(head, headLength, s);
+		headLength += s.length();
+	}
+
+	private void extra(String s) {
+		extraHeaders = put(extraHeaders, extraLength, s);
+		extraLength += s.length();
+	}
+
+	//Put the characters of a header string into an array, one byte per
+	//character (ISO-8859-1), growing the array if necessary.
+	private static byte[] put(byte[] dest, int n, String s) {
+		int len = s.length();
+		dest = ensureCapacity(dest, n, len);
+		for (int i=0; i<len; i++) dest[n+i] = (byte)s.charAt(i);
+		return dest;
+	}
 
+	private static byte[] ensureCapacity(byte[] array, int length, int more) {
+		if (length + more > array.length) {
+			byte[] bigger = new byte[Math.max(2 * array.length, length + more)];
+			System.arraycopy(array, 0, bigger, 0, length);
+			return bigger;
+		}
+		return array;
+	}
+}
@@ -25,6 +25,15 @@ public class HttpServer extends JPanel {
 	ScrollableEditorPane editor;
 	Font font;
 	HttpReceiver httpReceiver;
+	HttpConnectionEventQueue eventQueue;
+	javax.swing.Timer eventTimer;
+	java.util.List<HttpConnectionEvent> eventBatch;
+	LogBuffer log;
+
+	//The interval at which connection events are displayed, and the
+	//maximum number of events displayed in one interval.
+	static final int EVENT_INTERVAL = 100;
+	static final int EVENT_BATCH_SIZE = 200;
 
 	/**
 	 * Class constructor; provides the user interface and the actual
@@ -40,14 +49,72 @@ public class HttpServer extends JPanel {
 		scroller.setViewportView(editor);
 		this.add(scroller,BorderLayout.CENTER);
 		editor.setFont(font);
+
+		//Collect the events from the receiver in a queue and
+		//display them in batches, so that a busy server cannot
+		//flood the event thread.
+		eventQueue = new HttpConnectionEventQueue();
+		eventBatch = new ArrayList<HttpConnectionEvent>();
+		log = new LogBuffer();
+		eventTimer = new javax.swing.Timer(EVENT_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				displayEvents();
+			}
+		});
+		eventTimer.start();
+	}
+
+	//Append the events in the queue to the log and the display.
+	//The document is trimmed and extended with at most one removal
+	//and one insertion, so it always holds the text of the log.
+	private void displayEvents() {
+		eventBatch.clear();
+		eventQueue.drain(EVENT_BATCH_SIZE, eventBatch);
+		StringBuffer sb = new StringBuffer();
+		long evicted = 0;
+		for (HttpConnectionEvent event : eventBatch) {
+			evicted += log.add(event.message);
+			sb.append(event.message);
+		}
+		String dropSummary = eventQueue.getDropSummary();
+		if (dropSummary.length() > 0) {
+			evicted += log.add(dropSummary);
+			sb.append(dropSummary);
+		}
+		eventBatch.clear();
+		if (sb.length() == 0) return;
+		try {
+			javax.swing.text.Document doc = editor.getDocument();
+			int docLength = doc.getLength();
+			if (evicted >= docLength) {
+				//The whole document is evicted, and perhaps some
+				//of the new text; replace it with the log.
+				editor.setText(log.toString());
+			}
+			else {
+				if (evicted > 0) doc.remove(0, (int)evicted);
+				doc.insertString(doc.getLength(), sb.toString(), null);
+			}
+			editor.setCaretPosition(doc.getLength());
+		}
+		catch (Exception ignore) { }
 	}
 
 	//Class to provide the buttons and text selections
-	class Header extends JPanel implements ActionListener,
-										   HttpConnectionEventListener {
+	class Header extends JPanel implements ActionListener {
 		public JTextField port;
 		public JButton startStop;
 		public JCheckBox sendResponse;
+		public JComboBox<String> engine;
+		public JTextField maxInFlight;
+		public JTextField threshold;
+		public JCheckBox spool;
+		public JCheckBox compress;
+		public JTextField compressMin;
+		public JComboBox<Integer> compressLevel;
+		public JTextField logEntries;
+		public JTextField logMB;
+		public JCheckBox archive;
 		public JButton clear;
 		boolean running = false;
 		Dimension buttonSize;
@@ -55,7 +122,7 @@ public class HttpServer extends JPanel {
 
 		public Header() {
 			super();
-			this.setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
+			this.setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
 			this.setBorder(BorderFactory.createEmptyBorder(2,0,4,0));
 			port = new JTextField(defaultPort,6);
 			port.setFont(font);
@@ -66,27 +133,125 @@ public class HttpServer extends JPanel {
 			startStop.addActionListener(this);
 			sendResponse = new JCheckBox("Send text response page");
 			sendResponse.setSelected(true);
+			engine = new JComboBox<String>(new String[] {"Threads", "NIO", "Virtual"});
+			engine.setSelectedIndex(HttpReceiver.THREADS);
+			engine.setMaximumSize(engine.getPreferredSize());
+			engine.addActionListener(this);
+			maxInFlight = new JTextField(Integer.toString(HttpReceiver.DEFAULT_MAX_IN_FLIGHT),6);
+			maxInFlight.setFont(font);
+			maxInFlight.setMaximumSize(maxInFlight.getPreferredSize());
+			maxInFlight.setEnabled(false);
+			maxInFlight.setToolTipText(
+				"Maximum concurrent handlers"
+				+ (HttpReceiver.virtualThreadsAvailable() ? "" :
+					" (virtual threads are not available; limited to a pool of at most "
+					+ HttpReceiver.getPoolSize(HttpReceiver.DEFAULT_MAX_IN_FLIGHT) + " threads)"));
+			threshold = new JTextField(Integer.toString(BodyCapture.DEFAULT_THRESHOLD / 1024),6);
+			threshold.setFont(font);
+			threshold.setMaximumSize(threshold.getPreferredSize());
+			spool = new JCheckBox("Spool larger bodies to disk");
+			spool.setSelected(false);
+			spool.setToolTipText(
+				"Spool to " + System.getProperty("java.io.tmpdir")
+				+ " (at most " + (BodyCapture.DEFAULT_MAX_SPOOL_SIZE / (1024 * 1024))
+				+ " MB is kept; the files are deleted on exit)");
+			compress = new JCheckBox("Compress responses");
+			compress.setSelected(false);
+			compressMin = new JTextField(Integer.toString(ResponseCompressor.DEFAULT_MIN_SIZE),6);
+			compressMin.setFont(font);
+			compressMin.setMaximumSize(compressMin.getPreferredSize());
+			compressLevel = new JComboBox<Integer>(new Integer[] {1,2,3,4,5,6,7,8,9});
+			compressLevel.setSelectedItem(ResponseCompressor.DEFAULT_LEVEL);
+			compressLevel.setMaximumSize(compressLevel.getPreferredSize());
+			logEntries = new JTextField(Integer.toString(LogBuffer.DEFAULT_MAX_ENTRIES),6);
+			logEntries.setFont(font);
+			logEntries.setMaximumSize(logEntries.getPreferredSize());
+			logMB = new JTextField(Long.toString(LogBuffer.DEFAULT_MAX_CHARS / (1024 * 1024)),4);
+			logMB.setFont(font);
+			logMB.setMaximumSize(logMB.getPreferredSize());
+			archive = new JCheckBox("Archive old entries");
+			archive.setSelected(false);
+			archive.setToolTipText(
+				"Append evicted entries to " + getArchiveFile());
 			clear = new JButton("Clear");
 			clear.addActionListener(this);
 			running = false;
 
-			this.add(Box.createHorizontalStrut(5));
-			this.add(new JLabel("Port:"));
-			this.add(Box.createHorizontalStrut(3));
-			this.add(port);
-			this.add(Box.createHorizontalStrut(10));
-			this.add(startStop);
-			this.add(Box.createHorizontalStrut(15));
-			this.add(sendResponse);
-			this.add(Box.createHorizontalGlue());
-			this.add(clear);
-			this.add(Box.createHorizontalStrut(5));
+			Box row = Box.createHorizontalBox();
+			row.add(Box.createHorizontalStrut(5));
+			row.add(new JLabel("Port:"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(port);
+			row.add(Box.createHorizontalStrut(10));
+			row.add(startStop);
+			row.add(Box.createHorizontalStrut(15));
+			row.add(sendResponse);
+			row.add(Box.createHorizontalGlue());
+			row.add(clear);
+			row.add(Box.createHorizontalStrut(5));
+			this.add(row);
+			this.add(Box.createVerticalStrut(4));
+
+			row = Box.createHorizontalBox();
+			row.add(Box.createHorizontalStrut(5));
+			row.add(new JLabel("Engine:"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(engine);
+			row.add(Box.createHorizontalStrut(10));
+			row.add(new JLabel("Max:"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(maxInFlight);
+			row.add(Box.createHorizontalStrut(15));
+			row.add(new JLabel("Show bodies up to (KB):"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(threshold);
+			row.add(Box.createHorizontalStrut(10));
+			row.add(spool);
+			row.add(Box.createHorizontalGlue());
+			this.add(row);
+			this.add(Box.createVerticalStrut(4));
+
+			row = Box.createHorizontalBox();
+			row.add(Box.createHorizontalStrut(5));
+			row.add(compress);
+			row.add(Box.createHorizontalStrut(10));
+			row.add(new JLabel("Min size (bytes):"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(compressMin);
+			row.add(Box.createHorizontalStrut(10));
+			row.add(new JLabel("Level:"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(compressLevel);
+			row.add(Box.createHorizontalStrut(15));
+			row.add(new JLabel("Keep last:"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(logEntries);
+			row.add(Box.createHorizontalStrut(3));
+			row.add(new JLabel("entries or"));
+			row.add(Box.createHorizontalStrut(3));
+			row.add(logMB);
+			row.add(Box.createHorizontalStrut(3));
+			row.add(new JLabel("MB"));
+			row.add(Box.createHorizontalStrut(10));
+			row.add(archive);
+			row.add(Box.createHorizontalGlue());
+			this.add(row);
+		}
+
+		private void setCompressionEnabled(boolean enabled) {
+			compress.setEnabled(enabled);
+			compressMin.setEnabled(enabled);
+			compressLevel.setEnabled(enabled);
+		}
+
+		private void setLogEnabled(boolean enabled) {
+			logEntries.setEnabled(enabled);
+			logMB.setEnabled(enabled);
+			archive.setEnabled(enabled);
 		}
 
-		public void httpConnectionEventOccurred(HttpConnectionEvent event) {
-			int len = editor.getDocument().getLength(); // same value as getText().length();
-			editor.setCaretPosition(len);  // place caret at the end (with no selection)
-			editor.replaceSelection(event.message); // there is no selection, so inserts at caret
+		private File getArchiveFile() {
+			return new File(System.getProperty("java.io.tmpdir"), "HttpTest-server.log");
 		}
 
 		public void actionPerformed(ActionEvent e) {
@@ -97,11 +262,52 @@ public class HttpServer extends JPanel {
 					String portText = port.getText().trim();
 					try {
 						int portNumber = Integer.parseInt(portText);
-						httpReceiver = new HttpReceiver(portNumber,sendResponse.isSelected());
-						httpReceiver.addHttpConnectionEventListener(this);
+						int max = HttpReceiver.DEFAULT_MAX_IN_FLIGHT;
+						if (engine.getSelectedIndex() == HttpReceiver.VIRTUAL) {
+							max = Integer.parseInt(maxInFlight.getText().trim());
+						}
+						int thresholdKB = Integer.parseInt(threshold.getText().trim());
+						File dir = null;
+						if (spool.isSelected()) dir = new File(System.getProperty("java.io.tmpdir"));
+						ResponseCompressor compressor = null;
+						if (compress.isSelected()) {
+							compressor = new ResponseCompressor(
+								Integer.parseInt(compressMin.getText().trim()),
+								((Integer)compressLevel.getSelectedItem()).intValue());
+						}
+						int maxEntries = Integer.parseInt(logEntries.getText().trim());
+						long maxMB = Long.parseLong(logMB.getText().trim());
+						httpReceiver = new HttpReceiver(
+											portNumber,
+											sendResponse.isSelected(),
+											engine.getSelectedIndex());
+						httpReceiver.setMaxInFlight(max);
+						httpReceiver.setBodyCapture(thresholdKB * 1024, dir);
+						httpReceiver.setCompressor(compressor);
+						httpReceiver.addHttpConnectionEventListener(eventQueue);
+						log.setLimits(maxEntries, maxMB * 1024 * 1024);
+						if (archive.isSelected()) {
+							log.setArchive(
+								getArchiveFile(),
+								LogBuffer.DEFAULT_MAX_FILE_SIZE,
+								LogBuffer.DEFAULT_MAX_BACKUPS);
+						}
+						else log.setArchive(null, 0, 0);
 						httpReceiver.start();
+						if ((engine.getSelectedIndex() == HttpReceiver.VIRTUAL)
+								&& !HttpReceiver.virtualThreadsAvailable()) {
+							HttpTest.message.setText(
+								"Virtual threads are not available; at most "
+								+ httpReceiver.getMaxInFlight() + " connections are serviced at once");
+						}
 						startStop.setText("Stop");
 						startStop.setPreferredSize(buttonSize);
+						engine.setEnabled(false);
+						maxInFlight.setEnabled(false);
+						threshold.setEnabled(false);
+						spool.setEnabled(false);
+						setCompressionEnabled(false);
+						setLogEnabled(false);
 						running = true;
 					}
 					catch (Exception ex) {
@@ -114,10 +320,20 @@ public class HttpServer extends JPanel {
 					httpReceiver = null;
 					startStop.setText("Start");
 					startStop.setPreferredSize(buttonSize);
+					engine.setEnabled(true);
+					maxInFlight.setEnabled(engine.getSelectedIndex() == HttpReceiver.VIRTUAL);
+					threshold.setEnabled(true);
+					spool.setEnabled(true);
+					setCompressionEnabled(true);
+					setLogEnabled(true);
 					running = false;
 				}
 			}
+			else if (source.equals(engine)) {
+				maxInFlight.setEnabled(engine.getSelectedIndex() == HttpReceiver.VIRTUAL);
+			}
 			else if (source.equals(clear)) {
+				log.clear();
 				editor.setText("");
 			}
 		}
@@ -35,7 +35,9 @@ public class HttpTest extends JFrame implements ChangeListener {
 	JPanel main;
 	Authorization authorization;
 	Proxy proxy;
+	LocalProxy localProxy;
 	HttpClient client;
+	BatchClient batch;
 	HttpServer server;
 	IPPane ipPane;
 	public static Message message;
@@ -50,25 +52,30 @@ public class HttpTest extends JFrame implements ChangeListener {
 	public HttpTest() {
 		setTitle(windowTitle);
 		System.setProperty("sun.net.http.allowRestrictedHeaders", "true");
+		HttpProbe.enableTunnelAuthentication();
 		addWindowListener(new WindowAdapter() {
 				public void windowClosing(WindowEvent evt) { exitForm(evt); } });
 
 		main = new JPanel(new BorderLayout());
 		client = new HttpClient();
+		batch = new BatchClient(client);
 		server = new HttpServer();
 		ipPane = new IPPane();
 		SysProps sysProps = new SysProps();
 		EnvProps envProps = new EnvProps();
  		Instructions instructions = new Instructions();
 		proxy = new Proxy();
+		localProxy = new LocalProxy();
 		authorization = new Authorization();
 		message = new Message();
 
 		tabbedPane = new JTabbedPane();
 		tabbedPane.addChangeListener(this);
 		tabbedPane.addTab("HTTP Client",client);
+		tabbedPane.addTab("Batch",batch);
 		tabbedPane.addTab("Authentication",authorization);
 		tabbedPane.addTab("Proxy",proxy);
+		tabbedPane.addTab("Local Proxy",localProxy);
 		tabbedPane.addTab("HTTP Server",server);
 		tabbedPane.addTab("IP Address",ipPane);
 		tabbedPane.addTab("SysProps",sysProps);
@@ -0,0 +1,166 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A builder for a single-line JSON object, for the machine-readable
+ * output of the headless mode. Members are written in the order in
+ * which they are added.
+ */
+public class JsonLine {
+
+	StringBuffer sb = new StringBuffer("{");
+	boolean empty = true;
+
+	/**
+	 * Class constructor; creates an empty object.
+	 */
+	public JsonLine() { }
+
+	/**
+	 * Add a string member. A null value is written as null.
+	 * @param name the name of the member.
+	 * @param value the value of the member.
+	 * @return this object.
+	 */
+	public JsonLine put(String name, String value) {
+		name(name);
+		if (value == null) sb.append("null");
+		else quote(sb, value);
+		return this;
+	}
+
+	/**
+	 * Add a numeric member.
+	 * @param name the name of the member.
+	 * @param value the value of the member.
+	 * @return this object.
+	 */
+	public JsonLine put(String name, long value) {
+		name(name);
+		sb.append(value);
+		return this;
+	}
+
+	/**
+	 * Add a numeric member, rounded to three decimal places.
+	 * @param name the name of the member.
+	 * @param value the value of the member.
+	 * @return this object.
+	 */
+	public JsonLine put(String name, double value) {
+		name(name);
+		if (Double.isNaN(value) || Double.isInfinite(value)) sb.append("null");
+		else sb.append(Math.round(value * 1000.0) / 1000.0);
+		return this;
+	}
+
+	/**
+	 * Add a boolean member.
+	 * @param name the name of the member.
+	 * @param value the value of the member.
+	 * @return this object.
+	 */
+	public JsonLine put(String name, boolean value) {
+		name(name);
+		sb.append(value);
+		return this;
+	}
+
+	/**
+	 * Add a member whose value is an object containing the entries of
+	 * a map of header fields. Fields with several values are written
+	 * as arrays; entries with a null key (the status line) are skipped.
+	 * @param name the name of the member.
+	 * @param map the header fields.
+	 * @return this object.
+	 */
+	public JsonLine put(String name, Map<String,List<String>> map) {
+		name(name);
+		sb.append("{");
+		boolean first = true;
+		for (Map.Entry<String,List<String>> entry : map.entrySet()) {
+			if (entry.getKey() == null) continue;
+			if (!first) sb.append(",");
+			first = false;
+			quote(sb, entry.getKey());
+			sb.append(":");
+			List<String> values = entry.getValue();
+			if (values.size() == 1) quote(sb, values.get(0));
+			else {
+				sb.append("[");
+				for (int i=0; i<values.size(); i++) {
+					if (i > 0) sb.append(",");
+					quote(sb, values.get(i));
+				}
+				sb.append("]");
+			}
+		}
+		sb.append("}");
+		return this;
+	}
+
+	/**
+	 * Add a member whose value is an array of objects.
+	 * @param name the name of the member.
+	 * @param objects the objects.
+	 * @return this object.
+	 */
+	public JsonLine put(String name, List<JsonLine> objects) {
+		name(name);
+		sb.append("[");
+		for (int i=0; i<objects.size(); i++) {
+			if (i > 0) sb.append(",");
+			sb.append(objects.get(i).toString());
+		}
+		sb.append("]");
+		return this;
+	}
+
+	private void name(String name) {
+		if (!empty) sb.append(",");
+		empty = false;
+		quote(sb, name);
+		sb.append(":");
+	}
+
+	/**
+	 * Append a string to a buffer as a quoted, escaped JSON string.
+	 * @param sb the buffer.
+	 * @param s the string.
+	 */
+	static void quote(StringBuffer sb, String s) {
+		sb.append('"');
+		int n = s.length();
+		for (int i=0; i<n; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':  sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+					else sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Get the JSON text of the object, without a line terminator.
+	 * @return the JSON text.
+	 */
+	public String toString() {
+		return sb.toString() + "}";
+	}
+}
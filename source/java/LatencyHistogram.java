@@ -0,0 +1,151 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of latencies in microseconds, with a fixed
+ * number of buckets. Values below 64 are counted exactly; above that,
+ * each power of two is divided into 32 buckets, so a percentile is
+ * reported to within about 3% of the recorded value. Recording a value
+ * takes a few atomic operations and no locks or allocation.
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BITS = 5;
+	static final int SUB_COUNT = 1 << SUB_BITS;
+	static final int LINEAR = 2 * SUB_COUNT;
+	static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_COUNT;
+
+	AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	AtomicLong count = new AtomicLong();
+	AtomicLong sum = new AtomicLong();
+	AtomicLong max = new AtomicLong();
+
+	/**
+	 * Class constructor; creates an empty histogram.
+	 */
+	public LatencyHistogram() { }
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public void recordNanos(long nanos) {
+		record(Math.max(0, nanos / 1000));
+	}
+
+	/**
+	 * Record a latency.
+	 * @param micros the latency in microseconds.
+	 */
+	public void record(long micros) {
+		if (micros < 0) micros = 0;
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get())) {
+			if (max.compareAndSet(m, micros)) break;
+		}
+	}
+
+	static int index(long v) {
+		if (v < LINEAR) return (int)v;
+		int k = 63 - Long.numberOfLeadingZeros(v);
+		int shift = k - SUB_BITS;
+		int top = (int)(v >>> shift);
+		return LINEAR + (shift - 1) * SUB_COUNT + (top - SUB_COUNT);
+	}
+
+	//Get the highest value that is counted in a bucket.
+	static long highestValue(int index) {
+		if (index < LINEAR) return index;
+		int shift = (index - LINEAR) / SUB_COUNT + 1;
+		long top = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return (top << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * Get the number of values recorded.
+	 * @return the number of values.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the largest value recorded.
+	 * @return the largest value in microseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get the mean of the values recorded.
+	 * @return the mean in microseconds, or 0 if no values were recorded.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double)sum.get() / n;
+	}
+
+	/**
+	 * Get the value at a percentile.
+	 * @param percentile the percentile (0 to 100).
+	 * @return the value in microseconds, which is no larger than the largest
+	 * value recorded, or 0 if no values were recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(n * Math.min(100.0, percentile) / 100.0));
+		long cumulative = 0;
+		for (int i=0; i<BUCKETS; i++) {
+			cumulative += counts.get(i);
+			if (cumulative >= target) return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Get a one-line summary of the histogram in milliseconds.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		return "p50 " + ms(getPercentile(50))
+				+ "  p90 " + ms(getPercentile(90))
+				+ "  p99 " + ms(getPercentile(99))
+				+ "  p99.9 " + ms(getPercentile(99.9))
+				+ "  max " + ms(getMax())
+				+ "  mean " + ms(getMean());
+	}
+
+	/**
+	 * Add the percentiles of the histogram to a JSON object, in milliseconds.
+	 * @param json the object.
+	 * @param prefix the prefix for the member names.
+	 * @return the object.
+	 */
+	public JsonLine addTo(JsonLine json, String prefix) {
+		return json
+			.put(prefix + "P50", getPercentile(50) / 1000.0)
+			.put(prefix + "P90", getPercentile(90) / 1000.0)
+			.put(prefix + "P99", getPercentile(99) / 1000.0)
+			.put(prefix + "P999", getPercentile(99.9) / 1000.0)
+			.put(prefix + "Max", getMax() / 1000.0)
+			.put(prefix + "Mean", getMean() / 1000.0);
+	}
+
+	private static String ms(double micros) {
+		return String.format("%.3f", micros / 1000.0);
+	}
+}
@@ -0,0 +1,321 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.net.CookieStore;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator that drives a URL with copies of an HttpProbe.
+ * <p>
+ * In the CLOSED loop mode, a fixed number of workers each send a request,
+ * wait for the response, and send the next one. In the OPEN loop mode,
+ * requests are started at a fixed rate, whether or not earlier requests
+ * have completed, and run on a pool of workers. The latency of each
+ * request in the open loop is measured from the time at which it was
+ * scheduled to start, not the time at which a worker got to it, so that
+ * the time requests spend waiting behind a slow server is counted (the
+ * correction for coordinated omission). The service time, measured from
+ * the actual start, is recorded separately.
+ * <p>
+ * A run ends when its duration has elapsed, when the maximum number of
+ * requests have been started, or when it is stopped. When an open loop
+ * run is stopped, the requests that are waiting for a worker are dropped
+ * and counted, rather than sent.
+ * <p>
+ * When the probe uses the Http2Engine, the report includes the engine's
+ * statistics of the streams multiplexed over its connections.
+ */
+public class LoadGenerator {
+
+	/** The mode in which each worker sends requests back to back. */
+	public static final int CLOSED = 0;
+	/** The mode in which requests are started at a fixed rate. */
+	public static final int OPEN = 1;
+
+	HttpProbe template;
+	int mode;
+	int workers;
+	double rate;
+	long duration;
+	long maxRequests;
+
+	LatencyHistogram latency = new LatencyHistogram();
+	LatencyHistogram service = new LatencyHistogram();
+	AtomicLong started = new AtomicLong();
+	AtomicLong completed = new AtomicLong();
+	AtomicLong dropped = new AtomicLong();
+	AtomicLong errors = new AtomicLong();
+	AtomicLong bytes = new AtomicLong();
+	AtomicLong avoided = new AtomicLong();
+	AtomicLong challenged = new AtomicLong();
+	AtomicLong redirects = new AtomicLong();
+	AtomicLong redirectLimits = new AtomicLong();
+	ConcurrentHashMap<String,AtomicLong> errorsByType = new ConcurrentHashMap<String,AtomicLong>();
+	volatile boolean stopped = false;
+	long startTime = 0;
+	long deadline = 0;
+	volatile long endTime = 0;
+	Http2Engine http2Engine = null;
+
+	/**
+	 * Class constructor.
+	 * @param template the probe whose settings are used for every request.
+	 * @param mode CLOSED or OPEN.
+	 * @param workers the number of workers; in the OPEN mode, this is the
+	 * maximum number of requests in progress at once.
+	 * @param rate the number of requests started per second in the OPEN mode.
+	 * @param duration the maximum duration of the run in milliseconds,
+	 * or 0 for no limit.
+	 * @param maxRequests the maximum number of requests, or 0 for no limit.
+	 */
+	public LoadGenerator(HttpProbe template, int mode, int workers,
+						 double rate, long duration, long maxRequests) {
+		this.template = template;
+		this.mode = mode;
+		this.workers = Math.max(1, workers);
+		this.rate = rate;
+		this.duration = Math.max(0, duration);
+		this.maxRequests = Math.max(0, maxRequests);
+		if ((mode == OPEN) && !(rate > 0)) {
+			throw new IllegalArgumentException("The open loop mode requires a rate.");
+		}
+		if ((this.duration == 0) && (this.maxRequests == 0)) {
+			throw new IllegalArgumentException("A duration or a number of requests is required.");
+		}
+	}
+
+	/**
+	 * Run the load, returning when all the requests have completed.
+	 */
+	public void run() {
+		if (template.engine == HttpProbe.HTTP2) {
+			try {
+				http2Engine = Http2Engine.getEngine(template.insecure, template.proxy);
+				http2Engine.resetStatistics();
+			}
+			catch (Exception ex) { http2Engine = null; }
+		}
+		startTime = System.nanoTime();
+		deadline = (duration > 0) ? startTime + duration * 1000000L : Long.MAX_VALUE;
+		if (mode == CLOSED) runClosed();
+		else runOpen();
+		endTime = System.nanoTime();
+	}
+
+	/**
+	 * Stop the run. Requests in progress are allowed to complete;
+	 * requests that are waiting for a worker are dropped.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	//Claim the next request, or return false if the run is over.
+	private boolean claim() {
+		if (stopped || (System.nanoTime() >= deadline)) return false;
+		if (maxRequests == 0) {
+			started.incrementAndGet();
+			return true;
+		}
+		long n;
+		do {
+			n = started.get();
+			if (n >= maxRequests) return false;
+		} while (!started.compareAndSet(n, n+1));
+		return true;
+	}
+
+	private void runClosed() {
+		Thread[] threads = new Thread[workers];
+		for (int i=0; i<workers; i++) {
+			threads[i] = new Thread("LoadGenerator-" + i) {
+				public void run() {
+					while (claim()) {
+						long t = System.nanoTime();
+						send(t, t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			try { thread.join(); }
+			catch (InterruptedException ex) { stopped = true; }
+		}
+	}
+
+	private void runOpen() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+										workers, workers,
+										60L, TimeUnit.SECONDS,
+										new LinkedBlockingQueue<Runnable>());
+		long interval = (long)(1000000000.0 / rate);
+		long next = startTime;
+		while (true) {
+			long wait = next - System.nanoTime();
+			if (wait > 0) LockSupport.parkNanos(wait);
+			if ((next >= deadline) || !claim()) break;
+			final long intended = next;
+			pool.execute(new Runnable() {
+				public void run() {
+					if (stopped) dropped.incrementAndGet();
+					else send(intended, System.nanoTime());
+				}
+			});
+			next += interval;
+		}
+		pool.shutdown();
+		try { pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS); }
+		catch (InterruptedException ex) { pool.shutdownNow(); }
+	}
+
+	//Send one request and record the result.
+	private void send(long intended, long start) {
+		HttpProbe probe = new HttpProbe(template).execute();
+		long end = System.nanoTime();
+		latency.recordNanos(end - intended);
+		service.recordNanos(end - start);
+		completed.incrementAndGet();
+		bytes.addAndGet(probe.getBytes());
+		if (probe.isPreemptive() && !probe.wasChallenged()) avoided.incrementAndGet();
+		if (probe.wasChallenged()) challenged.incrementAndGet();
+		RedirectChain chain = probe.getRedirects();
+		if (chain != null) {
+			redirects.addAndGet(chain.size());
+			if (chain.isLimitReached()) redirectLimits.incrementAndGet();
+		}
+		String type = probe.getErrorType();
+		if ((type == null) && (probe.getResponseCode() >= 400)) {
+			type = "HTTP " + probe.getResponseCode();
+		}
+		if (type != null) {
+			errors.incrementAndGet();
+			AtomicLong count = errorsByType.get(type);
+			if (count == null) {
+				AtomicLong zero = new AtomicLong();
+				count = errorsByType.putIfAbsent(type, zero);
+				if (count == null) count = zero;
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	//Get the bounded store of the cookies of the requests, if there is one.
+	private BoundedCookieStore getCookieStore() {
+		if (template.cookies == null) return null;
+		CookieStore store = template.cookies.getCookieStore();
+		return (store instanceof BoundedCookieStore) ? (BoundedCookieStore)store : null;
+	}
+
+	//Get the elapsed time of the run in seconds.
+	private double getElapsed() {
+		if (startTime == 0) return 0;
+		long end = (endTime != 0) ? endTime : System.nanoTime();
+		return (end - startTime) / 1000000000.0;
+	}
+
+	/**
+	 * Get a report of the results so far.
+	 * @return the report.
+	 */
+	public String getReport() {
+		double elapsed = getElapsed();
+		long n = completed.get();
+		StringBuffer sb = new StringBuffer();
+		sb.append("Load test: " + template.address + "\n");
+		sb.append("Method: " + template.method + "\n");
+		if (mode == CLOSED) {
+			sb.append("Mode: closed loop, " + workers + " workers\n");
+		}
+		else {
+			sb.append("Mode: open loop, " + String.format("%.1f", rate)
+						+ " requests/s, up to " + workers + " in progress\n");
+		}
+		sb.append((endTime != 0) ? "Finished" : (stopped ? "Stopping" : "Running"));
+		sb.append(": " + n + " requests completed in " + String.format("%.3f", elapsed) + " s");
+		long inProgress = started.get() - n - dropped.get();
+		if (inProgress > 0) sb.append(" (" + inProgress + " in progress)");
+		sb.append("\n");
+		if (dropped.get() > 0) {
+			sb.append("Dropped: " + dropped.get() + " requests waiting to start when the run was stopped\n");
+		}
+		if (elapsed > 0) {
+			sb.append("Throughput: " + String.format("%.1f", n / elapsed) + " requests/s, "
+						+ String.format("%.1f", bytes.get() / elapsed / 1024.0) + " KB/s\n");
+		}
+		sb.append("Errors: " + errors.get() + "\n");
+		Map<String,AtomicLong> sorted = new TreeMap<String,AtomicLong>(errorsByType);
+		for (Map.Entry<String,AtomicLong> entry : sorted.entrySet()) {
+			sb.append("    " + entry.getKey() + ": " + entry.getValue().get() + "\n");
+		}
+		sb.append("\nLatency (ms):\n    " + latency.getSummary() + "\n");
+		if (mode == OPEN) {
+			sb.append("Service time (ms), not counting time waiting to start:\n    "
+						+ service.getSummary() + "\n");
+		}
+		if (template.digest && (template.credentials != null)) {
+			sb.append("\nDigest authentication: " + avoided.get() + " challenge round trips avoided, "
+						+ challenged.get() + " requests challenged\n");
+		}
+		if (template.maxRedirects > 0) {
+			sb.append("\nRedirects: " + redirects.get() + " followed, "
+						+ redirectLimits.get() + " requests reached the limit of " + template.maxRedirects + "\n");
+		}
+		if (template.cache != null) sb.append("\n" + template.cache.getSummary() + "\n");
+		BoundedCookieStore cookieStore = getCookieStore();
+		if (cookieStore != null) sb.append("\n" + cookieStore.getSummary() + "\n");
+		if (http2Engine != null) sb.append("\n" + http2Engine.getStatistics());
+		return sb.toString();
+	}
+
+	/**
+	 * Get the results as a JSON object.
+	 * @return the results.
+	 */
+	public JsonLine toJson() {
+		double elapsed = getElapsed();
+		long n = completed.get();
+		JsonLine json = new JsonLine()
+			.put("type", "load")
+			.put("url", template.address)
+			.put("method", template.method)
+			.put("mode", (mode == CLOSED) ? "closed" : "open")
+			.put("workers", workers);
+		if (mode == OPEN) json.put("rate", rate);
+		json.put("completed", n)
+			.put("dropped", dropped.get())
+			.put("errors", errors.get())
+			.put("seconds", elapsed)
+			.put("requestsPerSecond", (elapsed > 0) ? n / elapsed : 0.0)
+			.put("bytes", bytes.get());
+		latency.addTo(json, "latency");
+		if (mode == OPEN) service.addTo(json, "service");
+		if (template.digest && (template.credentials != null)) {
+			json.put("digestAvoided", avoided.get())
+				.put("digestChallenged", challenged.get());
+		}
+		if (template.maxRedirects > 0) {
+			json.put("redirects", redirects.get())
+				.put("redirectLimitReached", redirectLimits.get());
+		}
+		if (template.cache != null) template.cache.addTo(json);
+		BoundedCookieStore cookieStore = getCookieStore();
+		if (cookieStore != null) cookieStore.addTo(json);
+		if (http2Engine != null) http2Engine.addTo(json);
+		Map<String,AtomicLong> sorted = new TreeMap<String,AtomicLong>(errorsByType);
+		for (Map.Entry<String,AtomicLong> entry : sorted.entrySet()) {
+			json.put("error:" + entry.getKey(), entry.getValue().get());
+		}
+		return json;
+	}
+}
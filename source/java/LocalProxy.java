@@ -0,0 +1,226 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import javax.swing.*;
+import org.rsna.ui.RowLayout;
+
+/**
+ * A JPanel providing a user interface for the ForwardProxy, a local
+ * stand-in for a site's proxy server. The proxy can be started on any
+ * port, with optional Basic authentication and added latency, and the
+ * Proxy tab can be pointed at it, so that the whole proxy path can be
+ * tested (and load tested) on one host. The panel shows the statistics
+ * of the proxy and the most recent requests it has forwarded.
+ */
+public class LocalProxy extends JPanel {
+
+	static Color bg = HttpClient.bg;
+
+	Header header;
+	JTextArea statistics;
+	JTextArea requests;
+	Font font;
+	ForwardProxy proxy = null;
+	HttpConnectionEventQueue eventQueue;
+	java.util.List<HttpConnectionEvent> eventBatch;
+	LinkedList<String> recent = new LinkedList<String>();
+	javax.swing.Timer timer;
+
+	//The interval at which the statistics are refreshed,
+	//and the number of requests shown.
+	static final int REFRESH_INTERVAL = 1000;
+	static final int RECENT_REQUESTS = 100;
+
+	/**
+	 * Class constructor.
+	 */
+	public LocalProxy() {
+		super(new BorderLayout());
+		font = new Font("Monospaced", Font.PLAIN, 12);
+		header = new Header();
+		this.add(header, BorderLayout.NORTH);
+
+		statistics = new JTextArea(12, 80);
+		statistics.setFont(font);
+		statistics.setEditable(false);
+		requests = new JTextArea(20, 80);
+		requests.setFont(font);
+		requests.setEditable(false);
+		JSplitPane split = new JSplitPane(JSplitPane.VERTICAL_SPLIT,
+										  new JScrollPane(statistics),
+										  new JScrollPane(requests));
+		split.setResizeWeight(0.4);
+		this.add(split, BorderLayout.CENTER);
+
+		//Collect the reports of the requests in a queue, so that
+		//a busy proxy cannot flood the event thread.
+		eventQueue = new HttpConnectionEventQueue();
+		eventBatch = new ArrayList<HttpConnectionEvent>();
+		timer = new javax.swing.Timer(REFRESH_INTERVAL, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		timer.start();
+	}
+
+	//Update the statistics and the list of recent requests.
+	private void refresh() {
+		if (proxy != null) statistics.setText(proxy.getStatistics());
+		eventBatch.clear();
+		eventQueue.drain(RECENT_REQUESTS, eventBatch);
+		if (eventBatch.isEmpty()) return;
+		for (HttpConnectionEvent event : eventBatch) {
+			recent.add(event.message);
+			if (recent.size() > RECENT_REQUESTS) recent.removeFirst();
+		}
+		eventBatch.clear();
+		StringBuffer sb = new StringBuffer();
+		for (String text : recent) sb.append(text);
+		sb.append(eventQueue.getDropSummary());
+		requests.setText(sb.toString());
+		requests.setCaretPosition(requests.getDocument().getLength());
+	}
+
+	//Start the proxy with the settings in the header.
+	void start() {
+		try {
+			int port = Integer.parseInt(header.port.getText().trim());
+			int latency = Integer.parseInt(header.latency.getText().trim());
+			proxy = new ForwardProxy(port);
+			proxy.setCredentials(header.user.getText().trim(), header.password.getText().trim());
+			proxy.setLatency(latency);
+			proxy.addHttpConnectionEventListener(eventQueue);
+			proxy.start();
+			HttpTest.message.setText("Local proxy started on port " + port);
+		}
+		catch (Exception ex) {
+			proxy = null;
+			HttpTest.message.setText("Unable to start the local proxy: " + ex.getMessage());
+			return;
+		}
+		header.setRunning(true);
+		refresh();
+	}
+
+	//Stop the proxy, leaving its final statistics in the display.
+	void stop() {
+		if (proxy != null) {
+			proxy.stopProxy();
+			statistics.setText(proxy.getStatistics());
+			proxy = null;
+		}
+		header.setRunning(false);
+		HttpTest.message.setText("Local proxy stopped");
+	}
+
+	//Class to provide the buttons and settings
+	class Header extends JPanel implements ActionListener {
+		public JTextField port;
+		public JTextField user;
+		public JTextField password;
+		public JTextField latency;
+		JButton startStop;
+		JButton use;
+		JButton reset;
+
+		public Header() {
+			super();
+			this.setLayout(new RowLayout());
+			setBackground(bg);
+			add(RowLayout.crlf());
+
+			startStop = new JButton("Start");
+			startStop.addActionListener(this);
+			port = new JTextField(Integer.toString(ForwardProxy.DEFAULT_PORT), 6);
+			port.setFont(font);
+			latency = new JTextField("0", 6);
+			latency.setFont(font);
+			latency.setToolTipText("Latency added to each request and tunnel");
+			user = new JTextField(10);
+			user.setFont(font);
+			password = new JTextField(10);
+			password.setFont(font);
+			use = new JButton("Use on Proxy tab");
+			use.setToolTipText("Route the client requests through this proxy");
+			use.addActionListener(this);
+			reset = new JButton("Reset statistics");
+			reset.addActionListener(this);
+
+			JPanel p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(new JLabel("Port:"));
+			p.add(port);
+			p.add(new JLabel("    Added latency (ms):"));
+			p.add(latency);
+			p.add(RowLayout.crlf());
+			add(startStop);
+			add(p);
+			add(RowLayout.crlf());
+
+			p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(new JLabel("Username:"));
+			p.add(user);
+			p.add(new JLabel("    Password:"));
+			p.add(password);
+			p.add(RowLayout.crlf());
+			add(new JLabel(""));
+			add(p);
+			add(RowLayout.crlf());
+
+			p = new JPanel(new RowLayout());
+			p.setBackground(bg);
+			p.add(use);
+			p.add(reset);
+			p.add(RowLayout.crlf());
+			add(new JLabel(""));
+			add(p);
+			add(RowLayout.crlf());
+			add(new JLabel("Leave the username blank to accept requests without Proxy-Authorization."));
+			add(RowLayout.crlf());
+		}
+
+		void setRunning(boolean running) {
+			startStop.setText(running ? "Stop" : "Start");
+			port.setEnabled(!running);
+			latency.setEnabled(!running);
+			user.setEnabled(!running);
+			password.setEnabled(!running);
+		}
+
+		public void actionPerformed(ActionEvent e) {
+			Object source = e.getSource();
+			if (source.equals(startStop)) {
+				if (proxy == null) start();
+				else stop();
+			}
+			else if (source.equals(use)) {
+				try {
+					int portNumber = Integer.parseInt(port.getText().trim());
+					Proxy.setProxy("127.0.0.1", portNumber, user.getText().trim(), password.getText().trim());
+					HttpTest.message.setText("The Proxy tab now routes requests through 127.0.0.1:" + portNumber);
+				}
+				catch (NumberFormatException ex) {
+					HttpTest.message.setText("The port must be a number");
+				}
+			}
+			else if (source.equals(reset)) {
+				if (proxy != null) {
+					proxy.resetStatistics();
+					statistics.setText(proxy.getStatistics());
+				}
+			}
+		}
+	}
+}
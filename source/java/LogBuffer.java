@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * A bounded log of text entries, kept in a ring buffer. When the log
+ * exceeds its limit on the number of entries or the number of characters,
+ * the oldest entries are evicted in bulk, down to nine tenths of the
+ * limits, so that a view of the log is trimmed only occasionally. The
+ * evicted entries can be appended to an archive file, which is rolled
+ * over to numbered backups when it reaches a maximum size.
+ * <p>
+ * The log is not synchronized; it is intended to be used in the event thread.
+ */
+public class LogBuffer {
+
+	/** The default maximum number of entries. */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	/** The default maximum number of characters. */
+	public static final long DEFAULT_MAX_CHARS = 16 * 1024 * 1024;
+	/** The default maximum size of an archive file. */
+	public static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024;
+	/** The default number of archive backups kept. */
+	public static final int DEFAULT_MAX_BACKUPS = 4;
+
+	static final Charset utf8 = Charset.forName("UTF-8");
+
+	String[] entries;
+	int head = 0;
+	int count = 0;
+	long chars = 0;
+	int maxEntries;
+	long maxChars;
+	long evictedEntries = 0;
+
+	File archive = null;
+	long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+	int maxBackups = DEFAULT_MAX_BACKUPS;
+	Writer writer = null;
+	long fileSize = 0;
+
+	/**
+	 * Class constructor; creates a log with the default limits.
+	 */
+	public LogBuffer() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CHARS);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param maxEntries the maximum number of entries in the log.
+	 * @param maxChars the maximum number of characters in the log.
+	 */
+	public LogBuffer(int maxEntries, long maxChars) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxChars = Math.max(1, maxChars);
+		entries = new String[Math.min(this.maxEntries, 1024)];
+	}
+
+	/**
+	 * Change the limits of the log. The new limits take effect
+	 * when the next entry is added.
+	 * @param maxEntries the maximum number of entries in the log.
+	 * @param maxChars the maximum number of characters in the log.
+	 */
+	public void setLimits(int maxEntries, long maxChars) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxChars = Math.max(1, maxChars);
+	}
+
+	/**
+	 * Set the file to which evicted entries are appended. When the file
+	 * reaches the maximum size, it is renamed with the suffix ".1", older
+	 * backups are renamed in turn, and a new file is started.
+	 * @param archive the archive file, or null if evicted entries are discarded.
+	 * @param maxFileSize the maximum size of the file in bytes.
+	 * @param maxBackups the number of backups to keep.
+	 */
+	public void setArchive(File archive, long maxFileSize, int maxBackups) {
+		closeArchive();
+		this.archive = archive;
+		this.maxFileSize = Math.max(1, maxFileSize);
+		this.maxBackups = Math.max(0, maxBackups);
+	}
+
+	/**
+	 * Add an entry to the log, evicting old entries if a limit is exceeded.
+	 * The newest entry is always kept, even if it alone exceeds the limit.
+	 * @param entry the text of the entry.
+	 * @return the number of characters evicted from the start of the log.
+	 */
+	public long add(String entry) {
+		if (count == entries.length) grow();
+		entries[(head + count) % entries.length] = entry;
+		count++;
+		chars += entry.length();
+		if ((count > maxEntries) || (chars > maxChars)) {
+			//Evict down to nine tenths of the limits.
+			return evict(maxEntries - maxEntries / 10, maxChars - maxChars / 10);
+		}
+		return 0;
+	}
+
+	//Evict the oldest entries until the log is within the given limits.
+	private long evict(int entryLimit, long charLimit) {
+		long evicted = 0;
+		StringBuffer sb = (archive != null) ? new StringBuffer() : null;
+		while ((count > 1) && ((count > entryLimit) || (chars > charLimit))) {
+			String entry = entries[head];
+			entries[head] = null;
+			head = (head + 1) % entries.length;
+			count--;
+			chars -= entry.length();
+			evicted += entry.length();
+			evictedEntries++;
+			if (sb != null) sb.append(entry);
+		}
+		if ((sb != null) && (sb.length() > 0)) writeArchive(sb.toString());
+		return evicted;
+	}
+
+	private void grow() {
+		int size = (int)Math.min((long)maxEntries + 1, 2L * entries.length);
+		String[] bigger = new String[Math.max(size, entries.length + 1)];
+		for (int i=0; i<count; i++) bigger[i] = entries[(head + i) % entries.length];
+		entries = bigger;
+		head = 0;
+	}
+
+	//Append text to the archive, rolling the file over if it is full.
+	private void writeArchive(String text) {
+		try {
+			if (writer == null) {
+				fileSize = archive.length();
+				writer = new BufferedWriter(
+							new OutputStreamWriter(
+								new FileOutputStream(archive, true), utf8));
+			}
+			writer.write(text);
+			writer.flush();
+			fileSize += text.length();
+			if (fileSize >= maxFileSize) roll();
+		}
+		catch (Exception ex) {
+			System.out.println("Unable to write the log archive\n"+ex);
+			closeArchive();
+		}
+	}
+
+	private void roll() {
+		closeArchive();
+		String path = archive.getAbsolutePath();
+		if (maxBackups == 0) {
+			archive.delete();
+			return;
+		}
+		new File(path + "." + maxBackups).delete();
+		for (int i=maxBackups-1; i>0; i--) {
+			new File(path + "." + i).renameTo(new File(path + "." + (i+1)));
+		}
+		archive.renameTo(new File(path + ".1"));
+	}
+
+	/**
+	 * Close the archive file. It is reopened if more entries are evicted.
+	 */
+	public void closeArchive() {
+		if (writer != null) {
+			try { writer.close(); }
+			catch (Exception ignore) { }
+		}
+		writer = null;
+	}
+
+	/**
+	 * Remove all the entries from the log without archiving them.
+	 */
+	public void clear() {
+		for (int i=0; i<count; i++) entries[(head + i) % entries.length] = null;
+		head = 0;
+		count = 0;
+		chars = 0;
+	}
+
+	/**
+	 * Get the number of entries in the log.
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Get the number of characters in the log.
+	 * @return the number of characters.
+	 */
+	public long getLength() {
+		return chars;
+	}
+
+	/**
+	 * Get the number of entries evicted since the log was created.
+	 * @return the number of entries.
+	 */
+	public long getEvictedCount() {
+		return evictedEntries;
+	}
+
+	/**
+	 * Get an entry from the log.
+	 * @param index the index of the entry, where 0 is the oldest.
+	 * @return the entry.
+	 */
+	public String get(int index) {
+		if ((index < 0) || (index >= count)) throw new IndexOutOfBoundsException();
+		return entries[(head + index) % entries.length];
+	}
+
+	/**
+	 * Get the text of all the entries in the log.
+	 * @return the text.
+	 */
+	public String toString() {
+		StringBuffer sb = new StringBuffer((int)Math.min(chars, Integer.MAX_VALUE - 8));
+		for (int i=0; i<count; i++) sb.append(get(i));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,431 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector-based engine for the HttpReceiver. Connections are accepted
+ * on the receiver's thread and distributed among a small fixed set of
+ * I/O threads, each of which services its connections with a Selector.
+ * Requests are processed by the same code that the HttpHandler uses,
+ * and, like the HttpHandler, the engine supports persistent connections
+ * and pipelined requests.
+ * <p>
+ * All the work for a request is done on its I/O thread, including
+ * spooling a large body to disk and compressing the response. While
+ * one connection is doing that work, the other connections on the same
+ * thread wait, so spooling and compression add latency to every
+ * connection on the thread. Use the threaded engines when measuring
+ * latency with spooling or compression enabled.
+ */
+public class NioEngine {
+
+	static final int BUFFER_SIZE = 8192;
+	static final long SWEEP_INTERVAL = 1000;
+
+	ServerSocketChannel serverChannel;
+	boolean sendResponse;
+	boolean optionsEnabled = true;
+	int idleTimeout = HttpHandler.DEFAULT_IDLE_TIMEOUT;
+	int threshold = BodyCapture.DEFAULT_THRESHOLD;
+	File spoolDir = null;
+	ResponseCompressor compressor = null;
+	HttpConnectionEventListener listener;
+	IOThread[] ioThreads;
+	int next = 0;
+	volatile boolean running = false;
+
+	/**
+	 * Class constructor; creates an engine for a bound ServerSocketChannel.
+	 * @param serverChannel the channel on which to accept connections.
+	 * @param sendResponse true if the server is to send a report response
+	 * to the client when a connection is received, false otherwise.
+	 * @param nThreads the number of I/O threads.
+	 * @param listener the listener to receive the connection events.
+	 */
+	public NioEngine(ServerSocketChannel serverChannel,
+					 boolean sendResponse,
+					 int nThreads,
+					 HttpConnectionEventListener listener) throws IOException {
+		this.serverChannel = serverChannel;
+		this.sendResponse = sendResponse;
+		this.listener = listener;
+		ioThreads = new IOThread[Math.max(1, nThreads)];
+		for (int i=0; i<ioThreads.length; i++) {
+			ioThreads[i] = new IOThread(i);
+		}
+	}
+
+	/**
+	 * Set the time that an idle persistent connection is kept open.
+	 * @param idleTimeout the idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Set the compressor for responses.
+	 * @param compressor the compressor, or null if responses are not to be compressed.
+	 */
+	public void setCompressor(ResponseCompressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Set the parameters for capturing the content of requests.
+	 * @param threshold the maximum size of a body that is kept in memory.
+	 * @param spoolDir the directory in which to spool larger bodies,
+	 * or null if they are not to be spooled.
+	 */
+	public void setBodyCapture(int threshold, File spoolDir) {
+		this.threshold = threshold;
+		this.spoolDir = spoolDir;
+	}
+
+	/**
+	 * Accept connections and hand them to the I/O threads. This method
+	 * blocks until the engine is stopped.
+	 */
+	public void run() {
+		running = true;
+		for (IOThread t : ioThreads) t.start();
+		while (running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				ioThreads[next].register(channel);
+				next = (next + 1) % ioThreads.length;
+			}
+			catch (Exception ex) { break; }
+		}
+		stop();
+	}
+
+	/**
+	 * Stop the engine, closing the server channel and all the connections.
+	 */
+	public void stop() {
+		running = false;
+		try { serverChannel.close(); }
+		catch (Exception ignore) { }
+		for (IOThread t : ioThreads) t.wakeup();
+	}
+
+	private void sendHttpConnectionEvent(int status, String message) {
+		listener.httpConnectionEventOccurred(new HttpConnectionEvent(this, status, message));
+	}
+
+	//A thread servicing a set of connections with a Selector.
+	class IOThread extends Thread {
+
+		Selector selector;
+		ConcurrentLinkedQueue<SocketChannel> pending;
+		HeaderParser parser;
+
+		public IOThread(int index) throws IOException {
+			super("NioEngine-IO-" + index);
+			setDaemon(true);
+			selector = Selector.open();
+			pending = new ConcurrentLinkedQueue<SocketChannel>();
+			parser = new HeaderParser();
+		}
+
+		public void register(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		public void wakeup() {
+			selector.wakeup();
+		}
+
+		//Close the connections that have been idle for longer than the timeout.
+		private void closeIdleConnections(long now) {
+			for (SelectionKey key : selector.keys()) {
+				NioConnection conn = (NioConnection)key.attachment();
+				if ((conn != null) && conn.isIdle(now)) conn.close(key);
+			}
+		}
+
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			while (running) {
+				try {
+					selector.select(SWEEP_INTERVAL);
+					long now = System.currentTimeMillis();
+					if (now - lastSweep >= SWEEP_INTERVAL) {
+						closeIdleConnections(now);
+						lastSweep = now;
+					}
+					SocketChannel channel;
+					while ((channel = pending.poll()) != null) {
+						try {
+							NioConnection conn = new NioConnection(channel, parser);
+							channel.register(selector, SelectionKey.OP_READ, conn);
+						}
+						catch (Exception ex) { close(channel); }
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						//The key may have been cancelled by the idle sweep
+						//after it was selected.
+						if (!key.isValid()) continue;
+						NioConnection conn = (NioConnection)key.attachment();
+						try {
+							if (key.isReadable()) conn.read(key);
+							else if (key.isWritable()) conn.write(key);
+						}
+						catch (Exception ex) {
+							conn.close(key);
+							sendHttpConnectionEvent(HttpConnectionEvent.ERROR,
+								"HttpReceiver: An error occurred during the connection.");
+						}
+					}
+				}
+				catch (Exception ex) { break; }
+			}
+			for (SelectionKey key : selector.keys()) close(key.channel());
+			try { selector.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	//The state of one connection.
+	class NioConnection {
+
+		SocketChannel channel;
+		HeaderParser parser;
+		String remoteAddress;
+		ByteBuffer in;
+		ByteBuffer[] out = null;
+		HttpResponse response = new HttpResponse();
+		boolean eof = false;
+		boolean keepAlive = false;
+		int requestCount = 0;
+		long lastActivity;
+		int scanned = 0;
+		String headers = null;
+		Hashtable<String,String> headerHashtable;
+		ChunkedDecoder decoder;
+		BodyCapture content;
+		long remaining;
+		String report;
+
+		public NioConnection(SocketChannel channel, HeaderParser parser) throws IOException {
+			this.channel = channel;
+			this.parser = parser;
+			remoteAddress = getRemoteAddress(channel);
+			in = ByteBuffer.allocate(BUFFER_SIZE);
+			lastActivity = System.currentTimeMillis();
+		}
+
+		//Determine whether the connection is waiting for a request
+		//and has been idle for longer than the timeout.
+		public boolean isIdle(long now) {
+			return (out == null) && (now - lastActivity > idleTimeout);
+		}
+
+		//Read what is available and service any complete requests.
+		public void read(SelectionKey key) throws Exception {
+			if (!in.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+			int n = channel.read(in);
+			if (n > 0) lastActivity = System.currentTimeMillis();
+			eof = (n == -1);
+			service(key);
+		}
+
+		//Continue writing the response, then service any pipelined requests.
+		public void write(SelectionKey key) throws Exception {
+			if (flush(key)) service(key);
+		}
+
+		//Process and respond to the requests in the input buffer, in order,
+		//until the buffer holds no complete request or a write is pending.
+		private void service(SelectionKey key) throws Exception {
+			while (out == null) {
+				if (!parseRequest()) {
+					if (eof) close(key);
+					return;
+				}
+				if (!flush(key)) return;
+			}
+		}
+
+		//Write as much of the response as the channel will take,
+		//with a gathering write of the headers and the body.
+		//Return true if the response has been sent and the
+		//connection remains open for another request.
+		private boolean flush(SelectionKey key) throws Exception {
+			channel.write(out);
+			for (int i=0; i<out.length; i++) {
+				if (out[i].hasRemaining()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+					return false;
+				}
+			}
+			out = null;
+			lastActivity = System.currentTimeMillis();
+			sendHttpConnectionEvent(HttpConnectionEvent.RECEIVED, report);
+			if (!keepAlive) {
+				close(key);
+				return false;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			return true;
+		}
+
+		public void close(SelectionKey key) {
+			if (content != null) content.close();
+			key.cancel();
+			NioEngine.close(channel);
+		}
+
+		//Parse and process the request at the start of the input buffer.
+		//The content is consumed from the buffer as it arrives.
+		//Return true if a complete request was processed.
+		private boolean parseRequest() throws Exception {
+			if (headers == null) {
+				//Discard any empty lines preceding the request line
+				byte[] buf = in.array();
+				int start = HeaderParser.skipBlankLines(buf, 0, in.position());
+				if (start > 0) {
+					consume(start);
+					scanned = 0;
+				}
+				int headerEnd = parser.findEnd(buf, 0, scanned, in.position());
+				if (headerEnd < 0) {
+					scanned = Math.max(0, in.position() - 3);
+					return false;
+				}
+				parseHeaders(headerEnd);
+				consume(headerEnd);
+				scanned = 0;
+
+				//Refuse a malformed request or one whose body cannot
+				//be delimited. The connection is closed after the response.
+				int status = HttpHandler.checkRequest(headers, headerHashtable);
+				if (status != 0) {
+					reject(status);
+					return true;
+				}
+			}
+
+			//Move the available content into the capture
+			if (decoder != null) {
+				consume(decoder.decode(in.array(), 0, in.position(), content));
+				if (!decoder.isComplete() && !eof) return false;
+			}
+			else {
+				int n = (int)Math.min(remaining, in.position());
+				content.write(in.array(), 0, n);
+				consume(n);
+				remaining -= n;
+				if ((remaining > 0) && !eof) return false;
+			}
+			process();
+
+			//Get ready for the next request, keeping any pipelined bytes.
+			if ((in.capacity() > 4 * BUFFER_SIZE) && (in.position() < BUFFER_SIZE)) {
+				ByteBuffer smaller = ByteBuffer.allocate(BUFFER_SIZE);
+				in.flip();
+				smaller.put(in);
+				in = smaller;
+			}
+			headers = null;
+			return true;
+		}
+
+		//Discard bytes from the start of the input buffer.
+		private void consume(int n) {
+			if (n > 0) {
+				in.flip();
+				in.position(n);
+				in.compact();
+			}
+		}
+
+		//Construct the header text and the hashtable containing the HTTP headers,
+		//and set up the capture for the content.
+		private void parseHeaders(int headerEnd) throws IOException {
+			headerHashtable = new Hashtable<String,String>();
+			headers = parser.parse(in.array(), 0, headerEnd, headerHashtable);
+			content = new BodyCapture(threshold, BodyCapture.DEFAULT_PREVIEW_SIZE, spoolDir);
+			if (HttpHandler.isChunked(headerHashtable)) decoder = new ChunkedDecoder();
+			else {
+				decoder = null;
+				remaining = HttpHandler.getContentLength(headerHashtable);
+			}
+		}
+
+		//Prepare the response to a request that the server refuses.
+		private void reject(int status) {
+			requestCount++;
+			keepAlive = false;
+			response.reset();
+			response.setProtocol(HttpHandler.getProtocol(headers));
+			report = HttpHandler.reject(remoteAddress, headers, status, response, sendResponse);
+			out = sendResponse ? response.getBuffers() : new ByteBuffer[0];
+		}
+
+		//Process the request and prepare the response.
+		private void process() throws Exception {
+			content.close();
+			requestCount++;
+			keepAlive = sendResponse
+							&& !eof
+							&& HttpHandler.isKeepAlive(headers, headerHashtable);
+			response.reset();
+			response.setProtocol(HttpHandler.getProtocol(headers));
+			response.setKeepAlive(keepAlive, idleTimeout);
+			report = HttpHandler.process(
+				remoteAddress, headers, headerHashtable, content, decoder,
+				response, sendResponse, optionsEnabled, requestCount);
+			if (sendResponse) {
+				if (compressor != null) {
+					report += compressor.compress(response, headerHashtable.get("accept-encoding"));
+				}
+				out = response.getBuffers();
+			}
+			else out = new ByteBuffer[0];
+		}
+	}
+
+	//Get the address of the remote end of a channel as a String.
+	static String getRemoteAddress(SocketChannel channel) {
+		String rsaString = "unknown";
+		try {
+			SocketAddress rsa = channel.getRemoteAddress();
+			if ((rsa != null) && (rsa instanceof InetSocketAddress)) {
+				rsaString = ((InetSocketAddress)rsa).getAddress().getHostAddress();
+			}
+		}
+		catch (Exception ignore) { }
+		return rsaString;
+	}
+
+	static void close(Channel channel) {
+		try { channel.close(); }
+		catch (Exception ignore) { }
+	}
+}
@@ -8,7 +8,6 @@
 package org.rsna.httptest;
 
 import java.awt.*;
-import java.util.Properties;
 import javax.swing.*;
 import javax.swing.BorderFactory;
 import javax.swing.border.*;
@@ -19,8 +18,9 @@ import org.rsna.util.*;
  * a user interface allowing for enabling and disabling the use of
  * the proxy server, for specifying the IP address and port of the
  * proxy server, and for specifying the authentication credentials
- * required by the proxy server. It also provides methods for setting
- * and removing the Java System properties required for a proxy server.
+ * required by the proxy server. It also provides the java.net.Proxy
+ * for client requests, so that each request chooses its own route
+ * without changing the proxy System properties of the JVM.
  */
 public class Proxy extends JPanel {
 
@@ -102,34 +102,35 @@ public class Proxy extends JPanel {
 	}
 
 	/**
-	 * Set the Java System properties that apply to the proxy server
-	 * using the values in the user interface. The properties set are:
-	 * <ul>
-	 *  <li>proxySet = true</li>
-	 *  <li>http.proxyHost = getIP()</li>
-	 *  <li>http.proxyPort = getPort()</li>
-	 * </ul>
+	 * Get the route for client requests, using the values in the user interface.
+	 * @return an HTTP proxy at getIP() and getPort() if the proxy server checkbox
+	 * is selected; otherwise java.net.Proxy.NO_PROXY, for a direct connection.
+	 * @throws IllegalArgumentException if the port is not a number.
 	 */
-	public static void setProxyProperties() {
-		System.setProperty("proxySet","true");
-		System.setProperty("http.proxyHost",getIP());
-		System.setProperty("http.proxyPort",getPort());
+	public static java.net.Proxy getProxy() {
+		if (!getEnabled()) return java.net.Proxy.NO_PROXY;
+		int portNumber;
+		try { portNumber = Integer.parseInt(getPort()); }
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("The proxy port must be a number.");
+		}
+		return HttpProbe.createProxy(getIP(), portNumber);
 	}
 
 	/**
-	 * Clear the Java System properties that apply to the proxy server.
-	 * The properties cleared are:
-	 * <ul>
-	 *  <li>proxySet</li>
-	 *  <li>http.proxyHost</li>
-	 *  <li>http.proxyPort</li>
-	 * </ul>
+	 * Enable the proxy server and set its parameters in the user interface,
+	 * for example to point the client at the Local Proxy.
+	 * @param ipText the IP address or host name of the proxy.
+	 * @param portNumber the port of the proxy.
+	 * @param userText the username, or the empty string if the proxy does not require authentication.
+	 * @param passwordText the password.
 	 */
-	public static void clearProxyProperties() {
-		Properties sys = System.getProperties();
-		sys.remove("proxySet");
-		sys.remove("http.proxyHost");
-		sys.remove("http.proxyPort");
+	public static void setProxy(String ipText, int portNumber, String userText, String passwordText) {
+		ip.setText(ipText);
+		port.setText(Integer.toString(portNumber));
+		user.setText(userText);
+		password.setText(passwordText);
+		enabled.setSelected(true);
 	}
 
 	/**
@@ -0,0 +1,991 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * An HTTP/1.1 client that writes requests and reads responses itself on
+ * SocketChannels, using an SSLEngine for https. Unlike HttpURLConnection,
+ * it does not buffer the response or hide its connection handling: the
+ * content is streamed from the socket as it is read, connections are kept
+ * in an explicit pool and reused only when the response allows it, and
+ * every response reports whether its connection was reused, the bytes
+ * sent and received on the wire, and the timing of each phase.
+ * <p>
+ * Requests for https URLs through a proxy are sent through a tunnel
+ * opened with a CONNECT request, whose timing is reported separately
+ * from the TCP connection to the proxy and the TLS handshake.
+ * <p>
+ * The client is thread-safe; each connection is used by one request at a time.
+ */
+public class RawHttpClient {
+
+	static final Charset latin1 = Charset.forName("ISO-8859-1");
+	static final int BUFFER_SIZE = 16384;
+	static final int MAX_LINE = 65536;
+	static final int MAX_HEADERS = 200;
+	static final int MAX_IDLE_PER_HOST = 8;
+	static final long MAX_IDLE_TIME = 30000;
+
+	SSLContext sslContext;
+	int timeout = 30000;
+	HashMap<String,LinkedList<Connection>> pool = new HashMap<String,LinkedList<Connection>>();
+
+	/**
+	 * Class constructor.
+	 * @param sslContext the context for https connections.
+	 */
+	public RawHttpClient(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Set the connect and read timeout of requests that do not specify one.
+	 * @param timeout the timeout in milliseconds.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Send a request and read the status line and headers of the response.
+	 * The content is read from the body stream of the response, which must
+	 * be read to the end or closed; the connection is returned to the pool
+	 * when the content has been read completely and the response allows
+	 * the connection to be kept open.
+	 * @param method the request method.
+	 * @param url the URL.
+	 * @param headers additional request headers (name, value pairs), or null.
+	 * For https through a proxy, a Proxy-Authorization header is sent on the
+	 * CONNECT request that opens the tunnel, not to the server.
+	 * @param body the request body, or null for no body.
+	 * @param proxy the HTTP proxy, or null for a direct connection.
+	 * @return the response.
+	 * @throws IOException if the request cannot be completed.
+	 * @throws TunnelException if the proxy refuses to open a tunnel.
+	 */
+	public Response execute(String method, URL url, String[] headers, byte[] body,
+							java.net.Proxy proxy) throws IOException {
+		return execute(method, url, headers, body, proxy, timeout);
+	}
+
+	/**
+	 * Send a request with its own timeout and read the status line and
+	 * headers of the response. The timeout applies to this request only,
+	 * so requests with different timeouts can share the client.
+	 * @param method the request method.
+	 * @param url the URL.
+	 * @param headers additional request headers (name, value pairs), or null.
+	 * @param body the request body, or null for no body.
+	 * @param proxy the HTTP proxy, or null for a direct connection.
+	 * @param timeout the connect and read timeout in milliseconds.
+	 * @return the response.
+	 * @throws IOException if the request cannot be completed.
+	 * @throws TunnelException if the proxy refuses to open a tunnel.
+	 */
+	public Response execute(String method, URL url, String[] headers, byte[] body,
+							java.net.Proxy proxy, int timeout) throws IOException {
+		RequestTimings timings = new RequestTimings();
+		boolean secure = url.getProtocol().equalsIgnoreCase("https");
+		boolean tunnel = secure && (proxy != null);
+		String proxyAuthorization = null;
+		if (tunnel && (headers != null)) {
+			ArrayList<String> list = new ArrayList<String>();
+			for (int i=0; i+1<headers.length; i+=2) {
+				if (headers[i].equalsIgnoreCase("Proxy-Authorization")) proxyAuthorization = headers[i+1];
+				else {
+					list.add(headers[i]);
+					list.add(headers[i+1]);
+				}
+			}
+			headers = list.toArray(new String[list.size()]);
+		}
+		byte[] request = getRequest(method, url, headers, body, tunnel ? null : proxy);
+
+		//Use a pooled connection if one is available. If it turns out
+		//to have been closed by the server, retry on a new connection,
+		//but only if the request can safely be sent twice.
+		Connection conn = getPooledConnection(getKey(url, proxy));
+		if (conn != null) {
+			conn.timeout = timeout;
+			try {
+				return send(conn, method, request, timings);
+			}
+			catch (StaleConnectionException stale) {
+				if (!isIdempotent(method) || (body != null)) {
+					throw new EOFException(
+						"The server closed the reused connection without a response; "
+						+ "the " + method + " request was not repeated.");
+				}
+				timings = new RequestTimings();
+			}
+		}
+		conn = openConnection(url, proxy, secure, proxyAuthorization, timings, timeout);
+		try { return send(conn, method, request, timings); }
+		catch (StaleConnectionException ex) {
+			throw new EOFException("The server closed the connection without a response.");
+		}
+	}
+
+	/**
+	 * Determine whether a method is idempotent (RFC 7231, section 4.2.2),
+	 * so that a request that may have been received can be sent again.
+	 * @param method the request method.
+	 * @return true if the method is idempotent.
+	 */
+	public static boolean isIdempotent(String method) {
+		return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS")
+				|| method.equals("TRACE") || method.equals("PUT") || method.equals("DELETE");
+	}
+
+	//Build the bytes of the request.
+	private byte[] getRequest(String method, URL url, String[] headers,
+							  byte[] body, java.net.Proxy proxy) {
+		String path = url.getPath();
+		if ((path == null) || path.equals("")) path = "/";
+		if (url.getQuery() != null) path += "?" + url.getQuery();
+		String target = (proxy != null) ? url.getProtocol() + "://" + getHostHeader(url) + path : path;
+		StringBuffer sb = new StringBuffer();
+		sb.append(method + " " + target + " HTTP/1.1\r\n");
+		sb.append("Host: " + getHostHeader(url) + "\r\n");
+		sb.append("User-Agent: HttpTest\r\n");
+		sb.append("Accept: */*\r\n");
+		if (headers != null) {
+			for (int i=0; i+1<headers.length; i+=2) {
+				sb.append(headers[i] + ": " + headers[i+1] + "\r\n");
+			}
+		}
+		if (body != null) sb.append("Content-Length: " + body.length + "\r\n");
+		sb.append("\r\n");
+		byte[] head = sb.toString().getBytes(latin1);
+		if (body == null) return head;
+		byte[] request = new byte[head.length + body.length];
+		System.arraycopy(head, 0, request, 0, head.length);
+		System.arraycopy(body, 0, request, head.length, body.length);
+		return request;
+	}
+
+	private static String getHostHeader(URL url) {
+		int port = url.getPort();
+		if ((port == -1) || (port == url.getDefaultPort())) return url.getHost();
+		return url.getHost() + ":" + port;
+	}
+
+	private static String getKey(URL url, java.net.Proxy proxy) {
+		String key = url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase()
+						+ ":" + getPort(url);
+		if (proxy != null) key += " via " + proxy.address();
+		return key;
+	}
+
+	private static int getPort(URL url) {
+		return (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+	}
+
+	//Open a new connection, recording the timing of each phase.
+	private Connection openConnection(URL url, java.net.Proxy proxy, boolean secure,
+									  String proxyAuthorization, RequestTimings timings,
+									  int timeout) throws IOException {
+		String host = url.getHost();
+		int port = getPort(url);
+		if (proxy != null) {
+			InetSocketAddress proxyAddress = (InetSocketAddress)proxy.address();
+			host = proxyAddress.getHostString();
+			port = proxyAddress.getPort();
+		}
+		long t = System.nanoTime();
+		InetAddress address = InetAddress.getByName(host);
+		long resolved = System.nanoTime();
+		timings.add((proxy != null) ? "DNS lookup (proxy)" : "DNS lookup", t, resolved);
+
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress(address, port), timeout);
+			channel.socket().setTcpNoDelay(true);
+			long connected = System.nanoTime();
+			timings.add((proxy != null) ? "TCP connect (proxy)" : "TCP connect", resolved, connected);
+
+			Connection conn = new Connection(getKey(url, proxy), channel, null, timeout);
+			try {
+				if (secure && (proxy != null)) {
+					openTunnel(conn, url, proxyAuthorization);
+					long tunneled = System.nanoTime();
+					timings.add("CONNECT tunnel", connected, tunneled);
+					connected = tunneled;
+				}
+				if (secure) {
+					SSLEngine engine = sslContext.createSSLEngine(url.getHost(), getPort(url));
+					engine.setUseClientMode(true);
+					conn.startTls(engine);
+					conn.handshake();
+					timings.add("TLS handshake", connected, System.nanoTime());
+				}
+			}
+			catch (IOException ex) {
+				conn.close();
+				throw ex;
+			}
+			return conn;
+		}
+		catch (IOException ex) {
+			try { channel.close(); }
+			catch (Exception ignore) { }
+			throw ex;
+		}
+	}
+
+	//Ask the proxy to open a tunnel to the server of a URL.
+	private void openTunnel(Connection conn, URL url, String proxyAuthorization) throws IOException {
+		String authority = url.getHost() + ":" + getPort(url);
+		StringBuffer sb = new StringBuffer();
+		sb.append("CONNECT " + authority + " HTTP/1.1\r\n");
+		sb.append("Host: " + authority + "\r\n");
+		sb.append("User-Agent: HttpTest\r\n");
+		if (proxyAuthorization != null) sb.append("Proxy-Authorization: " + proxyAuthorization + "\r\n");
+		sb.append("\r\n");
+		conn.writeChannel(ByteBuffer.wrap(sb.toString().getBytes(latin1)));
+		Response response = new Response(this, conn, null);
+		if (!conn.appIn.hasRemaining() && (conn.fill() == -1)) {
+			throw new EOFException("The proxy closed the connection without a response to CONNECT.");
+		}
+		do { response.readHead(); }
+		while ((response.status >= 100) && (response.status < 200));
+		conn.tunnel = response.statusLine;
+		if ((response.status < 200) || (response.status >= 300)) throw new TunnelException(response);
+		if (conn.appIn.hasRemaining()) {
+			throw new IOException("The proxy sent unexpected data after the CONNECT response.");
+		}
+	}
+
+	//Send a request on a connection and read the response headers.
+	private Response send(Connection conn, String method, byte[] request,
+						  RequestTimings timings) throws IOException {
+		Response response = new Response(this, conn, timings);
+		try {
+			long t = System.nanoTime();
+			conn.write(ByteBuffer.wrap(request));
+			long sent = System.nanoTime();
+			timings.add(response.reused ? "Request sent (reused connection)" : "Request sent",
+						t, sent, request.length);
+
+			//Wait for the first byte of the response
+			if (!conn.appIn.hasRemaining() && (conn.fill() == -1)) {
+				if (response.reused) throw new StaleConnectionException();
+				throw new EOFException("The server closed the connection without a response.");
+			}
+			response.firstByte = System.nanoTime();
+			timings.add("Waiting (TTFB)", sent, response.firstByte);
+
+			//Skip any interim (1xx) responses
+			do { response.readHead(); }
+			while ((response.status >= 100) && (response.status < 200));
+			response.setBody(method);
+			return response;
+		}
+		catch (StaleConnectionException stale) {
+			conn.close();
+			throw stale;
+		}
+		catch (IOException ex) {
+			conn.close();
+			throw ex;
+		}
+	}
+
+	//Get an idle connection from the pool, discarding any that have
+	//expired or have been closed by the server.
+	private Connection getPooledConnection(String key) {
+		while (true) {
+			Connection conn;
+			synchronized (pool) {
+				LinkedList<Connection> list = pool.get(key);
+				if ((list == null) || list.isEmpty()) return null;
+				conn = list.removeLast();
+			}
+			if (((System.currentTimeMillis() - conn.lastUsed) < MAX_IDLE_TIME) && conn.isOpen()) {
+				return conn;
+			}
+			conn.close();
+		}
+	}
+
+	//Return a connection to the pool.
+	void release(Connection conn) {
+		conn.lastUsed = System.currentTimeMillis();
+		synchronized (pool) {
+			LinkedList<Connection> list = pool.get(conn.key);
+			if (list == null) {
+				list = new LinkedList<Connection>();
+				pool.put(conn.key, list);
+			}
+			if (list.size() < MAX_IDLE_PER_HOST) {
+				list.add(conn);
+				return;
+			}
+		}
+		conn.close();
+	}
+
+	/**
+	 * Close all the idle connections in the pool.
+	 */
+	public void closeIdleConnections() {
+		LinkedList<Connection> idle = new LinkedList<Connection>();
+		synchronized (pool) {
+			for (LinkedList<Connection> list : pool.values()) idle.addAll(list);
+			pool.clear();
+		}
+		for (Connection conn : idle) conn.close();
+	}
+
+	/**
+	 * Get the number of idle connections in the pool.
+	 * @return the number of connections.
+	 */
+	public int getIdleCount() {
+		int n = 0;
+		synchronized (pool) {
+			for (LinkedList<Connection> list : pool.values()) n += list.size();
+		}
+		return n;
+	}
+
+	/**
+	 * The exception thrown when a proxy refuses to open a tunnel, for
+	 * example because it requires authentication (status 407).
+	 */
+	public static class TunnelException extends IOException {
+		int status;
+
+		TunnelException(Response response) {
+			super("The proxy refused the CONNECT request: " + response.statusLine
+					+ ((response.getHeader("Proxy-Authenticate") != null)
+						? " (Proxy-Authenticate: " + response.getHeader("Proxy-Authenticate") + ")" : ""));
+			status = response.status;
+		}
+
+		/**
+		 * Get the status code of the proxy's response.
+		 * @return the status code.
+		 */
+		public int getStatus() {
+			return status;
+		}
+	}
+
+	//Thrown when a pooled connection turns out to have been closed.
+	static class StaleConnectionException extends IOException {
+		StaleConnectionException() {
+			super("stale connection");
+		}
+	}
+
+	/**
+	 * One connection, plain or TLS, on a non-blocking SocketChannel with a
+	 * Selector for timeouts. Application data that has been received (and
+	 * decrypted) is held in the appIn buffer, which is kept ready for reading.
+	 */
+	static class Connection {
+		static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+		String key;
+		SocketChannel channel;
+		Selector selector;
+		SelectionKey selectionKey;
+		SSLEngine engine;
+		ByteBuffer appIn;
+		ByteBuffer netIn;
+		ByteBuffer netOut;
+		int timeout;
+		long wireIn = 0;
+		long wireOut = 0;
+		int requests = 0;
+		long lastUsed;
+		String protocol = null;
+		String tunnel = null;
+
+		Connection(String key, SocketChannel channel, SSLEngine engine, int timeout) throws IOException {
+			this.key = key;
+			this.channel = channel;
+			this.engine = engine;
+			this.timeout = timeout;
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			selectionKey = channel.register(selector, 0);
+			appIn = ByteBuffer.allocate(BUFFER_SIZE);
+			appIn.flip();
+			if (engine != null) startTls(engine);
+			lastUsed = System.currentTimeMillis();
+		}
+
+		//Use TLS for the rest of the connection, for example after
+		//a tunnel has been opened. The handshake is not started.
+		void startTls(SSLEngine engine) {
+			this.engine = engine;
+			SSLSession session = engine.getSession();
+			netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			if (appIn.capacity() < session.getApplicationBufferSize()) {
+				appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+				appIn.flip();
+			}
+		}
+
+		//Wait until the channel is ready for an operation.
+		private void await(int ops) throws IOException {
+			selectionKey.interestOps(ops);
+			int n = selector.select(timeout);
+			selector.selectedKeys().clear();
+			selectionKey.interestOps(0);
+			if (n == 0) throw new SocketTimeoutException("Timed out after " + timeout + " ms");
+		}
+
+		//Read from the channel, waiting for data if necessary.
+		private int readChannel(ByteBuffer dst) throws IOException {
+			int n;
+			while ((n = channel.read(dst)) == 0) await(SelectionKey.OP_READ);
+			if (n > 0) wireIn += n;
+			return n;
+		}
+
+		//Write the whole of a buffer to the channel.
+		private void writeChannel(ByteBuffer src) throws IOException {
+			while (src.hasRemaining()) {
+				int n = channel.write(src);
+				if (n == 0) await(SelectionKey.OP_WRITE);
+				wireOut += n;
+			}
+		}
+
+		//Perform the TLS handshake.
+		void handshake() throws IOException {
+			engine.beginHandshake();
+			SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+			while ((hs != SSLEngineResult.HandshakeStatus.FINISHED)
+						&& (hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+				switch (hs) {
+					case NEED_WRAP:
+						hs = wrap(EMPTY);
+						break;
+					case NEED_UNWRAP:
+					case NEED_UNWRAP_AGAIN:
+						if (unwrap() == -1) throw new EOFException("The server closed the connection during the TLS handshake.");
+						hs = engine.getHandshakeStatus();
+						break;
+					case NEED_TASK:
+						runTasks();
+						hs = engine.getHandshakeStatus();
+						break;
+					default:
+						hs = engine.getHandshakeStatus();
+				}
+			}
+			protocol = engine.getSession().getProtocol();
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) task.run();
+		}
+
+		//Wrap application data (or handshake data) and send it.
+		private SSLEngineResult.HandshakeStatus wrap(ByteBuffer src) throws IOException {
+			while (true) {
+				netOut.clear();
+				SSLEngineResult result = engine.wrap(src, netOut);
+				netOut.flip();
+				writeChannel(netOut);
+				switch (result.getStatus()) {
+					case BUFFER_OVERFLOW:
+						netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+						continue;
+					case CLOSED:
+						throw new SSLException("The TLS connection was closed.");
+					default:
+						return result.getHandshakeStatus();
+				}
+			}
+		}
+
+		//Receive and unwrap TLS records until some application data
+		//is available or a handshake step is complete.
+		//Returns the number of bytes of application data produced, or -1 at EOF.
+		private int unwrap() throws IOException {
+			appIn.compact();
+			try {
+				while (true) {
+					netIn.flip();
+					SSLEngineResult result = engine.unwrap(netIn, appIn);
+					netIn.compact();
+					switch (result.getStatus()) {
+						case BUFFER_UNDERFLOW:
+							if (!netIn.hasRemaining()) {
+								ByteBuffer bigger = ByteBuffer.allocate(netIn.capacity() * 2);
+								netIn.flip();
+								bigger.put(netIn);
+								netIn = bigger;
+							}
+							if (readChannel(netIn) == -1) return -1;
+							continue;
+						case BUFFER_OVERFLOW:
+							ByteBuffer bigger = ByteBuffer.allocate(appIn.capacity() * 2);
+							appIn.flip();
+							bigger.put(appIn);
+							appIn = bigger;
+							continue;
+						case CLOSED:
+							return -1;
+						default:
+							SSLEngineResult.HandshakeStatus hs = result.getHandshakeStatus();
+							if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) runTasks();
+							if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+								wrap(EMPTY);
+							}
+							if (result.bytesProduced() > 0) return result.bytesProduced();
+							if (hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) return 0;
+					}
+				}
+			}
+			finally { appIn.flip(); }
+		}
+
+		//Read more application data into appIn.
+		//Returns the number of bytes added, or -1 at EOF.
+		int fill() throws IOException {
+			if (engine != null) {
+				int n;
+				while ((n = unwrap()) == 0) ;
+				return n;
+			}
+			appIn.compact();
+			try {
+				if (!appIn.hasRemaining()) {
+					ByteBuffer bigger = ByteBuffer.allocate(appIn.capacity() * 2);
+					appIn.flip();
+					bigger.put(appIn);
+					appIn = bigger;
+				}
+				return readChannel(appIn);
+			}
+			finally { appIn.flip(); }
+		}
+
+		//Write application data.
+		void write(ByteBuffer src) throws IOException {
+			requests++;
+			if (engine == null) writeChannel(src);
+			else while (src.hasRemaining()) wrap(src);
+		}
+
+		//Determine whether an idle connection is still open, with
+		//no unexpected data waiting to be read.
+		boolean isOpen() {
+			if (!channel.isOpen() || appIn.hasRemaining()) return false;
+			try {
+				ByteBuffer probe = ByteBuffer.allocate(1);
+				return (channel.read(probe) == 0);
+			}
+			catch (IOException ex) { return false; }
+		}
+
+		void close() {
+			try { selector.close(); }
+			catch (Exception ignore) { }
+			try { channel.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	/**
+	 * A response, with its status line and headers, and a stream from
+	 * which the content is read as it arrives.
+	 */
+	public static class Response {
+		RawHttpClient client;
+		Connection conn;
+		RequestTimings timings;
+		boolean reused;
+		int requestNumber;
+		long wireInStart;
+		long wireOutStart;
+		long firstByte;
+		String protocol = "";
+		int status = -1;
+		String reason = "";
+		String statusLine = "";
+		LinkedHashMap<String,List<String>> headers = new LinkedHashMap<String,List<String>>();
+		long headerBytes = 0;
+		BodyStream body;
+		long wireIn = -1;
+		long wireOut = -1;
+
+		Response(RawHttpClient client, Connection conn, RequestTimings timings) {
+			this.client = client;
+			this.conn = conn;
+			this.timings = timings;
+			reused = (conn.requests > 0);
+			requestNumber = conn.requests + 1;
+			wireInStart = conn.wireIn;
+			wireOutStart = conn.wireOut;
+		}
+
+		//Read a line of the head, without its line terminator.
+		private String readLine() throws IOException {
+			ByteBuffer in = conn.appIn;
+			while (true) {
+				int lim = in.limit();
+				for (int i=in.position(); i<lim; i++) {
+					if (in.get(i) == '\n') {
+						int len = i - in.position();
+						byte[] line = new byte[len];
+						in.get(line);
+						in.get();
+						headerBytes += len + 1;
+						if ((len > 0) && (line[len-1] == '\r')) len--;
+						return new String(line, 0, len, latin1);
+					}
+				}
+				if (in.remaining() >= MAX_LINE) throw new IOException("Response header line too long");
+				if (conn.fill() == -1) throw new EOFException("The connection closed in the response headers.");
+				in = conn.appIn;
+			}
+		}
+
+		//Read the status line and headers.
+		void readHead() throws IOException {
+			headers.clear();
+			statusLine = readLine();
+			String[] parts = statusLine.split(" ", 3);
+			if ((parts.length < 2) || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("Invalid status line: " + statusLine);
+			}
+			protocol = parts[0];
+			try { status = Integer.parseInt(parts[1]); }
+			catch (NumberFormatException ex) { throw new IOException("Invalid status line: " + statusLine); }
+			reason = (parts.length > 2) ? parts[2] : "";
+			String line;
+			int count = 0;
+			while (!(line = readLine()).equals("")) {
+				if (++count > MAX_HEADERS) throw new IOException("Too many response headers");
+				int k = line.indexOf(":");
+				if (k <= 0) continue;
+				String name = line.substring(0, k).trim();
+				String value = line.substring(k+1).trim();
+				List<String> values = headers.get(name);
+				if (values == null) {
+					values = new ArrayList<String>();
+					headers.put(name, values);
+				}
+				values.add(value);
+			}
+		}
+
+		//Set up the stream for the content, as framed by the headers.
+		void setBody(String method) throws IOException {
+			boolean keepAlive = protocol.equals("HTTP/1.1")
+									? !hasToken("Connection", "close")
+									: hasToken("Connection", "keep-alive");
+			if (method.equals("HEAD") || (status == 204) || (status == 304)) {
+				body = new BodyStream(this, BodyStream.NONE, 0, keepAlive);
+			}
+			else if (hasToken("Transfer-Encoding", "chunked")) {
+				body = new BodyStream(this, BodyStream.CHUNKED, 0, keepAlive);
+			}
+			else if (getHeader("Content-Length") != null) {
+				long length;
+				try { length = Long.parseLong(getHeader("Content-Length").trim()); }
+				catch (NumberFormatException ex) { throw new IOException("Invalid Content-Length"); }
+				body = new BodyStream(this, BodyStream.LENGTH, length, keepAlive);
+			}
+			else body = new BodyStream(this, BodyStream.EOF, 0, false);
+		}
+
+		private boolean hasToken(String name, String token) {
+			List<String> values = getHeaders(name);
+			if (values == null) return false;
+			for (String value : values) {
+				for (String t : value.split(",")) {
+					if (t.trim().equalsIgnoreCase(token)) return true;
+				}
+			}
+			return false;
+		}
+
+		//Called by the body stream when the content has been read or abandoned.
+		void finished(boolean reusable, long count) {
+			long end = System.nanoTime();
+			timings.add("Content download", firstByte, end, count);
+			wireIn = conn.wireIn - wireInStart;
+			wireOut = conn.wireOut - wireOutStart;
+			if (reusable) client.release(conn);
+			else conn.close();
+		}
+
+		/**
+		 * Get the status code.
+		 * @return the status code.
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * Get the status line.
+		 * @return the status line.
+		 */
+		public String getStatusLine() {
+			return statusLine;
+		}
+
+		/**
+		 * Get the protocol version of the response.
+		 * @return the protocol version (for example, HTTP/1.1).
+		 */
+		public String getProtocol() {
+			return protocol;
+		}
+
+		/**
+		 * Get the TLS protocol of the connection.
+		 * @return the TLS protocol, or null for a plain connection.
+		 */
+		public String getTlsProtocol() {
+			return conn.protocol;
+		}
+
+		/**
+		 * Get the headers, in the order received.
+		 * @return the headers, indexed by name.
+		 */
+		public Map<String,List<String>> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * Get the values of a header.
+		 * @param name the name of the header (case-insensitive).
+		 * @return the values, or null if the header was not received.
+		 */
+		public List<String> getHeaders(String name) {
+			for (Map.Entry<String,List<String>> entry : headers.entrySet()) {
+				if (entry.getKey().equalsIgnoreCase(name)) return entry.getValue();
+			}
+			return null;
+		}
+
+		/**
+		 * Get the first value of a header.
+		 * @param name the name of the header (case-insensitive).
+		 * @return the value, or null if the header was not received.
+		 */
+		public String getHeader(String name) {
+			List<String> values = getHeaders(name);
+			return ((values != null) && (values.size() > 0)) ? values.get(0) : null;
+		}
+
+		/**
+		 * Get the stream from which the content is read. The stream must be
+		 * read to the end or closed. The content is not decompressed.
+		 * @return the stream.
+		 */
+		public InputStream getBody() {
+			return body;
+		}
+
+		/**
+		 * Get the timings of the phases of the request. The content download
+		 * phase is recorded when the content has been read.
+		 * @return the timings.
+		 */
+		public RequestTimings getTimings() {
+			return timings;
+		}
+
+		/**
+		 * Determine whether the request was sent on a pooled connection.
+		 * @return true if the connection was reused.
+		 */
+		public boolean isReused() {
+			return reused;
+		}
+
+		/**
+		 * Get a description of the bytes sent and received, for a report.
+		 * The counts are complete once the content has been read.
+		 * @return the description.
+		 */
+		public String getWireSummary() {
+			long in = (wireIn >= 0) ? wireIn : conn.wireIn - wireInStart;
+			long out = (wireOut >= 0) ? wireOut : conn.wireOut - wireOutStart;
+			return "Connection: " + (reused ? "reused" : "new")
+					+ ", request " + requestNumber + " on this connection"
+					+ ((conn.protocol != null) ? ", " + conn.protocol : "") + "\n"
+					+ ((conn.tunnel != null) ? "Tunnel through the proxy: " + conn.tunnel + "\n" : "")
+					+ "Bytes on the wire: " + out + " sent, " + in + " received"
+					+ " (headers " + headerBytes + ", content " + body.count + ")\n";
+		}
+
+		/**
+		 * Add the byte counts and connection reuse to a JSON object.
+		 * @param json the object.
+		 * @return the object.
+		 */
+		public JsonLine addTo(JsonLine json) {
+			if (conn.tunnel != null) json.put("tunnel", conn.tunnel);
+			return json
+				.put("reused", reused)
+				.put("wireBytesSent", (wireOut >= 0) ? wireOut : conn.wireOut - wireOutStart)
+				.put("wireBytesReceived", (wireIn >= 0) ? wireIn : conn.wireIn - wireInStart)
+				.put("headerBytes", headerBytes);
+		}
+	}
+
+	/**
+	 * The stream of the content of a response, framed by Content-Length,
+	 * chunked encoding, or the end of the connection.
+	 */
+	static class BodyStream extends InputStream {
+		static final int NONE = 0;
+		static final int LENGTH = 1;
+		static final int CHUNKED = 2;
+		static final int EOF = 3;
+
+		Response response;
+		int mode;
+		long remaining;
+		boolean keepAlive;
+		boolean done = false;
+		long count = 0;
+		ChunkedDecoder decoder = null;
+		ChunkSink sink = null;
+
+		BodyStream(Response response, int mode, long length, boolean keepAlive) {
+			this.response = response;
+			this.mode = mode;
+			this.remaining = length;
+			this.keepAlive = keepAlive;
+			if (mode == CHUNKED) {
+				decoder = new ChunkedDecoder();
+				sink = new ChunkSink();
+			}
+			if ((mode == NONE) || ((mode == LENGTH) && (length == 0))) finish(keepAlive);
+		}
+
+		private void finish(boolean reusable) {
+			if (!done) {
+				done = true;
+				response.finished(reusable, count);
+			}
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n;
+			while ((n = read(b, 0, 1)) == 0) ;
+			return (n == -1) ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (done && ((sink == null) || (sink.available() == 0))) return -1;
+			if (len == 0) return 0;
+			Connection conn = response.conn;
+			try {
+				switch (mode) {
+					case LENGTH: {
+						if (!conn.appIn.hasRemaining() && (conn.fill() == -1)) {
+							throw new EOFException("The connection closed before the end of the content.");
+						}
+						int n = (int)Math.min(Math.min(len, remaining), conn.appIn.remaining());
+						conn.appIn.get(b, off, n);
+						remaining -= n;
+						count += n;
+						if (remaining == 0) finish(keepAlive);
+						return n;
+					}
+					case EOF: {
+						if (!conn.appIn.hasRemaining() && (conn.fill() == -1)) {
+							finish(false);
+							return -1;
+						}
+						int n = Math.min(len, conn.appIn.remaining());
+						conn.appIn.get(b, off, n);
+						count += n;
+						return n;
+					}
+					default: {
+						while (sink.available() == 0) {
+							if (decoder.isComplete()) {
+								finish(keepAlive);
+								return -1;
+							}
+							sink.reset();
+							if (!conn.appIn.hasRemaining() && (conn.fill() == -1)) {
+								throw new EOFException("The connection closed before the end of the content.");
+							}
+							ByteBuffer in = conn.appIn;
+							int consumed = decoder.decode(
+												in.array(), in.arrayOffset() + in.position(),
+												in.remaining(), sink);
+							in.position(in.position() + consumed);
+						}
+						int n = sink.read(b, off, len);
+						count += n;
+						if (decoder.isComplete() && (sink.available() == 0)) finish(keepAlive);
+						return n;
+					}
+				}
+			}
+			catch (IOException ex) {
+				finish(false);
+				throw ex;
+			}
+		}
+
+		/**
+		 * Close the stream. If the content has not been read completely,
+		 * the connection is closed rather than reused.
+		 */
+		public void close() {
+			finish(false);
+		}
+	}
+
+	//A buffer for the output of the chunked decoder.
+	static class ChunkSink extends ByteArrayOutputStream {
+		int pos = 0;
+		ChunkSink() {
+			super(BUFFER_SIZE);
+		}
+		public synchronized void reset() {
+			super.reset();
+			pos = 0;
+		}
+		int available() {
+			return count - pos;
+		}
+		int read(byte[] b, int off, int len) {
+			int n = Math.min(len, count - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.net.URL;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The redirects followed by a request, with the timing of each hop.
+ * The client follows the chain itself, rather than letting the engine
+ * do it, so that every hop is measured: its status, its Location, the
+ * time to connect (which is close to zero when the connection to the
+ * host is reused), and the time to the first byte of the response.
+ * <p>
+ * As browsers do, a 303 response, or a 301 or 302 response to a POST,
+ * is followed with a GET; 307 and 308 responses are followed with the
+ * original method and body. Credentials are sent only to the origin of
+ * the first request.
+ */
+public class RedirectChain {
+
+	/** The default maximum number of redirects to follow. */
+	public static final int DEFAULT_MAX_HOPS = 10;
+
+	int maxHops;
+	String origin = null;
+	String method = null;
+	LinkedList<Hop> hops = new LinkedList<Hop>();
+	boolean limitReached = false;
+
+	/**
+	 * Class constructor.
+	 * @param maxHops the maximum number of redirects to follow.
+	 */
+	public RedirectChain(int maxHops) {
+		this.maxHops = Math.max(0, maxHops);
+	}
+
+	/**
+	 * Determine whether a status is a redirect that can be followed.
+	 * @param status the status of a response.
+	 * @return true for 301, 302, 303, 307, and 308.
+	 */
+	public static boolean isRedirect(int status) {
+		return (status == 301) || (status == 302) || (status == 303) || (status == 307) || (status == 308);
+	}
+
+	/**
+	 * Get the absolute URL of the Location of a redirect.
+	 * @param address the URL of the request that was redirected.
+	 * @param headers the headers of the response.
+	 * @return the URL, or null if there is no Location or it is not an http or https URL.
+	 */
+	public static String getLocation(String address, Map<String,List<String>> headers) {
+		String location = ConditionalCache.getHeader(headers, "Location");
+		if ((location == null) || location.trim().equals("")) return null;
+		try {
+			URL url = new URL(new URL(address), location.trim());
+			String scheme = url.getProtocol().toLowerCase();
+			if (!scheme.equals("http") && !scheme.equals("https")) return null;
+			return url.toString();
+		}
+		catch (Exception ex) { return null; }
+	}
+
+	/**
+	 * Determine whether a URL has the origin of the first request of the
+	 * chain, so that credentials can be sent to it.
+	 * @param address the URL.
+	 * @return true if no redirect has been followed, or the URL has the
+	 * same scheme, host, and port as the first request.
+	 */
+	public boolean isOriginal(String address) {
+		if (origin == null) return true;
+		try { return origin.equals(DigestAuth.getOrigin(new URL(address))); }
+		catch (Exception ex) { return false; }
+	}
+
+	/**
+	 * Get the method of the next request of the chain.
+	 * @param initial the method of the first request.
+	 * @return the method.
+	 */
+	public String getMethod(String initial) {
+		return (method != null) ? method : initial;
+	}
+
+	/**
+	 * Determine whether another redirect can be followed. If it cannot,
+	 * the chain records that the limit was reached.
+	 * @return true if fewer than the maximum number of redirects have been followed.
+	 */
+	public boolean canFollow() {
+		if (hops.size() < maxHops) return true;
+		limitReached = true;
+		return false;
+	}
+
+	/**
+	 * Record a redirect that is to be followed.
+	 * @param hop the request that was redirected.
+	 */
+	public void add(Hop hop) {
+		if (origin == null) {
+			try { origin = DigestAuth.getOrigin(new URL(hop.url)); }
+			catch (Exception ignore) { }
+		}
+		hops.add(hop);
+		int status = hop.status;
+		boolean toGet = (status == 303) || (((status == 301) || (status == 302)) && hop.method.equals("POST"));
+		method = (toGet && !hop.method.equals("HEAD")) ? "GET" : hop.method;
+	}
+
+	/**
+	 * Get the number of redirects followed.
+	 * @return the number of redirects.
+	 */
+	public int size() {
+		return hops.size();
+	}
+
+	/**
+	 * Determine whether the chain ended because the maximum number of
+	 * redirects had been followed.
+	 * @return true if the limit was reached.
+	 */
+	public boolean isLimitReached() {
+		return limitReached;
+	}
+
+	/**
+	 * Get the total time of the redirects.
+	 * @return the time in milliseconds.
+	 */
+	public double getTime() {
+		double time = 0;
+		for (Hop hop : hops) time += hop.totalMs;
+		return time;
+	}
+
+	/**
+	 * Get a report of the redirects, one line per hop.
+	 * @return the report, or the empty string if no redirect was followed
+	 * and the limit was not reached.
+	 */
+	public String getSummary() {
+		if (hops.isEmpty() && !limitReached) return "";
+		StringBuffer sb = new StringBuffer();
+		sb.append("Redirects: " + hops.size() + String.format(" in %.3f ms", getTime()));
+		if (limitReached) sb.append(" (the limit of " + maxHops + " was reached)");
+		sb.append("\n");
+		sb.append(String.format("  %-4s %-6s %-7s %10s %10s %10s  %-10s %s\n",
+					"Hop", "Status", "Method", "Connect", "TTFB", "Total", "Connection", "URL -> Location"));
+		int n = 0;
+		for (Hop hop : hops) {
+			sb.append(String.format("  %-4d %-6d %-7s %10s %10s %10.3f  %-10s %s -> %s\n",
+						++n, hop.status, hop.method, format(hop.connectMs), format(hop.ttfbMs), hop.totalMs,
+						(hop.connection != null) ? hop.connection : "", hop.url, hop.location));
+		}
+		return sb.toString();
+	}
+
+	private static String format(double ms) {
+		return (ms >= 0) ? String.format("%.3f", ms) : "-";
+	}
+
+	/**
+	 * Add the redirects to a JSON object.
+	 * @param json the object.
+	 * @return the object.
+	 */
+	public JsonLine addTo(JsonLine json) {
+		json.put("redirects", hops.size());
+		json.put("redirectMs", getTime());
+		if (limitReached) json.put("redirectLimitReached", true);
+		LinkedList<JsonLine> list = new LinkedList<JsonLine>();
+		for (Hop hop : hops) {
+			JsonLine item = new JsonLine()
+				.put("url", hop.url)
+				.put("method", hop.method)
+				.put("status", hop.status)
+				.put("location", hop.location);
+			if (hop.connectMs >= 0) item.put("connectMs", hop.connectMs);
+			if (hop.ttfbMs >= 0) item.put("ttfbMs", hop.ttfbMs);
+			item.put("totalMs", hop.totalMs);
+			if (hop.connection != null) item.put("connection", hop.connection);
+			list.add(item);
+		}
+		return json.put("hops", list);
+	}
+
+	/**
+	 * A request that was redirected.
+	 */
+	public static class Hop {
+		String url;
+		String method;
+		int status;
+		String location;
+		double connectMs;
+		double ttfbMs;
+		double totalMs;
+		String connection;
+
+		/**
+		 * Class constructor.
+		 * @param url the URL of the request.
+		 * @param method the method of the request.
+		 * @param status the status of the response.
+		 * @param location the absolute URL of the Location of the response.
+		 * @param connectMs the time to connect, or -1 if it is not known.
+		 * @param ttfbMs the time from sending the request to the first byte
+		 * of the response, or -1 if it is not known.
+		 * @param totalMs the total time of the request, including its body.
+		 * @param connection "new" or "reused", or null if it is not known.
+		 */
+		public Hop(String url, String method, int status, String location,
+				   double connectMs, double ttfbMs, double totalMs, String connection) {
+			this.url = url;
+			this.method = method;
+			this.status = status;
+			this.location = location;
+			this.connectMs = connectMs;
+			this.ttfbMs = ttfbMs;
+			this.totalMs = totalMs;
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.util.Hashtable;
+
+/**
+ * A buffered InputStream for the requests received on one connection.
+ * The stream reads from the socket in bulk into a single buffer, which
+ * it reuses for all the requests on the connection. The headers of each
+ * request are parsed in place by a HeaderParser; the content is then
+ * read through the stream's read methods, which drain the buffer before
+ * reading from the socket.
+ */
+public class RequestInputStream extends InputStream {
+
+	InputStream in;
+	HeaderParser parser;
+	byte[] buf;
+	int pos = 0;
+	int lim = 0;
+	boolean timedOut = false;
+
+	/**
+	 * Class constructor; creates a stream using a HeaderParser with the default limits.
+	 * @param in the socket's input stream.
+	 */
+	public RequestInputStream(InputStream in) {
+		this(in, new HeaderParser());
+	}
+
+	/**
+	 * Class constructor.
+	 * @param in the socket's input stream.
+	 * @param parser the parser for the request headers.
+	 */
+	public RequestInputStream(InputStream in, HeaderParser parser) {
+		this.in = in;
+		this.parser = parser;
+		buf = new byte[Math.max(8192, parser.getMaxHeaderSize())];
+	}
+
+	/**
+	 * Read the request line and headers of the next request, positioning
+	 * the stream to the beginning of the request's content.
+	 * @param headers the Hashtable in which to put the headers, indexed
+	 * by lower-case name.
+	 * @return the text of the request line and headers, or null if the
+	 * stream ends or times out before a complete header block is received.
+	 * @throws IOException if the headers exceed the parser's limits or
+	 * the stream fails.
+	 */
+	public String readHeaders(Hashtable<String,String> headers) throws IOException {
+		timedOut = false;
+		int from = pos;
+		while (true) {
+			pos = HeaderParser.skipBlankLines(buf, pos, lim);
+			from = Math.max(from, pos);
+			int end = parser.findEnd(buf, pos, from, lim);
+			if (end >= 0) {
+				String text = parser.parse(buf, pos, end, headers);
+				pos = end;
+				return text;
+			}
+			from = Math.max(pos, lim - 3);
+
+			//Move the partial header block to the start of the buffer
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, lim - pos);
+				from -= pos;
+				lim -= pos;
+				pos = 0;
+			}
+
+			//Get more data
+			int n;
+			try { n = in.read(buf, lim, buf.length - lim); }
+			catch (SocketTimeoutException idle) {
+				timedOut = true;
+				return null;
+			}
+			if (n == -1) return null;
+			lim += n;
+		}
+	}
+
+	/**
+	 * Determine whether the last call to readHeaders returned null
+	 * because the stream timed out, rather than because it ended.
+	 * @return true if the stream timed out.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
+	/**
+	 * Determine whether bytes that have been received remain unread in the
+	 * buffer, for example part of a header block when the stream ended.
+	 * @return true if there are unread bytes in the buffer.
+	 */
+	public boolean hasBufferedBytes() {
+		return (lim > pos);
+	}
+
+	/**
+	 * Decode a chunked body, consuming exactly the bytes of the body
+	 * so that a pipelined request that follows it remains in the stream.
+	 * @param decoder the decoder for the body.
+	 * @param out the stream to receive the decoded data.
+	 * @return true if the end of the body was reached; false if the
+	 * stream ended first.
+	 * @throws IOException if the encoding is invalid or the stream fails.
+	 */
+	public boolean readChunked(ChunkedDecoder decoder, OutputStream out) throws IOException {
+		while (!decoder.isComplete()) {
+			if (pos >= lim) {
+				pos = lim = 0;
+				int n = in.read(buf, 0, buf.length);
+				if (n == -1) return false;
+				lim = n;
+			}
+			pos += decoder.decode(buf, pos, lim - pos, out);
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a chunked body without decoding it, so that the chunk sizes,
+	 * extensions, and trailers are passed on exactly as they were received.
+	 * Exactly the bytes of the body are consumed.
+	 * @param decoder the decoder that finds the end of the body.
+	 * @param out the stream to receive the encoded body.
+	 * @return the number of bytes copied, or -1 if the stream ended
+	 * before the end of the body.
+	 * @throws IOException if the encoding is invalid or either stream fails.
+	 */
+	public long copyChunked(ChunkedDecoder decoder, OutputStream out) throws IOException {
+		OutputStream discard = OutputStream.nullOutputStream();
+		long count = 0;
+		while (!decoder.isComplete()) {
+			if (pos >= lim) {
+				pos = lim = 0;
+				int n = in.read(buf, 0, buf.length);
+				if (n == -1) return -1;
+				lim = n;
+			}
+			int n = decoder.decode(buf, pos, lim - pos, discard);
+			out.write(buf, pos, n);
+			pos += n;
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * Copy bytes to a stream.
+	 * @param length the number of bytes to copy, or -1 to copy
+	 * until the end of the stream.
+	 * @param out the stream to receive the bytes.
+	 * @return the number of bytes copied, which is less than length
+	 * only if the stream ended first.
+	 * @throws IOException if either stream fails.
+	 */
+	public long copy(long length, OutputStream out) throws IOException {
+		long count = 0;
+		while ((length < 0) || (count < length)) {
+			if (pos >= lim) {
+				pos = lim = 0;
+				int n = in.read(buf, 0, buf.length);
+				if (n == -1) break;
+				lim = n;
+			}
+			int n = (int)((length < 0) ? (lim - pos) : Math.min(lim - pos, length - count));
+			out.write(buf, pos, n);
+			pos += n;
+			count += n;
+		}
+		return count;
+	}
+
+	/**
+	 * Read one byte.
+	 * @return the byte, or -1 if the end of the stream has been reached.
+	 */
+	public int read() throws IOException {
+		if (pos >= lim) {
+			pos = lim = 0;
+			int n = in.read(buf, 0, buf.length);
+			if (n <= 0) return -1;
+			lim = n;
+		}
+		return buf[pos++] & 0xff;
+	}
+
+	/**
+	 * Read bytes into an array, draining the buffer before reading
+	 * from the underlying stream.
+	 * @param b the array.
+	 * @param off the index of the first byte to store.
+	 * @param len the maximum number of bytes to read.
+	 * @return the number of bytes read, or -1 if the end of the stream has been reached.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (pos < lim) {
+			int n = Math.min(len, lim - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		pos = lim = 0;
+		return in.read(b, off, len);
+	}
+
+	/**
+	 * Get the number of bytes that can be read without blocking.
+	 * @return the number of bytes available.
+	 */
+	public int available() throws IOException {
+		return (lim - pos) + in.available();
+	}
+
+	/**
+	 * Close the stream and the underlying stream.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+}
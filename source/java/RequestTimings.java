@@ -0,0 +1,148 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.util.ArrayList;
+
+/**
+ * The timings of the phases of one client request (DNS lookup, connect,
+ * TLS handshake, waiting for the first byte, content transfer, etc.),
+ * recorded with System.nanoTime and displayed as a waterfall in which
+ * each phase is drawn as a bar on a common time scale.
+ */
+public class RequestTimings {
+
+	static final int BAR_WIDTH = 40;
+
+	long start;
+	ArrayList<Phase> phases = new ArrayList<Phase>();
+
+	/**
+	 * Class constructor; the request starts now.
+	 */
+	public RequestTimings() {
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Get the time at which the request started.
+	 * @return the start time, from System.nanoTime.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Record a phase.
+	 * @param name the name of the phase.
+	 * @param begin the start of the phase, from System.nanoTime.
+	 * @param end the end of the phase, from System.nanoTime.
+	 */
+	public void add(String name, long begin, long end) {
+		add(name, begin, end, -1);
+	}
+
+	/**
+	 * Record a phase that transferred data.
+	 * @param name the name of the phase.
+	 * @param begin the start of the phase, from System.nanoTime.
+	 * @param end the end of the phase, from System.nanoTime.
+	 * @param bytes the number of bytes transferred, or -1 if not applicable.
+	 */
+	public void add(String name, long begin, long end, long bytes) {
+		phases.add(new Phase(name, begin, end, bytes));
+	}
+
+	//Get the end of the last phase.
+	private long getEnd() {
+		long end = start;
+		for (Phase phase : phases) end = Math.max(end, phase.end);
+		return end;
+	}
+
+	/**
+	 * Get the total time from the start of the request to the end of the last phase.
+	 * @return the time in nanoseconds.
+	 */
+	public long getTotal() {
+		return getEnd() - start;
+	}
+
+	/**
+	 * Get the total duration of the phases whose names start with a prefix.
+	 * @param prefix the prefix of the names.
+	 * @return the time in milliseconds, or -1 if there is no such phase.
+	 */
+	public double getTime(String prefix) {
+		long nanos = 0;
+		boolean found = false;
+		for (Phase phase : phases) {
+			if (phase.name.startsWith(prefix)) {
+				nanos += phase.end - phase.begin;
+				found = true;
+			}
+		}
+		return found ? ms(nanos) : -1;
+	}
+
+	/**
+	 * Get the phases as a waterfall, with the times in milliseconds
+	 * relative to the start of the request.
+	 * @return the text of the waterfall.
+	 */
+	public String getWaterfall() {
+		long total = Math.max(1, getTotal());
+		StringBuffer sb = new StringBuffer("Timing (ms):\n");
+		for (Phase phase : phases) {
+			long offset = phase.begin - start;
+			long length = phase.end - phase.begin;
+			int from = (int)(BAR_WIDTH * offset / total);
+			int to = (int)(BAR_WIDTH * (offset + length) / total);
+			if (to == from) to = Math.min(from + 1, BAR_WIDTH);
+			sb.append(String.format("  %-28s %10.3f %10.3f  |", phase.name, ms(offset), ms(length)));
+			for (int i=0; i<BAR_WIDTH; i++) sb.append(((i >= from) && (i < to)) ? '#' : ' ');
+			sb.append("|");
+			if (phase.bytes >= 0) {
+				sb.append("  " + phase.bytes + " bytes");
+				if (length > 0) {
+					sb.append(String.format(", %.1f KB/s", phase.bytes / (length / 1e9) / 1024.0));
+				}
+			}
+			sb.append("\n");
+		}
+		sb.append(String.format("  %-28s %10s %10.3f\n", "Total", "", ms(total)));
+		return sb.toString();
+	}
+
+	/**
+	 * Add the durations of the phases to a JSON object, in milliseconds.
+	 * @param json the object.
+	 * @return the object.
+	 */
+	public JsonLine addTo(JsonLine json) {
+		for (Phase phase : phases) json.put(phase.name, ms(phase.end - phase.begin));
+		return json.put("Total", ms(getTotal()));
+	}
+
+	private static double ms(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	static class Phase {
+		String name;
+		long begin;
+		long end;
+		long bytes;
+		Phase(String name, long begin, long end, long bytes) {
+			this.name = name;
+			this.begin = begin;
+			this.end = end;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses server responses with gzip or deflate, as negotiated with
+ * the client's Accept-Encoding header. Deflaters are kept in bounded
+ * pools and reused, rather than allocated for each response; a Deflater
+ * that does not fit in its pool is ended, releasing its native memory.
+ * One compressor is shared by all the connections of a receiver, and it
+ * keeps totals of the bytes saved and the CPU time spent. If the JVM
+ * cannot measure thread CPU time, the elapsed time is reported instead.
+ */
+public class ResponseCompressor {
+
+	/** The default minimum size of a response body that is compressed. */
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	/** The default compression level. */
+	public static final int DEFAULT_LEVEL = 6;
+
+	static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	static final boolean cpuTimeAvailable =
+		threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+	static final String timeUnits = cpuTimeAvailable ? " ms CPU" : " ms wall time";
+	static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors() + 2;
+
+	int minSize;
+	int level;
+	ArrayBlockingQueue<Deflater> gzipPool = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	ArrayBlockingQueue<Deflater> deflatePool = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+	volatile boolean closed = false;
+
+	AtomicLong responses = new AtomicLong();
+	AtomicLong bytesIn = new AtomicLong();
+	AtomicLong bytesOut = new AtomicLong();
+	AtomicLong cpuNanos = new AtomicLong();
+
+	/**
+	 * Class constructor.
+	 * @param minSize the minimum size of a response body that is compressed.
+	 * @param level the compression level (1-9).
+	 */
+	public ResponseCompressor(int minSize, int level) {
+		this.minSize = Math.max(0, minSize);
+		this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+	}
+
+	/**
+	 * Compress the body of a response if the client accepts a compressed
+	 * encoding, the body is at least the minimum size, and compression
+	 * makes it smaller.
+	 * @param response the response, with its body complete.
+	 * @param acceptEncoding the value of the request's Accept-Encoding
+	 * header, or null if the header was not present.
+	 * @return a line for the connection report describing the compression,
+	 * or the empty string if the response was not compressed.
+	 */
+	public String compress(HttpResponse response, String acceptEncoding) {
+		int length = response.getContentLength();
+		if (length < minSize) return "";
+		String encoding = negotiate(acceptEncoding);
+		if (encoding == null) return "";
+
+		boolean gzip = encoding.equals("gzip");
+		ArrayBlockingQueue<Deflater> pool = gzip ? gzipPool : deflatePool;
+		Deflater deflater = pool.poll();
+		if (deflater == null) deflater = new Deflater(level, gzip);
+
+		long cpu = getCpuTime();
+		int compressed;
+		try { compressed = response.deflate(deflater, gzip, encoding); }
+		finally {
+			deflater.reset();
+			if (closed || !pool.offer(deflater)) deflater.end();
+			if (closed) end(pool);
+		}
+		cpu = getCpuTime() - cpu;
+		if (compressed < 0) return "";
+
+		long n = responses.incrementAndGet();
+		long in = bytesIn.addAndGet(length);
+		long out = bytesOut.addAndGet(compressed);
+		long totalCpu = cpuNanos.addAndGet(cpu);
+		return "Response compressed (" + encoding + "): "
+					+ length + " -> " + compressed + " bytes ("
+					+ percent(length - compressed, length) + " saved) in "
+					+ millis(cpu) + timeUnits + "\n"
+				+ "Compression totals: " + n + " responses, "
+					+ (in - out) + " bytes saved ("
+					+ percent(in - out, in) + "), "
+					+ millis(totalCpu) + timeUnits + "\n";
+	}
+
+	/**
+	 * End the pooled Deflaters, releasing their native memory. This method
+	 * is called when the receiver stops. A Deflater that is in use is ended
+	 * when the response it is compressing is complete.
+	 */
+	public void close() {
+		closed = true;
+		end(gzipPool);
+		end(deflatePool);
+	}
+
+	private static void end(ArrayBlockingQueue<Deflater> pool) {
+		Deflater deflater;
+		while ((deflater = pool.poll()) != null) deflater.end();
+	}
+
+	/**
+	 * Choose the encoding for a response from the Accept-Encoding header.
+	 * gzip is preferred to deflate when the client accepts both with equal
+	 * quality. Encodings with q=0 are not accepted.
+	 * @param acceptEncoding the value of the Accept-Encoding header.
+	 * @return "gzip", "deflate", or null if neither is acceptable.
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) return null;
+		float gzipQ = -1;
+		float deflateQ = -1;
+		float anyQ = -1;
+		for (String item : acceptEncoding.split(",")) {
+			String[] parts = item.split(";");
+			String coding = parts[0].trim().toLowerCase();
+			float q = 1;
+			for (int i=1; i<parts.length; i++) {
+				String p = parts[i].trim();
+				if (p.startsWith("q=")) {
+					try { q = Float.parseFloat(p.substring(2)); }
+					catch (Exception ignore) { }
+				}
+			}
+			if (coding.equals("gzip") || coding.equals("x-gzip")) gzipQ = q;
+			else if (coding.equals("deflate")) deflateQ = q;
+			else if (coding.equals("*")) anyQ = q;
+		}
+		if (gzipQ < 0) gzipQ = anyQ;
+		if (deflateQ < 0) deflateQ = anyQ;
+		if ((gzipQ > 0) && (gzipQ >= deflateQ)) return "gzip";
+		if (deflateQ > 0) return "deflate";
+		return null;
+	}
+
+	//Get the CPU time of the current thread, or the
+	//wall-clock time if CPU time is not available.
+	private static long getCpuTime() {
+		if (cpuTimeAvailable) return threadMXBean.getCurrentThreadCpuTime();
+		return System.nanoTime();
+	}
+
+	private static String percent(long part, long whole) {
+		if (whole == 0) return "0%";
+		return String.format("%.1f%%", (100.0 * part) / whole);
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1000000.0);
+	}
+}
@@ -0,0 +1,81 @@
+/*---------------------------------------------------------------
+*  Copyright 2005 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.httptest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An SSLSocketFactory that records when the TLS handshake of an
+ * HttpsURLConnection begins. The factory does not create unconnected
+ * sockets, so the connection first connects a plain socket (through the
+ * proxy tunnel, if there is one) and then calls the factory to layer TLS
+ * over it. The time of that call separates the TCP connection from the
+ * TLS handshake. The factory records the time of one connection at a
+ * time, so it is reset before each request.
+ */
+public class TimingSSLSocketFactory extends SSLSocketFactory {
+
+	SSLSocketFactory factory;
+	volatile long layered = 0;
+
+	/**
+	 * Class constructor.
+	 * @param factory the factory that creates the sockets.
+	 */
+	public TimingSSLSocketFactory(SSLSocketFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Clear the layered time before a request.
+	 */
+	public void reset() {
+		layered = 0;
+	}
+
+	/**
+	 * Get the time at which a socket was layered over a connected socket.
+	 * @return the time, from System.nanoTime, or 0 if no socket was
+	 * layered (for example, because a cached connection was reused).
+	 */
+	public long getLayeredTime() {
+		return layered;
+	}
+
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		layered = System.nanoTime();
+		return factory.createSocket(s, host, port, autoClose);
+	}
+
+	public Socket createSocket(String host, int port) throws IOException {
+		return factory.createSocket(host, port);
+	}
+
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return factory.createSocket(host, port, localHost, localPort);
+	}
+
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return factory.createSocket(host, port);
+	}
+
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return factory.createSocket(address, port, localAddress, localPort);
+	}
+
+	public String[] getDefaultCipherSuites() {
+		return factory.getDefaultCipherSuites();
+	}
+
+	public String[] getSupportedCipherSuites() {
+		return factory.getSupportedCipherSuites();
+	}
+}